@@ -0,0 +1,84 @@
+package com.wallet.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 压测时选账户：uniform均匀分布，zipf为齐夫分布（少数热点账户承担大部分流量，更接近真实场景）
+ */
+public final class AccountPicker {
+
+    public static final String UNIFORM = "uniform";
+    public static final String ZIPF = "zipf";
+
+    /**
+     * 齐夫分布指数，1.0时排名第k的账户被选中的概率正比于1/k
+     */
+    private static final double ZIPF_EXPONENT = 1.0;
+
+    private final String[] userIds;
+    /**
+     * zipf的累积分布，uniform时为空
+     */
+    private final double[] cdf;
+
+    public AccountPicker(String distribution, String prefix, int accounts) {
+        userIds = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            userIds[i] = prefix + i;
+        }
+        if (UNIFORM.equals(distribution)) {
+            cdf = null;
+        } else if (ZIPF.equals(distribution)) {
+            cdf = new double[accounts];
+            double sum = 0;
+            for (int i = 0; i < accounts; i++) {
+                sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < accounts; i++) {
+                cdf[i] /= sum;
+            }
+        } else {
+            throw new IllegalArgumentException("unknown distribution: " + distribution);
+        }
+    }
+
+    public String[] all() {
+        return userIds;
+    }
+
+    public String pick() {
+        return userIds[pickIndex()];
+    }
+
+    /**
+     * @return 两个不同的账户
+     */
+    public String[] pickPair() {
+        int from = pickIndex();
+        int to = pickIndex();
+        while (to == from) {
+            to = ThreadLocalRandom.current().nextInt(userIds.length);
+        }
+        return new String[]{userIds[from], userIds[to]};
+    }
+
+    private int pickIndex() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (null == cdf) {
+            return random.nextInt(userIds.length);
+        }
+        double p = random.nextDouble();
+        int low = 0;
+        int high = cdf.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cdf[mid] < p) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,92 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.repository.AccountTable;
+import com.wallet.domain.repository.MapAccountTable;
+import com.wallet.domain.repository.SlabAccountTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 账户表对比：ConcurrentHashMap vs 原始类型slab
+ * 内存占用在setup时打印（每个账户的堆字节数），延迟用SampleTime模式给出分位数
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Threads(4)
+public class AccountTableBenchmark {
+
+    @Param({"map", "slab"})
+    private String table;
+
+    @Param({"1000000"})
+    private int accounts;
+
+    private AccountTable accountTable;
+    private String[] userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        userIds = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            userIds[i] = "user" + i;
+        }
+        long before = usedHeap();
+        accountTable = "slab".equals(table) ? new SlabAccountTable(accounts) : new MapAccountTable();
+        Account empty = Account.builder().amount(new AtomicLong()).version(0L).build();
+        for (String userId : userIds) {
+            Date now = new Date();
+            accountTable.compareAndSet(userId, empty, Account.builder()
+                    .userId(userId)
+                    .amount(new AtomicLong(100))
+                    .currency("CNY")
+                    .version(1L)
+                    .gmt_create(now)
+                    .gmt_modify(now)
+                    .build());
+        }
+        long after = usedHeap();
+        System.out.printf("%n%s account table: %d bytes/account (excluding userId strings)%n",
+                table, (after - before) / accounts);
+    }
+
+    @Benchmark
+    public Account query() {
+        return accountTable.get(randomUser());
+    }
+
+    @Benchmark
+    public boolean update() {
+        String userId = randomUser();
+        Account origin = accountTable.get(userId);
+        Date now = new Date();
+        return accountTable.compareAndSet(userId, origin, Account.builder()
+                .userId(userId)
+                .amount(new AtomicLong(origin.getAmount().get() + 1))
+                .currency(origin.getCurrency())
+                .version(origin.getVersion() + 1)
+                .gmt_create(origin.getGmt_create())
+                .gmt_modify(now)
+                .build());
+    }
+
+    private String randomUser() {
+        return userIds[ThreadLocalRandom.current().nextInt(accounts)];
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,80 @@
+package com.wallet.benchmark;
+
+import com.wallet.adapter.facade.UserFacade;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个用户刷量时其他用户的延迟：flood线程不停给同一个账户存钱，normal线程在其余账户上正常存钱，
+ * 对比admission=off/on时normal的p99，开启后flood在自己的令牌桶上被快速拒绝，normal的p99应该和没有flood时接近
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdmissionBenchmark {
+
+    private static final long INITIAL_CENT = Long.MAX_VALUE / 4;
+    private static final String FLOODER = "flooder";
+
+    @Param({"off", "on"})
+    private String admission;
+
+    /**
+     * 每个用户每秒请求数
+     */
+    @Param({"1000"})
+    private long userRate;
+
+    @Param({"4096"})
+    private int accounts;
+
+    private AnnotationConfigApplicationContext context;
+    private UserFacade userFacade;
+    private AccountPicker picker;
+    private final Currency cny = Currency.getInstance("CNY");
+    private final Long one = 1L;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        context = WalletContext.start();
+        userFacade = context.getBean(UserFacade.class);
+        picker = new AccountPicker(AccountPicker.UNIFORM, "user", accounts);
+        for (String userId : picker.all()) {
+            userFacade.deposit(userId, INITIAL_CENT, cny);
+        }
+        userFacade.deposit(FLOODER, INITIAL_CENT, cny);
+        //初始化之后再开流控
+        if ("on".equals(admission)) {
+            userFacade.limitRate(0, 0, userRate, userRate);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Long flood() {
+        try {
+            return userFacade.deposit(FLOODER, one, cny);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public Long normal() {
+        return userFacade.deposit(picker.pick(), one, cny);
+    }
+}
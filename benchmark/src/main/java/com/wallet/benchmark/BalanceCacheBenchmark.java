@@ -0,0 +1,126 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.repository.AccountTable;
+import com.wallet.domain.repository.CachedAccountTable;
+import com.wallet.domain.repository.MapAccountTable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 余额读缓存：底层账户表每次读都模拟一次远程访问（backendTokens），80%读20%写，zipf分布，
+ * 对比不开缓存和不同容量的缓存；cacheSize=0为不开
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class BalanceCacheBenchmark {
+
+    @Param({"0", "1024", "16384"})
+    private int cacheSize;
+
+    @Param({"100000"})
+    private int accounts;
+
+    /**
+     * 模拟存储访问的CPU开销，Blackhole.consumeCPU的参数
+     */
+    @Param({"1000"})
+    private long backendTokens;
+
+    private AccountTable table;
+    private AccountPicker picker;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        AccountTable backing = new SlowAccountTable(new MapAccountTable(), backendTokens);
+        table = cacheSize > 0 ? new CachedAccountTable(backing, cacheSize) : backing;
+        picker = new AccountPicker(AccountPicker.ZIPF, "user", accounts);
+        Account empty = Account.builder().amount(new AtomicLong()).version(0L).build();
+        for (String userId : picker.all()) {
+            table.compareAndSet(userId, empty, account(userId, 1_000_000, 1));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (table instanceof CachedAccountTable) {
+            CachedAccountTable cache = (CachedAccountTable) table;
+            System.out.printf("%ncache hit rate: %.1f%%%n", 100.0 * cache.getHits() / (cache.getHits() + cache.getMisses()));
+        }
+    }
+
+    @Benchmark
+    public Account readMostly() {
+        String userId = picker.pick();
+        if (ThreadLocalRandom.current().nextInt(5) > 0) {
+            return table.get(userId);
+        }
+        for (; ; ) {
+            Account current = table.get(userId);
+            Account updated = account(userId, current.getAmount().get() + 1, current.getVersion() + 1);
+            if (table.compareAndSet(userId, current, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    private static Account account(String userId, long amount, long version) {
+        Date now = new Date();
+        return Account.builder()
+                .userId(userId)
+                .amount(new AtomicLong(amount))
+                .currency("CNY")
+                .version(version)
+                .gmt_create(now)
+                .gmt_modify(now)
+                .build();
+    }
+
+    /**
+     * 读写都带固定开销的账户表，代替还没有的持久化存储
+     */
+    private static final class SlowAccountTable implements AccountTable {
+
+        private final AccountTable delegate;
+        private final long tokens;
+
+        SlowAccountTable(AccountTable delegate, long tokens) {
+            this.delegate = delegate;
+            this.tokens = tokens;
+        }
+
+        @Override
+        public Account get(String userId) {
+            Blackhole.consumeCPU(tokens);
+            return delegate.get(userId);
+        }
+
+        @Override
+        public boolean compareAndSet(String userId, Account expect, Account update) {
+            Blackhole.consumeCPU(tokens);
+            return delegate.compareAndSet(userId, expect, update);
+        }
+
+        @Override
+        public void put(String userId, Account account) {
+            Blackhole.consumeCPU(tokens);
+            delegate.put(userId, account);
+        }
+
+        @Override
+        public void forEach(Consumer<Account> consumer) {
+            delegate.forEach(consumer);
+        }
+    }
+}
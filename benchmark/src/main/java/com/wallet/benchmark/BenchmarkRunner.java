@@ -0,0 +1,94 @@
+package com.wallet.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基线压测：按1/4/16/64线程分别跑一遍，同时采集吞吐、延迟分布和分配速率
+ * 每个线程数的原始结果写到results/threads-N.json，汇总写到results/summary.csv，改动前后各跑一次对比即可
+ * <p>
+ * 运行：java -cp target/benchmarks.jar com.wallet.benchmark.BenchmarkRunner [正则，默认全部]
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] THREADS = {1, 4, 16, 64};
+    private static final String RESULT_DIR = "results";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, FileNotFoundException {
+        String include = args.length > 0 ? args[0] : "com.wallet.benchmark.(Money|WalletService|QueryRecord|Facade)Benchmark";
+        File dir = new File(RESULT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new FileNotFoundException("can not create " + dir.getAbsolutePath());
+        }
+        //key：基准方法+参数+线程数，value：吞吐、p99、每次操作分配的字节数
+        Map<String, double[]> summary = new LinkedHashMap<>();
+        for (int threads : THREADS) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .mode(Mode.Throughput)
+                    .mode(Mode.SampleTime)
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(dir, "threads-" + threads + ".json").getPath());
+            Collection<RunResult> results = new Runner(options.build()).run();
+            for (RunResult result : results) {
+                collect(summary, threads, result);
+            }
+        }
+        try (PrintWriter out = new PrintWriter(new File(dir, "summary.csv"))) {
+            out.println("benchmark,params,threads,ops_per_us,p99_us,alloc_bytes_per_op");
+            for (Map.Entry<String, double[]> entry : summary.entrySet()) {
+                double[] values = entry.getValue();
+                out.printf("%s,%.3f,%.3f,%.1f%n", entry.getKey(), values[0], values[1], values[2]);
+            }
+        }
+        System.out.println("summary written to " + new File(dir, "summary.csv").getAbsolutePath());
+    }
+
+    private static void collect(Map<String, double[]> summary, int threads, RunResult result) {
+        String label = result.getParams().getBenchmark() + "," + params(result) + "," + threads;
+        double[] values = summary.computeIfAbsent(label, k -> new double[]{Double.NaN, Double.NaN, Double.NaN});
+        Result<?> primary = result.getPrimaryResult();
+        if (Mode.Throughput == result.getParams().getMode()) {
+            values[0] = primary.getScore();
+        } else {
+            values[1] = primary.getStatistics().getPercentile(99);
+        }
+        for (String key : result.getSecondaryResults().keySet()) {
+            if (key.endsWith("gc.alloc.rate.norm")) {
+                Result<?> secondary = result.getSecondaryResults().get(key);
+                values[2] = secondary.getScore();
+            }
+        }
+    }
+
+    private static String params(RunResult result) {
+        List<String> params = new ArrayList<>();
+        for (String key : result.getParams().getParamsKeys()) {
+            params.add(key + "=" + result.getParams().getParam(key));
+        }
+        return String.join(" ", params);
+    }
+}
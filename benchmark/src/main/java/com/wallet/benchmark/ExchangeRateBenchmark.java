@@ -0,0 +1,48 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.service.ExchangeRateTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 跨币种换算：汇率快照的定点换算对比每次按BigDecimal报价现算
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExchangeRateBenchmark {
+
+    private final ExchangeRateTable table = new ExchangeRateTable();
+    private final Map<String, BigDecimal> quotes = new HashMap<>();
+    private long cent = 123456;
+
+    @Setup
+    public void setUp() {
+        quotes.put("USD", new BigDecimal("0.1389"));
+        quotes.put("EUR", new BigDecimal("0.1275"));
+        quotes.put("JPY", new BigDecimal("20.5"));
+        table.update("CNY", quotes);
+    }
+
+    @Benchmark
+    public long convert() {
+        return table.convert(cent, "USD", "EUR");
+    }
+
+    /**
+     * 不预先展开的做法：每次从报价算交叉汇率
+     */
+    @Benchmark
+    public long bigDecimal() {
+        BigDecimal rate = quotes.get("EUR").divide(quotes.get("USD"), 9, RoundingMode.HALF_EVEN);
+        return BigDecimal.valueOf(cent).multiply(rate).setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+    }
+}
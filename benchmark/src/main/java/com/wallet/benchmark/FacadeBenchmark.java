@@ -0,0 +1,87 @@
+package com.wallet.benchmark;
+
+import com.wallet.adapter.facade.UserFacade;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端：门面 -> 应用层模板（校验）-> 领域服务 -> 仓储，和外部调用方看到的一致
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FacadeBenchmark {
+
+    private static final long INITIAL_CENT = Long.MAX_VALUE / 4;
+
+    @Param({AccountPicker.UNIFORM, AccountPicker.ZIPF})
+    private String distribution;
+
+    @Param({"4096"})
+    private int accounts;
+
+    /**
+     * 监控开关，-p metrics=true,false对比监控的开销
+     */
+    @Param({"true"})
+    private boolean metrics;
+
+    /**
+     * 事件投递目标，-p eventSink=none,memory对比发件箱在变更路径上的开销
+     */
+    @Param({"none"})
+    private String eventSink;
+
+    private AnnotationConfigApplicationContext context;
+    private UserFacade userFacade;
+    private AccountPicker picker;
+    private final Currency cny = Currency.getInstance("CNY");
+    private final Long one = 1L;
+
+    /**
+     * 每轮迭代重建容器，交易记录只增不减，跨迭代累积会让后面的迭代越来越慢
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        System.setProperty("wallet.metrics.enabled", String.valueOf(metrics));
+        System.setProperty("wallet.event.sink", eventSink);
+        context = WalletContext.start();
+        userFacade = context.getBean(UserFacade.class);
+        picker = new AccountPicker(distribution, "user", accounts);
+        for (String userId : picker.all()) {
+            userFacade.deposit(userId, INITIAL_CENT, cny);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Long deposit() {
+        return userFacade.deposit(picker.pick(), one, cny);
+    }
+
+    @Benchmark
+    public Long withdraw() {
+        return userFacade.withdraw(picker.pick(), one, cny);
+    }
+
+    @Benchmark
+    public void transfer() {
+        String[] pair = picker.pickPair();
+        userFacade.transfer(pair[0], one, cny, pair[1]);
+    }
+
+    @Benchmark
+    public Long queryBalance() {
+        return userFacade.queryBalance(picker.pick(), cny);
+    }
+}
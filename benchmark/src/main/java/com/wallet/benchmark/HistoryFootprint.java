@@ -0,0 +1,98 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.model.Money;
+import com.wallet.domain.model.TransactionRecord;
+import com.wallet.domain.repository.FileHistoryArchive;
+import com.wallet.domain.repository.HistoryStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Currency;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * 交易记录存储的常驻内存：按WalletService的写法灌入记录（滚出热数据的块写进文件归档），
+ * 比较GC后的堆占用，得出每条记录的字节数
+ * <p>
+ * userId按真实请求的样子每次都是新字符串（反序列化出来的），存款、取款、转账按4:3:3混合，
+ * 同币种转账的两条记录是同一个对象
+ * <p>
+ * 运行：java -Xmx2g -cp target/benchmarks.jar com.wallet.benchmark.HistoryFootprint [用户数，默认1000] [每用户操作数，默认2000] [归档目录]
+ * 不给归档目录时用临时目录；堆上只剩热数据块、归档块的目录和文件位置
+ */
+public final class HistoryFootprint {
+
+    private static final int MAX_HOT_CHUNKS = 16;
+    private static final Currency CNY = Currency.getInstance("CNY");
+
+    private HistoryFootprint() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        File dir = args.length > 2 ? new File(args[2]) : Files.createTempDirectory("history-footprint").toFile();
+        FileHistoryArchive archive = new FileHistoryArchive(dir);
+
+        long before = usedHeap();
+        //-1：不恢复目录里已有的归档
+        HistoryStore store = new HistoryStore(MAX_HOT_CHUNKS, archive, -1);
+        long records = fill(store, users, operations);
+        long after = usedHeap();
+
+        long bytes = after - before;
+        System.out.printf("records: %d, heap: %.1f MB, bytes/record: %.1f%n",
+                records, bytes / 1024.0 / 1024.0, (double) bytes / records);
+        //保证store在测量之后仍然可达
+        System.out.println("users: " + store.userIds().size());
+    }
+
+    private static long fill(HistoryStore store, int users, int operations) {
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        long records = 0;
+        for (int i = 0; i < users * operations; i++) {
+            String userId = new String("user-" + random.nextInt(users));
+            Money money = new Money(1 + random.nextInt(100_000), CNY);
+            Date now = new Date(time += random.nextInt(50));
+            int kind = random.nextInt(10);
+            if (kind < 7) {
+                String type = kind < 4 ? "DEPOSIT" : "WITHDRAW";
+                store.append(userId, build(userId, money, type, userId, userId, now));
+                records++;
+            } else {
+                String to = new String("user-" + random.nextInt(users));
+                TransactionRecord record = build(userId, money, "TRANSFER", userId, to, now);
+                store.append(userId, record);
+                store.append(to, record);
+                records += 2;
+            }
+        }
+        return records;
+    }
+
+    private static TransactionRecord build(String userId, Money money, String operatorType, String from, String to, Date now) {
+        return TransactionRecord.builder()
+                .from(from)
+                .to(to)
+                .operatorAmount(money.getCent())
+                .operatorCurrency(money.getCurrencyCode())
+                .operatorUserId(userId)
+                .operatorType(operatorType)
+                .gmt_create(now)
+                .gmt_modify(now)
+                .build();
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,72 @@
+package com.wallet.benchmark;
+
+import com.wallet.adapter.facade.UserFacade;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 商户收款：所有线程往同一个账户存钱和转账，对比hot=false/true（拆分成子账户），用-t 16等多线程运行
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotAccountBenchmark {
+
+    private static final long INITIAL_CENT = Long.MAX_VALUE / 4;
+    private static final String MERCHANT = "merchant";
+
+    @Param({"false", "true"})
+    private boolean hot;
+
+    @Param({"8"})
+    private int subAccounts;
+
+    @Param({"4096"})
+    private int accounts;
+
+    private AnnotationConfigApplicationContext context;
+    private UserFacade userFacade;
+    private AccountPicker picker;
+    private final Currency cny = Currency.getInstance("CNY");
+    private final Long one = 1L;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws InterruptedException {
+        System.setProperty("wallet.hot.enabled", String.valueOf(hot));
+        System.setProperty("wallet.hot.subAccounts", String.valueOf(subAccounts));
+        System.setProperty("wallet.hot.splitWritesPerSecond", "1000");
+        System.setProperty("wallet.hot.checkIntervalMillis", "100");
+        context = WalletContext.start();
+        userFacade = context.getBean(UserFacade.class);
+        picker = new AccountPicker(AccountPicker.UNIFORM, "user", accounts);
+        for (String userId : picker.all()) {
+            userFacade.deposit(userId, INITIAL_CENT, cny);
+        }
+        //先把商户账户打热，迭代开始时已经拆分
+        for (int i = 0; i < 20_000; i++) {
+            userFacade.deposit(MERCHANT, one, cny);
+        }
+        Thread.sleep(200);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Long deposit() {
+        return userFacade.deposit(MERCHANT, one, cny);
+    }
+
+    @Benchmark
+    public void pay() {
+        userFacade.transfer(picker.pick(), one, cny, MERCHANT);
+    }
+}
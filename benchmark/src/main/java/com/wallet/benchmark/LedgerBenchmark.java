@@ -0,0 +1,93 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.model.Money;
+import com.wallet.domain.service.WalletService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Currency;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单写者分片账本 vs 同步路径（CAS+分段锁），经过WalletService，含交易记录
+ * journal=true时开启预写日志，可以看到分片整批刷盘对同步路径逐笔刷盘的差别
+ * 同时输出吞吐和延迟分布，例如 java -jar target/benchmarks.jar LedgerBenchmark -t 16
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class LedgerBenchmark {
+
+    private static final long INITIAL_CENT = Long.MAX_VALUE / 4;
+
+    @Param({"false", "true"})
+    private boolean ledger;
+
+    @Param({"false", "true"})
+    private boolean journal;
+
+    @Param({"4096"})
+    private int accounts;
+
+    private AnnotationConfigApplicationContext context;
+    private WalletService walletService;
+    private String[] userIds;
+    private File journalDir;
+    private final Money one = new Money(1L, Currency.getInstance("CNY"));
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("wallet.ledger.enabled", String.valueOf(ledger));
+        if (journal) {
+            journalDir = Files.createTempDirectory("wallet-journal").toFile();
+            System.setProperty("wallet.journal.dir", journalDir.getPath());
+        } else {
+            System.clearProperty("wallet.journal.dir");
+        }
+        context = WalletContext.start();
+        walletService = context.getBean(WalletService.class);
+        Money initial = new Money(INITIAL_CENT, Currency.getInstance("CNY"));
+        userIds = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            userIds[i] = "user" + i;
+            walletService.deposit(userIds[i], initial);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        System.clearProperty("wallet.ledger.enabled");
+        System.clearProperty("wallet.journal.dir");
+        if (null != journalDir) {
+            File[] files = journalDir.listFiles();
+            if (null != files) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            journalDir.delete();
+        }
+    }
+
+    @Benchmark
+    public Object deposit() {
+        return walletService.deposit(userIds[ThreadLocalRandom.current().nextInt(accounts)], one);
+    }
+
+    @Benchmark
+    public void transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(accounts);
+        int to = random.nextInt(accounts - 1);
+        walletService.transfer(userIds[from], userIds[to >= from ? to + 1 : to], one);
+    }
+}
@@ -0,0 +1,61 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.model.Account;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 改造前WalletRepository.update + WalletService.buildAccount的读-拷贝-写实现，只用来做压测对照
+ */
+public class LegacyWallet {
+
+    private final Map<String, Account> accountMap = new ConcurrentHashMap<>();
+
+    public void deposit(String userId, long cent) {
+        update(userId, buildAccount(userId, cent));
+    }
+
+    public void withdraw(String userId, long cent) {
+        update(userId, buildAccount(userId, -cent));
+    }
+
+    /**
+     * 两条腿分开写，第二条腿失败时第一条腿已经生效
+     */
+    public void transfer(String from, String to, long cent) {
+        update(from, buildAccount(from, -cent));
+        update(to, buildAccount(to, cent));
+    }
+
+    public long balance(String userId) {
+        return query(userId).getAmount().get();
+    }
+
+    private void update(String userId, Account account) {
+        if (null != accountMap.get(userId) && accountMap.get(userId).getVersion() >= account.getVersion()) {
+            throw new RuntimeException("account balance maybe changed, please try again");
+        }
+        accountMap.put(userId, account);
+    }
+
+    private Account query(String userId) {
+        return Optional.ofNullable(accountMap.get(userId))
+                .orElse(Account.builder().amount(new AtomicLong()).version(0L).build());
+    }
+
+    private Account buildAccount(String userId, long cent) {
+        Account origin = query(userId);
+        //原实现用addAndGet改了已发布的旧对象，version冲突重试时会重复记账；这里不改旧对象，保留读-拷贝-写的开销
+        return Account.builder()
+                .amount(new AtomicLong(origin.getAmount().get() + cent))
+                .userId(userId)
+                .version(origin.getVersion() + 1)
+                .gmt_create(new Date())
+                .gmt_modify(new Date())
+                .build();
+    }
+}
@@ -0,0 +1,67 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.metrics.OperationMetrics;
+import com.wallet.domain.metrics.WalletMetrics;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监控埋点本身的开销：一次存钱经过的埋点是一次操作记录加一次仓储调用记录，
+ * 和FacadeBenchmark.deposit的单次耗时相比得到开销占比
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Param({"true", "false"})
+    private boolean enabled;
+
+    private AnnotationConfigApplicationContext context;
+    private WalletMetrics metrics;
+    private OperationMetrics call;
+    private AccountPicker picker;
+
+    @Setup
+    public void setUp() {
+        System.setProperty("wallet.metrics.enabled", String.valueOf(enabled));
+        context = WalletContext.start();
+        metrics = context.getBean(WalletMetrics.class);
+        call = metrics.call("benchmark");
+        picker = new AccountPicker(AccountPicker.UNIFORM, "user", 4096);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * moneyOperatorTemplate和WalletRepository追加交易记录（updateRecord）上的埋点
+     */
+    @Benchmark
+    public void depositInstrumentation() {
+        long start = metrics.start();
+        long callStart = metrics.start();
+        call.latency(callStart);
+        metrics.operation("DEPOSIT", picker.pick(), start, true);
+    }
+
+    /**
+     * 对照：只选账户
+     */
+    @Benchmark
+    public String baseline() {
+        return picker.pick();
+    }
+
+    @Benchmark
+    public String scrape() {
+        return metrics.scrape();
+    }
+}
@@ -0,0 +1,72 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.model.Money;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Money构造和运算，每次请求都会走到，是分配和BigDecimal开销的主要来源
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoneyBenchmark {
+
+    private final Currency cny = Currency.getInstance("CNY");
+    private long cent = 12345;
+    private String amount = "123.45";
+    private Money left;
+    private Money right;
+
+    @Setup
+    public void setUp() {
+        left = new Money(cent, cny);
+        right = new Money(678L, cny);
+    }
+
+    @Benchmark
+    public Money fromCent() {
+        return new Money(cent, cny);
+    }
+
+    @Benchmark
+    public Money fromString() {
+        return new Money(amount, cny);
+    }
+
+    @Benchmark
+    public Money fromBigDecimal() {
+        return new Money(new BigDecimal(amount), cny);
+    }
+
+    @Benchmark
+    public Money add() {
+        return left.add(right);
+    }
+
+    @Benchmark
+    public Money subtract() {
+        return left.subtract(right);
+    }
+
+    @Benchmark
+    public Money multiply() {
+        return left.multiply(3L);
+    }
+
+    @Benchmark
+    public int compare() {
+        return left.compareTo(right);
+    }
+
+    @Benchmark
+    public String amountString() {
+        return left.getAmountString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.wallet.benchmark;
+
+import com.wallet.application.UserService;
+import com.wallet.application.dto.OperatorRecord;
+import com.wallet.application.dto.RecordPage;
+import com.wallet.domain.model.Money;
+import com.wallet.domain.service.WalletService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Currency;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 交易记录查询，包含领域记录到OperatorRecord的转换，成本和记录数成正比
+ * queryTransactionRecord按下标随机访问，iterateTransactionRecord按块顺序遍历
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryRecordBenchmark {
+
+    private static final String USER_ID = "history";
+
+    @Param({"10", "1000", "100000"})
+    private int records;
+
+    private AnnotationConfigApplicationContext context;
+    private UserService userService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = WalletContext.start();
+        userService = context.getBean(UserService.class);
+        WalletService walletService = context.getBean(WalletService.class);
+        Money one = new Money(1L, Currency.getInstance("CNY"));
+        for (int i = 0; i < records; i++) {
+            walletService.deposit(USER_ID, one);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * 返回的是视图，逐条读出来才算完整的查询成本
+     */
+    @Benchmark
+    public void queryTransactionRecord(Blackhole blackhole) {
+        List<OperatorRecord> operatorRecords = userService.queryTransactionRecord(USER_ID);
+        for (int i = 0, size = operatorRecords.size(); i < size; i++) {
+            blackhole.consume(operatorRecords.get(i));
+        }
+    }
+
+    /**
+     * 最近50条，耗时不应随记录数增长
+     */
+    @Benchmark
+    public RecordPage latestPage() {
+        return userService.queryTransactionRecord(USER_ID, null, null, null, null, 50);
+    }
+
+    @Benchmark
+    public RecordPage latestDepositPage() {
+        return userService.queryTransactionRecord(USER_ID, null, null, WalletService.DEPOSIT, null, 50);
+    }
+
+    @Benchmark
+    public void iterateTransactionRecord(Blackhole blackhole) {
+        Iterator<OperatorRecord> iterator = userService.iterateTransactionRecord(USER_ID);
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.wallet.benchmark;
+
+import com.alibaba.fastjson.JSON;
+import com.wallet.application.StatementFormat;
+import com.wallet.application.StatementService;
+import com.wallet.application.UserService;
+import com.wallet.domain.model.Money;
+import com.wallet.domain.service.WalletService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个用户的账单导出：流式写CSV/二进制，对比先查出全部记录再转JSON
+ * 输出写进丢弃数据的通道，只测编码和遍历
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatementBenchmark {
+
+    private static final String USER_ID = "statement";
+
+    @Param({"1000", "100000"})
+    private int records;
+
+    private AnnotationConfigApplicationContext context;
+    private StatementService statementService;
+    private UserService userService;
+    private final DiscardChannel channel = new DiscardChannel();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = WalletContext.start();
+        statementService = context.getBean(StatementService.class);
+        userService = context.getBean(UserService.class);
+        WalletService walletService = context.getBean(WalletService.class);
+        Money one = new Money(1L, Currency.getInstance("CNY"));
+        for (int i = 0; i < records; i++) {
+            walletService.deposit(USER_ID, one);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long csv() throws IOException {
+        statementService.export(USER_ID, null, null, StatementFormat.CSV, channel);
+        return channel.written;
+    }
+
+    @Benchmark
+    public long binary() throws IOException {
+        statementService.export(USER_ID, null, null, StatementFormat.BINARY, channel);
+        return channel.written;
+    }
+
+    /**
+     * 原来的做法：整个列表转成一个JSON字符串
+     */
+    @Benchmark
+    public int json() {
+        return JSON.toJSONString(userService.queryTransactionRecord(USER_ID)).length();
+    }
+
+    private static final class DiscardChannel implements WritableByteChannel {
+
+        long written;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            written += remaining;
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
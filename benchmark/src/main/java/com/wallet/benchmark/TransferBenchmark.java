@@ -0,0 +1,88 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.service.BalanceEngine;
+import com.wallet.domain.service.TransferEngine;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 转账竞争压测：分段锁转账引擎 vs 改造前两次update的实现，只比较余额变更，不含交易记录
+ * accounts越小，转账涉及同一账户的概率越高；legacy遇到version冲突只重试失败的那条腿（整笔重试会把已经生效的扣款再扣一次）
+ * 线程数用 -t 指定，例如 java -jar target/benchmarks.jar TransferBenchmark -t 16
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class TransferBenchmark {
+
+    private static final long INITIAL_CENT = Long.MAX_VALUE / 4;
+
+    @Param({"2", "64", "4096"})
+    private int accounts;
+
+    private AnnotationConfigApplicationContext context;
+    private TransferEngine transferEngine;
+    private LegacyWallet legacyWallet;
+    private String[] userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = WalletContext.start();
+        transferEngine = context.getBean(TransferEngine.class);
+        BalanceEngine balanceEngine = context.getBean(BalanceEngine.class);
+        legacyWallet = new LegacyWallet();
+        userIds = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            userIds[i] = "user" + i;
+            balanceEngine.apply(userIds[i], INITIAL_CENT, "CNY");
+            legacyWallet.deposit(userIds[i], INITIAL_CENT);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Object stripedTransfer() {
+        int[] pair = pickPair();
+        return transferEngine.transfer(userIds[pair[0]], userIds[pair[1]], 1, "CNY");
+    }
+
+    @Benchmark
+    public int legacyTransfer() {
+        int[] pair = pickPair();
+        int retries = 0;
+        for (; ; ) {
+            try {
+                legacyWallet.withdraw(userIds[pair[0]], 1);
+                break;
+            } catch (RuntimeException e) {
+                retries++;
+            }
+        }
+        for (; ; ) {
+            try {
+                legacyWallet.deposit(userIds[pair[1]], 1);
+                return retries;
+            } catch (RuntimeException e) {
+                retries++;
+            }
+        }
+    }
+
+    private int[] pickPair() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(accounts);
+        int to = random.nextInt(accounts - 1);
+        return new int[]{from, to >= from ? to + 1 : to};
+    }
+}
@@ -0,0 +1,51 @@
+package com.wallet.benchmark;
+
+import com.wallet.application.ValidationContext;
+import com.wallet.application.ValidatorManager;
+import com.wallet.domain.service.WalletService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 校验链单次耗时，热路径上的目标是远小于1us
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+
+    private AnnotationConfigApplicationContext context;
+    private ValidatorManager validatorManager;
+    private final Currency cny = Currency.getInstance("CNY");
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = WalletContext.start();
+        validatorManager = context.getBean(ValidatorManager.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public ValidationContext deposit() {
+        ValidationContext validationContext = new ValidationContext(WalletService.DEPOSIT, "user1", null, 100L, cny);
+        validatorManager.validate(validationContext);
+        return validationContext;
+    }
+
+    @Benchmark
+    public ValidationContext transfer() {
+        ValidationContext validationContext = new ValidationContext(WalletService.TRANSFER, "user1", "user2", 100L, cny);
+        validatorManager.validate(validationContext);
+        return validationContext;
+    }
+}
@@ -0,0 +1,16 @@
+package com.wallet.benchmark;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+/**
+ * 压测用的spring容器，扫描整个wallet包，和线上装配方式一致
+ */
+public final class WalletContext {
+
+    private WalletContext() {
+    }
+
+    public static AnnotationConfigApplicationContext start() {
+        return new AnnotationConfigApplicationContext("com.wallet");
+    }
+}
@@ -0,0 +1,71 @@
+package com.wallet.benchmark;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.Money;
+import com.wallet.domain.service.WalletService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Currency;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 领域服务存取转，含交易记录和余额校验
+ * 线程数不写死，用 -t 指定，或者用BenchmarkRunner一次跑完1/4/16/64线程
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletServiceBenchmark {
+
+    private static final long INITIAL_CENT = Long.MAX_VALUE / 4;
+
+    @Param({AccountPicker.UNIFORM, AccountPicker.ZIPF})
+    private String distribution;
+
+    @Param({"4096"})
+    private int accounts;
+
+    private AnnotationConfigApplicationContext context;
+    private WalletService walletService;
+    private AccountPicker picker;
+    private final Money one = new Money(1L, Currency.getInstance("CNY"));
+
+    /**
+     * 每轮迭代重建容器，交易记录只增不减，跨迭代累积会让后面的迭代越来越慢
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        context = WalletContext.start();
+        walletService = context.getBean(WalletService.class);
+        picker = new AccountPicker(distribution, "user", accounts);
+        Money initial = new Money(INITIAL_CENT, Currency.getInstance("CNY"));
+        for (String userId : picker.all()) {
+            walletService.deposit(userId, initial);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Account deposit() {
+        return walletService.deposit(picker.pick(), one);
+    }
+
+    @Benchmark
+    public Account withdraw() {
+        return walletService.withdraw(picker.pick(), one);
+    }
+
+    @Benchmark
+    public void transfer() {
+        String[] pair = picker.pickPair();
+        walletService.transfer(pair[0], pair[1], one);
+    }
+}
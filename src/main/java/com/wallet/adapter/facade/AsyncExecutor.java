@@ -0,0 +1,124 @@
+package com.wallet.adapter.facade;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 异步门面的执行器：运行在JDK21及以上且开启wallet.async.virtualThreads时每个请求一个虚拟线程，否则用固定大小的线程池
+ * <p>
+ * 背压：在途请求（排队+执行中）不超过wallet.async.maxInFlight，超过时直接返回失败的future，不排队、不阻塞调用方
+ */
+@Component
+public class AsyncExecutor {
+
+    private static final Log LOG = LogFactory.getLog(AsyncExecutor.class);
+
+    @Value("${wallet.async.virtualThreads:true}")
+    private boolean virtualThreads;
+    /**
+     * 线程池大小，不用虚拟线程时生效，默认CPU核数的2倍
+     */
+    @Value("${wallet.async.threads:0}")
+    private int threads;
+    @Value("${wallet.async.maxInFlight:10000}")
+    private int maxInFlight;
+
+    private ExecutorService executor;
+    private Semaphore permits;
+
+    @PostConstruct
+    private void init() {
+        permits = new Semaphore(maxInFlight);
+        executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (null == executor) {
+            int size = threads > 0 ? threads : 2 * Runtime.getRuntime().availableProcessors();
+            AtomicInteger index = new AtomicInteger();
+            //队列长度由permits限制
+            executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "wallet-async-" + index.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @PreDestroy
+    private void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return 任务的结果；在途请求已满时返回以RejectedExecutionException失败的future
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        if (!permits.tryAcquire()) {
+            return rejected();
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //执行器已关闭
+            permits.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return 当前在途请求数
+     */
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public boolean isVirtual() {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    private static <T> CompletableFuture<T> rejected() {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new RejectedExecutionException("too many in-flight requests"));
+        return future;
+    }
+
+    /**
+     * 工程按1.8编译，虚拟线程只能反射创建
+     *
+     * @return 当前JDK不支持时返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.info("virtual threads not available, use platform thread pool");
+            return null;
+        }
+    }
+}
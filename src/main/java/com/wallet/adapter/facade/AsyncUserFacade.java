@@ -0,0 +1,176 @@
+package com.wallet.adapter.facade;
+
+import com.wallet.application.UserService;
+import com.wallet.application.dto.OperatorRecord;
+import com.wallet.application.dto.RecordPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+
+import java.util.Currency;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * UserFacade的异步版本，调用方线程只负责提交，不等待钱包处理（含日志刷盘）
+ * 所有方法立即返回；在途请求过多时返回的future以RejectedExecutionException失败，业务异常同步版本一样原样传出
+ * 回调默认在钱包的执行线程上运行，耗时的后续处理请用*Async并指定自己的执行器
+ */
+@Controller
+public class AsyncUserFacade {
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private AsyncExecutor executor;
+
+    /**
+     * 存钱
+     * @param userId 用户标识
+     * @param amount 金额
+     * @param currency 币种
+     * @return 存后金额
+     */
+    public CompletableFuture<Long> deposit(String userId, Long amount, Currency currency) {
+        return executor.submit(() -> userService.deposit(userId, amount, currency));
+    }
+
+
+    /**
+     * 取钱
+     * @param userId 用户标识
+     * @param amount 金额
+     * @param currency 币种
+     * @return 取后金额
+     */
+    public CompletableFuture<Long> withdraw(String userId, Long amount, Currency currency) {
+        return executor.submit(() -> userService.withdraw(userId, amount, currency));
+    }
+
+
+    /**
+     * 转账
+     * @param userId 来源
+     * @param amount 金额
+     * @param currency 币种
+     * @param targetUserId 去向
+     * @return 转账完成时完成
+     */
+    public CompletableFuture<Void> transfer(String userId, Long amount, Currency currency, String targetUserId) {
+        return executor.submit(() -> {
+            userService.transfer(userId, targetUserId, amount, currency);
+            return null;
+        });
+    }
+
+
+    /**
+     * 跨币种转账
+     * @param targetCurrency 到账币种，按当前汇率换算
+     * @return 转账完成时完成
+     */
+    public CompletableFuture<Void> transfer(String userId, Long amount, Currency currency, String targetUserId, Currency targetCurrency) {
+        return executor.submit(() -> {
+            userService.transfer(userId, targetUserId, amount, currency, targetCurrency);
+            return null;
+        });
+    }
+
+
+    /**
+     * 幂等存钱
+     * @param requestId 请求号，用户内唯一
+     * @return 存后金额，重复请求返回第一次的结果
+     */
+    public CompletableFuture<Long> deposit(String userId, Long amount, Currency currency, String requestId) {
+        return executor.submit(() -> userService.deposit(userId, amount, currency, requestId));
+    }
+
+
+    /**
+     * 幂等取钱
+     * @param requestId 请求号，用户内唯一
+     * @return 取后金额，重复请求返回第一次的结果
+     */
+    public CompletableFuture<Long> withdraw(String userId, Long amount, Currency currency, String requestId) {
+        return executor.submit(() -> userService.withdraw(userId, amount, currency, requestId));
+    }
+
+
+    /**
+     * 幂等转账
+     * @param requestId 请求号，转账人内唯一
+     * @return 转账完成时完成
+     */
+    public CompletableFuture<Void> transfer(String userId, Long amount, Currency currency, String targetUserId, String requestId) {
+        return executor.submit(() -> {
+            userService.transfer(userId, targetUserId, amount, currency, requestId);
+            return null;
+        });
+    }
+
+
+    /**
+     * 幂等跨币种转账
+     * @param targetCurrency 到账币种，按当前汇率换算
+     * @param requestId 请求号，转账人内唯一
+     * @return 转账完成时完成
+     */
+    public CompletableFuture<Void> transfer(String userId, Long amount, Currency currency, String targetUserId, Currency targetCurrency, String requestId) {
+        return executor.submit(() -> {
+            userService.transfer(userId, targetUserId, amount, currency, targetCurrency, requestId);
+            return null;
+        });
+    }
+
+
+    /**
+     * 查询默认币种（CNY）的余额
+     * @param userId 用户标识
+     * @return 余额，没有默认币种为0
+     * @deprecated 只看默认币种，用queryBalance(userId, currency)
+     */
+    @Deprecated
+    public CompletableFuture<Long> queryBalance(String userId) {
+        return executor.submit(() -> userService.queryBalance(userId));
+    }
+
+
+    /**
+     * 查询某个币种的余额
+     * @return 余额，没有这个币种为0
+     */
+    public CompletableFuture<Long> queryBalance(String userId, Currency currency) {
+        return executor.submit(() -> userService.queryBalance(userId, currency));
+    }
+
+
+    /**
+     * 查询全部币种的余额
+     * @return 币种代码 -> 余额，只包含不为0的币种
+     */
+    public CompletableFuture<Map<String, Long>> queryBalances(String userId) {
+        return executor.submit(() -> userService.queryBalances(userId));
+    }
+
+
+    /**
+     * 查询历史账单
+     * @param userId 用户标识
+     * @return 历史账单信息
+     */
+    public CompletableFuture<List<OperatorRecord>> queryTransactionRecord(String userId) {
+        return executor.submit(() -> userService.queryTransactionRecord(userId));
+    }
+
+
+    /**
+     * 按时间区间、类型分页查询历史账单，参数同UserFacade
+     * @return 本页账单（新的在前）和下一页游标
+     */
+    public CompletableFuture<RecordPage> queryTransactionRecord(String userId, Date from, Date to, String operatorType, Long cursor, int limit) {
+        return executor.submit(() -> userService.queryTransactionRecord(userId, from, to, operatorType, cursor, limit));
+    }
+}
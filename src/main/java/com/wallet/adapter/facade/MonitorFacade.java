@@ -0,0 +1,54 @@
+package com.wallet.adapter.facade;
+
+import com.wallet.application.MonitorService;
+import com.wallet.domain.model.ReconciliationReport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+
+import java.util.Map;
+
+/**
+ * 运维监控，给指标采集和排查热点用
+ */
+@Controller
+public class MonitorFacade {
+
+    @Autowired
+    private MonitorService monitorService;
+
+    /**
+     * 全部指标
+     * @return Prometheus文本格式，可以直接作为/metrics的响应
+     */
+    public String scrape() {
+        return monitorService.scrape();
+    }
+
+
+    /**
+     * 最近请求最多的账户
+     * @param limit 个数
+     * @return userId -> 估计的请求数，按请求数倒序
+     */
+    public Map<String, Long> hotAccounts(int limit) {
+        return monitorService.hotAccounts(limit);
+    }
+
+
+    /**
+     * 立即对一次账，不阻塞钱包变更，同一时刻只有一次在执行
+     * @return 对账报告，包括对不上的账户和各币种合计
+     */
+    public ReconciliationReport reconcile() throws InterruptedException {
+        return monitorService.reconcile();
+    }
+
+
+    /**
+     * 最近一次对账的报告（包括wallet.reconcile.intervalMinutes定时执行的）
+     * @return 还没对过账时为空
+     */
+    public ReconciliationReport lastReconciliation() {
+        return monitorService.lastReconciliation();
+    }
+}
@@ -0,0 +1,48 @@
+package com.wallet.adapter.facade;
+
+import com.wallet.application.StatementFormat;
+import com.wallet.application.StatementService;
+import com.wallet.application.dto.StatementExport;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+/**
+ * 账单导出，给对账和财务用，历史再长也不会把记录整体读进内存
+ */
+@Controller
+public class StatementFacade {
+
+    @Autowired
+    private StatementService statementService;
+
+    /**
+     * 导出一个用户的账单
+     * @param userId 用户标识
+     * @param from 开始时间（含），可为空
+     * @param to 结束时间（不含），可为空
+     * @param format 格式
+     * @param channel 输出通道，比如文件或者HTTP响应，调用方负责关闭
+     * @return 导出的记录数
+     */
+    public long exportStatement(String userId, Date from, Date to, StatementFormat format, WritableByteChannel channel) throws IOException {
+        return statementService.export(userId, from, to, format, channel);
+    }
+
+
+    /**
+     * 导出全部用户的账单，比如月结
+     * @param from 开始时间（含），可为空
+     * @param to 结束时间（不含），可为空
+     * @param format 格式
+     * @param dir 导出目录
+     * @return 导出的文件和记录数
+     */
+    public StatementExport exportStatements(Date from, Date to, StatementFormat format, File dir) throws IOException {
+        return statementService.exportAll(from, to, format, dir);
+    }
+}
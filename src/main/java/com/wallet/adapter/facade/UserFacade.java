@@ -1,12 +1,19 @@
 package com.wallet.adapter.facade;
 
 import com.wallet.application.UserService;
+import com.wallet.application.dto.BatchItem;
+import com.wallet.application.dto.BatchResult;
 import com.wallet.application.dto.OperatorRecord;
+import com.wallet.application.dto.RecordPage;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 
+import java.math.BigDecimal;
 import java.util.Currency;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 定义用户可操作的功能（区别于应用层接口，这个接口所有的语义都是去业务特性和去领域模型语义的）
@@ -55,15 +62,184 @@ public class UserFacade {
 
 
     /**
-     * 查询余额
+     * 跨币种转账
+     * @param userId 转账人标识
+     * @param amount 转账金额
+     * @param currency 扣款币种
+     * @param targetUserId 到账人标识
+     * @param targetCurrency 到账币种，按当前汇率换算
+     */
+    public void transfer(String userId, Long amount, Currency currency, String targetUserId, Currency targetCurrency) {
+        userService.transfer(userId, targetUserId, amount, currency, targetCurrency);
+    }
+
+
+    /**
+     * 幂等存钱，超时重试时带同一个请求号，只会入账一次
+     * @param userId 用户标识
+     * @param amount 金额
+     * @param currency 币种
+     * @param requestId 请求号，用户内唯一
+     * @return 存后金额，重复请求返回第一次的结果
+     */
+    public Long deposit(String userId, Long amount, Currency currency, String requestId) {
+        return userService.deposit(userId, amount, currency, requestId);
+    }
+
+
+    /**
+     * 幂等取钱
+     * @param userId 用户标识
+     * @param amount 金额
+     * @param currency 币种
+     * @param requestId 请求号，用户内唯一
+     * @return 取后金额，重复请求返回第一次的结果
+     */
+    public Long withdraw(String userId, Long amount, Currency currency, String requestId) {
+        return userService.withdraw(userId, amount, currency, requestId);
+    }
+
+
+    /**
+     * 幂等转账
+     * @param userId 转账人标识
+     * @param amount 转账金额
+     * @param currency 转账币种
+     * @param targetUserId 到账人标识
+     * @param requestId 请求号，转账人内唯一
+     */
+    public void transfer(String userId, Long amount, Currency currency, String targetUserId, String requestId) {
+        userService.transfer(userId, targetUserId, amount, currency, requestId);
+    }
+
+
+    /**
+     * 幂等跨币种转账
+     * @param userId 转账人标识
+     * @param amount 转账金额
+     * @param currency 扣款币种
+     * @param targetUserId 到账人标识
+     * @param targetCurrency 到账币种，按当前汇率换算
+     * @param requestId 请求号，转账人内唯一
+     */
+    public void transfer(String userId, Long amount, Currency currency, String targetUserId, Currency targetCurrency, String requestId) {
+        userService.transfer(userId, targetUserId, amount, currency, targetCurrency, requestId);
+    }
+
+
+    /**
+     * 批量存钱
+     * @param items 明细（userId、金额、币种）
+     * @return 按明细顺序的结果
+     */
+    public BatchResult batchDeposit(List<BatchItem> items) {
+        return userService.batchDeposit(items);
+    }
+
+
+    /**
+     * 批量取钱
+     * @param items 明细（userId、金额、币种）
+     * @return 按明细顺序的结果
+     */
+    public BatchResult batchWithdraw(List<BatchItem> items) {
+        return userService.batchWithdraw(items);
+    }
+
+
+    /**
+     * 批量转账
+     * @param items 明细（转账人、到账人、金额、币种）
+     * @return 按明细顺序的结果
+     */
+    public BatchResult batchTransfer(List<BatchItem> items) {
+        return userService.batchTransfer(items);
+    }
+
+
+    /**
+     * 冻结账户
      * @param userId 用户标识
-     * @return 余额
      */
+    public void freeze(String userId) {
+        userService.freeze(userId);
+    }
+
+
+    /**
+     * 解冻账户
+     * @param userId 用户标识
+     */
+    public void unfreeze(String userId) {
+        userService.unfreeze(userId);
+    }
+
+
+    /**
+     * 设置单笔金额上限
+     * @param userId 用户标识
+     * @param maxAmount 单笔上限（分）
+     */
+    public void limitAmountPerOperation(String userId, long maxAmount) {
+        userService.limitAmountPerOperation(userId, maxAmount);
+    }
+
+
+    /**
+     * 调整流控，立即生效，超限的请求直接失败
+     * @param globalRate 全局每秒请求数，0为不限
+     * @param globalBurst 全局突发量，0取globalRate
+     * @param userRate 单个用户每秒请求数，0为不限
+     * @param userBurst 单个用户突发量，0取userRate
+     */
+    public void limitRate(long globalRate, long globalBurst, long userRate, long userBurst) {
+        userService.limitRate(globalRate, globalBurst, userRate, userBurst);
+    }
+
+
+    /**
+     * 查询默认币种（CNY）的余额，多币种账户用queryBalance(userId, currency)或queryBalances
+     * @param userId 用户标识
+     * @return 余额，没有默认币种为0
+     * @deprecated 只看默认币种，用queryBalance(userId, currency)
+     */
+    @Deprecated
     public Long queryBalance(String userId) {
         return userService.queryBalance(userId);
     }
 
 
+    /**
+     * 查询某个币种的余额
+     * @param userId 用户标识
+     * @param currency 币种
+     * @return 余额，没有这个币种为0
+     */
+    public Long queryBalance(String userId, Currency currency) {
+        return userService.queryBalance(userId, currency);
+    }
+
+
+    /**
+     * 查询全部币种的余额
+     * @param userId 用户标识
+     * @return 币种代码 -> 余额，只包含不为0的币种
+     */
+    public Map<String, Long> queryBalances(String userId) {
+        return userService.queryBalances(userId);
+    }
+
+
+    /**
+     * 更新汇率
+     * @param base 基准币种
+     * @param quotes 1个基准币种可以换多少该币种
+     */
+    public void updateExchangeRates(Currency base, Map<String, BigDecimal> quotes) {
+        userService.updateExchangeRates(base, quotes);
+    }
+
+
     /**
      * 查询历史账单
      * @param userId  用户标识
@@ -72,4 +248,41 @@ public class UserFacade {
     public List<OperatorRecord> queryTransactionRecord(String userId) {
         return userService.queryTransactionRecord(userId);
     }
+
+
+    /**
+     * 分页查询最近的历史账单
+     * @param userId 用户标识
+     * @param cursor 上一页返回的游标，第一页传空
+     * @param limit 页大小
+     * @return 本页账单（新的在前）和下一页游标
+     */
+    public RecordPage queryTransactionRecord(String userId, Long cursor, int limit) {
+        return userService.queryTransactionRecord(userId, null, null, null, cursor, limit);
+    }
+
+
+    /**
+     * 按时间区间、类型分页查询历史账单
+     * @param userId 用户标识
+     * @param from 开始时间（含），可为空
+     * @param to 结束时间（不含），可为空
+     * @param operatorType 操作类型（DEPOSIT/WITHDRAW/TRANSFER），可为空
+     * @param cursor 上一页返回的游标，第一页传空
+     * @param limit 页大小
+     * @return 本页账单（新的在前）和下一页游标
+     */
+    public RecordPage queryTransactionRecord(String userId, Date from, Date to, String operatorType, Long cursor, int limit) {
+        return userService.queryTransactionRecord(userId, from, to, operatorType, cursor, limit);
+    }
+
+
+    /**
+     * 流式查询历史账单，适合记录很多的用户（导出、对账）
+     * @param userId 用户标识
+     * @return 按时间顺序的账单迭代器
+     */
+    public Iterator<OperatorRecord> iterateTransactionRecord(String userId) {
+        return userService.iterateTransactionRecord(userId);
+    }
 }
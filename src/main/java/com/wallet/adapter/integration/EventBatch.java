@@ -0,0 +1,116 @@
+package com.wallet.adapter.integration;
+
+import com.alibaba.fastjson.JSON;
+import com.wallet.domain.model.BalanceChangeEvent;
+import lombok.Builder;
+import lombok.Data;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 一批事件，内容是每行一个事件的JSON，可选GZIP压缩
+ */
+@Data
+@Builder
+public class EventBatch {
+    /**
+     * 第一个事件的sequence
+     */
+    private long firstSequence;
+    /**
+     * 最后一个事件的sequence
+     */
+    private long lastSequence;
+    /**
+     * 事件个数
+     */
+    private int count;
+    /**
+     * payload是否GZIP压缩
+     */
+    private boolean compressed;
+    private byte[] payload;
+
+    /**
+     * 字段固定，手写JSON，比反射序列化快几倍；压缩用最快档，批内重复的字段名已经能压到十分之一左右
+     */
+    public static EventBatch encode(List<BalanceChangeEvent> events, boolean compress) {
+        StringBuilder json = new StringBuilder(160 * events.size());
+        for (BalanceChangeEvent event : events) {
+            json.append("{\"sequence\":").append(event.getSequence())
+                    .append(",\"leg\":").append(event.getLeg());
+            string(json.append(",\"operatorType\":"), event.getOperatorType());
+            string(json.append(",\"userId\":"), event.getUserId());
+            json.append(",\"balance\":").append(event.getBalance());
+            string(json.append(",\"currency\":"), event.getCurrency());
+            json.append(",\"version\":").append(event.getVersion())
+                    .append(",\"gmt_create\":").append(null == event.getGmt_create() ? null : event.getGmt_create().getTime())
+                    .append("}\n");
+        }
+        byte[] plain = json.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = plain;
+        if (compress) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 8 + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes, 8192) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            }) {
+                out.write(plain);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            payload = bytes.toByteArray();
+        }
+        return EventBatch.builder()
+                .firstSequence(events.get(0).getSequence())
+                .lastSequence(events.get(events.size() - 1).getSequence())
+                .count(events.size())
+                .compressed(compress)
+                .payload(payload)
+                .build();
+    }
+
+    private static void string(StringBuilder json, String value) {
+        if (null == value) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ('"' == c || '\\' == c) {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    public List<BalanceChangeEvent> decode() {
+        List<BalanceChangeEvent> events = new ArrayList<>(count);
+        try (InputStream in = compressed ? new GZIPInputStream(new ByteArrayInputStream(payload)) : new ByteArrayInputStream(payload);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            for (String line; null != (line = reader.readLine()); ) {
+                events.add(JSON.parseObject(line, BalanceChangeEvent.class));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,13 @@
+package com.wallet.adapter.integration;
+
+import java.io.IOException;
+
+/**
+ * 余额变更事件的投递目标（消息队列、下游接口等），定义成Spring bean即替换内置的memory/file实现
+ * <p>
+ * 由发布线程单线程调用；抛异常表示这批没有送达，发布者退避后原样重发，因此同一批可能收到多次
+ */
+public interface EventSink {
+
+    void send(EventBatch batch) throws IOException;
+}
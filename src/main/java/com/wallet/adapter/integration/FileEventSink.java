@@ -0,0 +1,69 @@
+package com.wallet.adapter.integration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 把事件追加到本地文件（wallet.event.sink=file），每批写完刷盘后才算送达
+ * 压缩的批次写进events.jsonl.gz，多个GZIP成员首尾相接仍是合法的GZIP文件，zcat可以直接读；不压缩的写进events.jsonl
+ */
+public class FileEventSink implements EventSink {
+
+    private final File dir;
+    private FileChannel plain;
+    private FileChannel gzip;
+
+    public FileEventSink(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create " + dir);
+        }
+        this.dir = dir;
+    }
+
+    @Override
+    public void send(EventBatch batch) throws IOException {
+        FileChannel channel = batch.isCompressed() ? gzip() : plain();
+        long size = channel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(batch.getPayload());
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            //写了一半的批次截掉，重发时不会留下残缺的行
+            channel.truncate(size);
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        if (null != plain) {
+            plain.close();
+        }
+        if (null != gzip) {
+            gzip.close();
+        }
+    }
+
+    private FileChannel plain() throws IOException {
+        if (null == plain) {
+            plain = open("events.jsonl");
+        }
+        return plain;
+    }
+
+    private FileChannel gzip() throws IOException {
+        if (null == gzip) {
+            gzip = open("events.jsonl.gz");
+        }
+        return gzip;
+    }
+
+    private FileChannel open(String name) throws IOException {
+        return FileChannel.open(new File(dir, name).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,34 @@
+package com.wallet.adapter.integration;
+
+import com.wallet.domain.model.BalanceChangeEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把事件批次留在内存里，联调和测试用（wallet.event.sink=memory）
+ */
+public class MemoryEventSink implements EventSink {
+
+    private final List<EventBatch> batches = new ArrayList<>();
+
+    @Override
+    public synchronized void send(EventBatch batch) {
+        batches.add(batch);
+    }
+
+    public synchronized List<EventBatch> getBatches() {
+        return new ArrayList<>(batches);
+    }
+
+    /**
+     * @return 解码后的全部事件，按发布顺序
+     */
+    public List<BalanceChangeEvent> events() {
+        List<BalanceChangeEvent> events = new ArrayList<>();
+        for (EventBatch batch : getBatches()) {
+            events.addAll(batch.decode());
+        }
+        return events;
+    }
+}
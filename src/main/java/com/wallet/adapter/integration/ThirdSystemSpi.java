@@ -1,7 +1,188 @@
 package com.wallet.adapter.integration;
 
+import com.wallet.domain.metrics.WalletMetrics;
+import com.wallet.domain.model.BalanceChangeEvent;
+import com.wallet.domain.repository.EventOutbox;
+import com.wallet.domain.repository.WalletRepository;
+import com.wallet.domain.service.HotAccountSplitter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * 定义和第三方系统交互的SPI，比如event事件通知，调用渠道
+ * <p>
+ * 事件通知：后台线程从发件箱（EventOutbox）取余额变更事件，攒批、压缩后交给EventSink；发送失败按指数退避重发同一批，
+ * 重发期间不取新事件，积压留在发件箱里：持久化模式在日志里，不反压到钱包变更；纯内存模式队列满了变更等待（背压），不丢事件
+ * <p>
+ * 投递目标：容器里有EventSink类型的bean时用它，否则按wallet.event.sink选择：none不发布，memory留在内存，file写本地文件
  */
+@Component
 public class ThirdSystemSpi {
+
+    private static final Log LOG = LogFactory.getLog(ThirdSystemSpi.class);
+
+    private static final long MIN_BACKOFF_MILLIS = 10;
+
+    @Value("${wallet.event.sink:none}")
+    private String sinkType;
+    /**
+     * file投递的目录
+     */
+    @Value("${wallet.event.dir:events}")
+    private String dir;
+    /**
+     * 每批最多取的变更数
+     */
+    @Value("${wallet.event.batchSize:1024}")
+    private int batchSize;
+    /**
+     * 不满一批时最多再等的时间，流量小时用延迟换批次大小
+     */
+    @Value("${wallet.event.lingerMillis:10}")
+    private long lingerMillis;
+    /**
+     * 纯内存模式下发件箱最多积压的事件数
+     */
+    @Value("${wallet.event.queueCapacity:100000}")
+    private int queueCapacity;
+    @Value("${wallet.event.compress:true}")
+    private boolean compress;
+    @Value("${wallet.event.maxBackoffMillis:5000}")
+    private long maxBackoffMillis;
+
+    @Autowired
+    private WalletRepository repository;
+    @Autowired
+    private WalletMetrics metrics;
+    @Autowired
+    private HotAccountSplitter splitter;
+    @Autowired(required = false)
+    private EventSink customSink;
+
+    private EventSink sink;
+    private EventOutbox outbox;
+    private Thread publisher;
+    private volatile boolean running;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @PostConstruct
+    private void init() throws IOException {
+        sink = null != customSink ? customSink : createSink();
+        if (null == sink) {
+            return;
+        }
+        outbox = repository.openOutbox(queueCapacity);
+        metrics.counter("wallet_events_published_total", published::sum);
+        metrics.counter("wallet_event_send_failures_total", failures::sum);
+        metrics.counter("wallet_event_backpressure_waits_total", outbox::getBlocked);
+        running = true;
+        publisher = new Thread(this::publish, "wallet-event-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    /**
+     * 停止前把已经取到的事件再发一次；持久化模式下没发出去的重启后从检查点重发，纯内存模式下丢失
+     */
+    @PreDestroy
+    private void close() throws IOException, InterruptedException {
+        if (null == publisher) {
+            return;
+        }
+        running = false;
+        //不用interrupt：FileChannel被中断会直接关闭
+        LockSupport.unpark(publisher);
+        publisher.join(maxBackoffMillis + TimeUnit.SECONDS.toMillis(1));
+        outbox.close();
+        if (sink instanceof FileEventSink) {
+            ((FileEventSink) sink).close();
+        }
+    }
+
+    /**
+     * @return 当前的投递目标，没有开启事件通知时返回null
+     */
+    public EventSink getSink() {
+        return sink;
+    }
+
+    private EventSink createSink() throws IOException {
+        switch (sinkType) {
+            case "none":
+                return null;
+            case "memory":
+                return new MemoryEventSink();
+            case "file":
+                return new FileEventSink(new File(dir));
+            default:
+                throw new IllegalArgumentException("unknown event sink: " + sinkType);
+        }
+    }
+
+    private void publish() {
+        List<BalanceChangeEvent> events = new ArrayList<>(batchSize);
+        EventBatch batch = null;
+        long backoff = 0;
+        for (; ; ) {
+            boolean stopping = !running;
+            try {
+                if (null == batch) {
+                    fill(events);
+                    if (events.isEmpty()) {
+                        if (stopping) {
+                            return;
+                        }
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(lingerMillis));
+                        continue;
+                    }
+                    batch = EventBatch.encode(events, compress);
+                }
+                sink.send(batch);
+                published.add(batch.getCount());
+                events.clear();
+                batch = null;
+                backoff = 0;
+                outbox.commit();
+            } catch (Exception e) {
+                failures.increment();
+                if (null == batch) {
+                    //读发件箱失败，读到一半的事件丢掉，发件箱的读取位置没有前进，下次重读
+                    events.clear();
+                }
+                if (stopping) {
+                    LOG.warn("stop publishing events with unsent batch", e);
+                    return;
+                }
+                backoff = Math.min(maxBackoffMillis, Math.max(MIN_BACKOFF_MILLIS, backoff * 2));
+                LOG.warn("publish events failed, retry in " + backoff + "ms", e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoff));
+            }
+        }
+    }
+
+    /**
+     * 取一批事件，不满一批时等lingerMillis再取一次；热点账户子账户的事件换成主账户的
+     */
+    private void fill(List<BalanceChangeEvent> events) throws IOException {
+        outbox.poll(events, batchSize);
+        if (!events.isEmpty() && events.size() < batchSize && running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(lingerMillis));
+            outbox.poll(events, batchSize - events.size());
+        }
+        splitter.toMainAccounts(events);
+    }
 }
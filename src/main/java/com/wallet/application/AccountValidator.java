@@ -1,13 +1,51 @@
 package com.wallet.application;
 
 
+import com.wallet.domain.model.AccountPolicy;
+import com.wallet.domain.repository.AccountPolicyRepository;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+/**
+ * 账户状态校验：冻结、单笔限额，转账时去向账户也要检查冻结；userId不能含控制字符，那是热点账户子账户的保留分隔符
+ * 账户策略常驻内存，没有单独设置的账户直接用默认策略，不产生查询
+ */
 @Component
-public class AccountValidator implements Validator{
+public class AccountValidator implements Validator {
+
+    @Autowired
+    private AccountPolicyRepository policyRepository;
+
+    @Override
+    public void check(ValidationContext context) {
+        checkUserId(context.getUserId());
+        checkUserId(context.getTargetUserId());
+        AccountPolicy policy = policyRepository.get(context.getUserId());
+        if (policy.isFrozen()) {
+            throw new RuntimeException("account is frozen: " + context.getUserId());
+        }
+        if (context.getAmount() > policy.getMaxAmountPerOperation()) {
+            throw new RuntimeException("amount exceeds limit: " + policy.getMaxAmountPerOperation());
+        }
+        String target = context.getTargetUserId();
+        if (null != target && policyRepository.get(target).isFrozen()) {
+            throw new RuntimeException("account is frozen: " + target);
+        }
+    }
+
+    /**
+     * 子账户id是userId + HotAccountSplitter.SUB_SEPARATOR + 序号，分隔符是控制字符，真实userId里没有就不会冲突
+     */
+    private static void checkUserId(String userId) {
+        for (int i = 0; null != userId && i < userId.length(); i++) {
+            if (Character.isISOControl(userId.charAt(i))) {
+                throw new IllegalArgumentException("invalid userId: " + userId);
+            }
+        }
+    }
 
     @Override
-    public void check() {
-        //todo
+    public int cost() {
+        return 10;
     }
 }
@@ -0,0 +1,184 @@
+package com.wallet.application;
+
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 准入控制（流控），按用户和全局两级令牌桶，超出直接拒绝，不排队
+ * <p>
+ * 令牌桶用GCRA实现：每个桶只有一个long，记录"理论上下一个请求到达的时间"，一次CAS完成取令牌，无锁；
+ * 速率和突发量保存在不可变的Limit里，运行时修改整体替换，立即生效
+ * <p>
+ * 先取用户桶再取全局桶，刷量的用户在自己的桶上被拒绝，不会消耗全局额度；全局桶拒绝时把用户桶的令牌退回
+ */
+@Component
+public class AdmissionController {
+
+    private static final Log LOG = LogFactory.getLog(AdmissionController.class);
+
+    /**
+     * 每秒令牌数，0表示不限
+     */
+    @Value("${wallet.admission.globalRate:0}")
+    private long globalRate;
+    @Value("${wallet.admission.globalBurst:0}")
+    private long globalBurst;
+    @Value("${wallet.admission.userRate:0}")
+    private long userRate;
+    @Value("${wallet.admission.userBurst:0}")
+    private long userBurst;
+
+    private volatile Limit globalLimit;
+    private volatile Limit userLimit;
+    private final AtomicLong globalBucket = new AtomicLong(Long.MIN_VALUE);
+    private final Map<String, AtomicLong> userBuckets = new ConcurrentHashMap<>();
+    private ScheduledExecutorService expireExecutor;
+
+    @PostConstruct
+    private void init() {
+        setGlobalLimit(globalRate, globalBurst);
+        setUserLimit(userRate, userBurst);
+        expireExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wallet-admission-expire");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expireExecutor.scheduleWithFixedDelay(this::expire, 10, 10, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void close() {
+        expireExecutor.shutdownNow();
+    }
+
+    /**
+     * 修改全局限流
+     *
+     * @param rate  每秒令牌数，0表示不限
+     * @param burst 允许的突发量，不大于0时取rate
+     */
+    public void setGlobalLimit(long rate, long burst) {
+        globalLimit = Limit.of(rate, burst);
+    }
+
+    /**
+     * 修改每个用户的限流，参数同setGlobalLimit
+     */
+    public void setUserLimit(long rate, long burst) {
+        userLimit = Limit.of(rate, burst);
+    }
+
+    /**
+     * 单个用户的一次请求
+     *
+     * @throws RuntimeException 超出限流
+     */
+    public void acquire(String userId) {
+        Limit user = userLimit;
+        AtomicLong bucket = null;
+        long now = System.nanoTime();
+        if (null != user) {
+            bucket = userBuckets.computeIfAbsent(userId, key -> new AtomicLong(Long.MIN_VALUE));
+            if (!user.tryAcquire(bucket, 1, now)) {
+                throw new RuntimeException("too many requests, userId: " + userId);
+            }
+        }
+        Limit global = globalLimit;
+        if (null != global && !global.tryAcquire(globalBucket, 1, now)) {
+            if (null != bucket) {
+                user.refund(bucket, 1);
+            }
+            throw new RuntimeException("system busy, please retry later");
+        }
+    }
+
+    /**
+     * 批量请求，按明细数占用全局令牌
+     * 明细数超过全局突发量的批次在桶满时放行，超出的部分记为欠账，之后的请求要等欠账按速率还清，长期速率不变
+     *
+     * @throws RuntimeException 超出限流
+     */
+    public void acquireBatch(int size) {
+        Limit global = globalLimit;
+        if (null != global && size > 0 && !global.tryAcquire(globalBucket, size, System.nanoTime())) {
+            throw new RuntimeException("system busy, please retry later");
+        }
+    }
+
+    /**
+     * 清理已经回满的用户桶，回满的桶和新建的桶等价
+     * 和取令牌并发时，正在用被删掉的桶的请求最多让该用户多拿到一次突发量
+     */
+    private void expire() {
+        try {
+            long now = System.nanoTime();
+            userBuckets.entrySet().removeIf(entry -> entry.getValue().get() - now < 0);
+        } catch (RuntimeException e) {
+            LOG.error("expire admission buckets failed", e);
+        }
+    }
+
+    /**
+     * 速率和突发量，不可变
+     */
+    private static final class Limit {
+        /**
+         * 两个令牌之间的间隔（纳秒）
+         */
+        final long interval;
+        /**
+         * 桶满时可以超前的时间
+         */
+        final long tolerance;
+
+        private Limit(long interval, long tolerance) {
+            this.interval = interval;
+            this.tolerance = tolerance;
+        }
+
+        static Limit of(long rate, long burst) {
+            if (rate <= 0) {
+                return null;
+            }
+            long interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) / rate);
+            return new Limit(interval, interval * (burst > 0 ? burst : rate));
+        }
+
+        /**
+         * 一次取的令牌超过突发量时，只要桶是满的就放行，否则永远取不到
+         *
+         * @param bucket 理论到达时间，Long.MIN_VALUE表示从没用过
+         */
+        boolean tryAcquire(AtomicLong bucket, int permits, long now) {
+            long cost = interval * permits;
+            for (; ; ) {
+                long tat = bucket.get();
+                boolean full = Long.MIN_VALUE == tat || tat - now <= 0;
+                long start = full ? now : tat;
+                long next = start + cost;
+                if (next - now > tolerance && !(full && cost > tolerance)) {
+                    return false;
+                }
+                if (bucket.compareAndSet(tat, next)) {
+                    return true;
+                }
+            }
+        }
+
+        void refund(AtomicLong bucket, int permits) {
+            bucket.addAndGet(-interval * permits);
+        }
+    }
+}
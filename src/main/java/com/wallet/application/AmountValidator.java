@@ -0,0 +1,67 @@
+package com.wallet.application;
+
+
+import com.wallet.domain.service.ExchangeRateTable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Currency;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 金额和币种校验，只看请求参数；跨币种转账的到账币种同样要在支持的币种里，并且汇率表里有报价
+ */
+@Component
+public class AmountValidator implements Validator {
+
+    /**
+     * 支持的币种，逗号分隔，为空表示不限
+     */
+    @Value("${wallet.validation.currencies:}")
+    private String currencies;
+
+    @Autowired
+    private ExchangeRateTable exchangeRates;
+
+    private Set<String> allowed;
+
+    @PostConstruct
+    private void init() {
+        Set<String> codes = new HashSet<>();
+        for (String code : currencies.split(",")) {
+            if (!code.trim().isEmpty()) {
+                codes.add(code.trim());
+            }
+        }
+        allowed = codes.isEmpty() ? null : codes;
+    }
+
+    @Override
+    public void check(ValidationContext context) {
+        Long amount = context.getAmount();
+        if (null == amount || amount <= 0) {
+            throw new IllegalArgumentException("amount must be positive");
+        }
+        if (null == context.getCurrency()) {
+            throw new IllegalArgumentException("currency is required");
+        }
+        checkSupported(context.getCurrency());
+        Currency target = context.getTargetCurrency();
+        if (null != target && !target.equals(context.getCurrency())) {
+            checkSupported(target);
+            if (null == exchangeRates.rate(context.getCurrency().getCurrencyCode(), target.getCurrencyCode())) {
+                throw new IllegalArgumentException("exchange rate not available: "
+                        + context.getCurrency().getCurrencyCode() + "->" + target.getCurrencyCode());
+            }
+        }
+    }
+
+    private void checkSupported(Currency currency) {
+        if (null != allowed && !allowed.contains(currency.getCurrencyCode())) {
+            throw new IllegalArgumentException("currency not supported: " + currency.getCurrencyCode());
+        }
+    }
+}
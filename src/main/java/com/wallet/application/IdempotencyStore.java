@@ -0,0 +1,363 @@
+package com.wallet.application;
+
+import com.wallet.domain.model.IdempotencyKey;
+import com.wallet.domain.repository.WalletRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * 幂等去重：同一用户同一请求号只执行一次，重复请求直接返回第一次的结果
+ * <p>
+ * 请求号按(userId, requestId)做128位散列，和请求参数的指纹一起存进按时间分桶的开放寻址表，每条32字节；
+ * 桶按wallet.idempotency.ttlSeconds均分，整桶过期整桶丢弃，不逐条清理；查找依次看各桶，桶数固定，仍是O(1)
+ * <p>
+ * 执行中的请求放一个future占位，并发的重试等待第一次的结果，不会同时执行两次；只记成功的结果，失败的请求可以重试
+ * <p>
+ * 开启持久化时请求标识和结果由action写进变更的同一条预写日志（JournalOperation），和余额一起组提交刷盘，
+ * 这里只存内存；重启时重放日志，把ttl以内的请求按操作时间放回各桶，变更落盘了去重就在，不会执行两次
+ */
+@Component
+public class IdempotencyStore {
+
+    private static final Log LOG = LogFactory.getLog(IdempotencyStore.class);
+
+    private static final int SEGMENTS = 16;
+    /**
+     * 空结果（转账）的编码
+     */
+    private static final long NO_RESULT = Long.MIN_VALUE;
+    /**
+     * 查不到，余额不会是负数，不会和结果冲突
+     */
+    private static final long MISSING = Long.MIN_VALUE + 1;
+
+    @Autowired
+    private WalletRepository repository;
+
+    @Value("${wallet.idempotency.ttlSeconds:600}")
+    private long ttlSeconds;
+    @Value("${wallet.idempotency.buckets:10}")
+    private int buckets;
+
+    private long bucketMillis;
+    /**
+     * 多留一个桶，保证每条至少保留ttl
+     */
+    private AtomicReferenceArray<Bucket> ring;
+    private final ConcurrentHashMap<Key, Pending> pending = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() throws IOException {
+        bucketMillis = Math.max(1, ttlSeconds * 1000 / buckets);
+        ring = new AtomicReferenceArray<>(buckets + 1);
+        recover();
+    }
+
+    /**
+     * 幂等执行
+     *
+     * @param userId      用户id，请求号在用户内唯一
+     * @param requestId   请求号，为空时不去重
+     * @param fingerprint 请求参数的指纹，同一请求号参数不同时报错
+     * @param action      第一次请求时执行，参数是请求标识（不去重时为null），要和变更写进同一条日志
+     * @return action的结果，重复请求返回第一次的结果
+     */
+    public Long execute(String userId, String requestId, long fingerprint, Function<IdempotencyKey, Long> action) {
+        if (null == requestId || requestId.isEmpty()) {
+            return action.apply(null);
+        }
+        Key key = Key.of(userId, requestId);
+        long now = System.currentTimeMillis();
+        long done = lookup(key, fingerprint, now);
+        if (MISSING != done) {
+            return decode(done);
+        }
+        Pending mine = new Pending(fingerprint);
+        Pending running = pending.putIfAbsent(key, mine);
+        if (null != running) {
+            //同一请求正在执行，等它的结果
+            check(running.fingerprint, fingerprint);
+            return await(running.future);
+        }
+        try {
+            //占位之前可能刚有一次执行完成并移除了占位
+            done = lookup(key, fingerprint, now);
+            Long result = MISSING != done ? decode(done) : action.apply(new IdempotencyKey(key.high, key.low, fingerprint));
+            if (MISSING == done) {
+                current(System.currentTimeMillis()).put(key.high, key.low, fingerprint, encode(result));
+            }
+            mine.future.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            mine.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return 请求参数的指纹
+     */
+    public static long fingerprint(String operatorType, String targetUserId, Long amount, String currencyCode) {
+        long h = hash(operatorType, 0x9E3779B97F4A7C15L);
+        h = hash(null == targetUserId ? "" : targetUserId, h);
+        h = mix(h ^ (null == amount ? 0 : amount));
+        return hash(null == currencyCode ? "" : currencyCode, h);
+    }
+
+    /**
+     * @return 已完成请求的编码结果，没有返回MISSING
+     */
+    private long lookup(Key key, long fingerprint, long now) {
+        long epoch = now / bucketMillis;
+        for (int i = 0; i < ring.length(); i++) {
+            Bucket bucket = ring.get(i);
+            if (null != bucket && bucket.epoch >= epoch - buckets) {
+                long found = bucket.segmentOf(key.high).find(key.high, key.low, fingerprint);
+                if (MISSING != found) {
+                    return found;
+                }
+            }
+        }
+        return MISSING;
+    }
+
+    private static void check(long stored, long fingerprint) {
+        if (stored != fingerprint) {
+            throw new IllegalArgumentException("request id reused with different parameters");
+        }
+    }
+
+    private static long encode(Long result) {
+        return null == result ? NO_RESULT : result;
+    }
+
+    private static Long decode(long result) {
+        return NO_RESULT == result ? null : result;
+    }
+
+    private static Long await(CompletableFuture<Long> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return 时间所在的桶，换桶时丢弃同一位置上已过期的桶；同一位置已经是更新的桶时返回它
+     */
+    private Bucket current(long now) {
+        long epoch = now / bucketMillis;
+        int index = (int) (epoch % ring.length());
+        Bucket bucket = ring.get(index);
+        if (null != bucket && bucket.epoch == epoch) {
+            return bucket;
+        }
+        synchronized (this) {
+            bucket = ring.get(index);
+            if (null != bucket && bucket.epoch >= epoch) {
+                return bucket;
+            }
+            Bucket fresh = new Bucket(epoch);
+            ring.set(index, fresh);
+            return fresh;
+        }
+    }
+
+    /**
+     * 重放日志，把ttl以内完成的请求放回按操作时间所在的桶；未开启持久化时什么都不做
+     */
+    private void recover() throws IOException {
+        long oldest = System.currentTimeMillis() - ttlSeconds * 1000;
+        AtomicLong count = new AtomicLong();
+        repository.replayOperations((position, operation) -> {
+            IdempotencyKey request = operation.getRequest();
+            if (null != request && operation.getTime() >= oldest) {
+                current(operation.getTime()).put(request.getHigh(), request.getLow(), request.getFingerprint(),
+                        encode(operation.getResult()));
+                count.incrementAndGet();
+            }
+        });
+        if (count.get() > 0) {
+            LOG.info("idempotency store recovered " + count.get() + " requests from journal");
+        }
+    }
+
+    /**
+     * 128位的请求标识
+     */
+    private static final class Key {
+
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        /**
+         * 一遍扫描算两路独立的64位散列，userId和requestId之间加分隔，避免("ab","c")和("a","bc")相同
+         */
+        static Key of(String userId, String requestId) {
+            long high = 0x9E3779B97F4A7C15L;
+            long low = 0xC2B2AE3D27D4EB4FL;
+            for (int i = 0; i < userId.length(); i++) {
+                char c = userId.charAt(i);
+                high = (high ^ c) * 0x100000001B3L;
+                low = (low ^ c) * 0xFF51AFD7ED558CCDL;
+            }
+            high = mix(high ^ userId.length());
+            low = mix(low ^ userId.length());
+            for (int i = 0; i < requestId.length(); i++) {
+                char c = requestId.charAt(i);
+                high = (high ^ c) * 0x100000001B3L;
+                low = (low ^ c) * 0xFF51AFD7ED558CCDL;
+            }
+            //全0表示空槽
+            return new Key(mix(high ^ requestId.length()), mix(low + requestId.length()) | 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).high == high && ((Key) o).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (high ^ (high >>> 32));
+        }
+    }
+
+    private static long hash(String value, long seed) {
+        long h = seed ^ value.length();
+        for (int i = 0; i < value.length(); i++) {
+            h = mix(h ^ value.charAt(i));
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 29);
+    }
+
+    private static final class Pending {
+
+        final long fingerprint;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Pending(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * 一个时间桶，分段加锁
+     */
+    private static final class Bucket {
+
+        final long epoch;
+        final Segment[] segments = new Segment[SEGMENTS];
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment();
+            }
+        }
+
+        Segment segmentOf(long high) {
+            return segments[(int) (high >>> 60) & (SEGMENTS - 1)];
+        }
+
+        void put(long high, long low, long fingerprint, long result) {
+            segmentOf(high).put(high, low, fingerprint, result);
+        }
+    }
+
+    /**
+     * 开放寻址表，每条4个long：high、low、指纹、结果，负载超过一半时翻倍
+     */
+    private static final class Segment {
+
+        private long[] table = new long[16 * 4];
+        private int size;
+
+        /**
+         * @return 结果，没有返回MISSING；指纹不同时报错
+         */
+        synchronized long find(long high, long low, long fingerprint) {
+            int mask = table.length / 4 - 1;
+            for (int slot = (int) low & mask; ; slot = (slot + 1) & mask) {
+                int base = slot * 4;
+                if (0 == table[base] && 0 == table[base + 1]) {
+                    return MISSING;
+                }
+                if (table[base] == high && table[base + 1] == low) {
+                    check(table[base + 2], fingerprint);
+                    return table[base + 3];
+                }
+            }
+        }
+
+        synchronized void put(long high, long low, long fingerprint, long result) {
+            if ((size + 1) * 2 > table.length / 4) {
+                grow();
+            }
+            if (insert(table, high, low, fingerprint, result)) {
+                size++;
+            }
+        }
+
+        private void grow() {
+            long[] old = table;
+            long[] grown = new long[old.length * 2];
+            for (int base = 0; base < old.length; base += 4) {
+                if (0 != old[base] || 0 != old[base + 1]) {
+                    insert(grown, old[base], old[base + 1], old[base + 2], old[base + 3]);
+                }
+            }
+            table = grown;
+        }
+
+        /**
+         * @return 是否新增（已存在时不覆盖，第一次的结果为准）
+         */
+        private static boolean insert(long[] table, long high, long low, long fingerprint, long result) {
+            int mask = table.length / 4 - 1;
+            for (int slot = (int) low & mask; ; slot = (slot + 1) & mask) {
+                int base = slot * 4;
+                if (0 == table[base] && 0 == table[base + 1]) {
+                    table[base] = high;
+                    table[base + 1] = low;
+                    table[base + 2] = fingerprint;
+                    table[base + 3] = result;
+                    return true;
+                }
+                if (table[base] == high && table[base + 1] == low) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.wallet.application;
+
+
+import com.wallet.domain.model.Money;
+import com.wallet.domain.service.ExchangeRateTable;
+import com.wallet.domain.service.WalletService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 频次和累计限额校验：24小时滚动窗口的取钱总额、每分钟转账笔数
+ * 限额为0表示不限；操作失败时归还占用的额度
+ * 取钱总额按wallet.limit.currency计，其他币种先按汇率表折算，没有报价的币种在开启限额时不能取钱
+ */
+@Component
+public class LimitValidator implements Validator {
+
+    private static final Log LOG = LogFactory.getLog(LimitValidator.class);
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * 每分钟窗口的桶数，精度5秒
+     */
+    private static final int MINUTE_BUCKETS = 12;
+
+    /**
+     * 24小时内累计取钱上限（分）
+     */
+    @Value("${wallet.limit.dailyWithdrawAmount:0}")
+    private long dailyWithdrawAmount;
+    /**
+     * 取钱总额的计价币种
+     */
+    @Value("${wallet.limit.currency:" + Money.DEFAULT_CURRENCY_CODE + "}")
+    private String limitCurrency;
+    /**
+     * 24小时窗口的桶数，默认精度1小时
+     */
+    @Value("${wallet.limit.dailyBuckets:24}")
+    private int dailyBuckets;
+    /**
+     * 每分钟最多转账笔数
+     */
+    @Value("${wallet.limit.transfersPerMinute:0}")
+    private long transfersPerMinute;
+    /**
+     * 清理空闲账户的间隔
+     */
+    @Value("${wallet.limit.expireIntervalSeconds:60}")
+    private long expireIntervalSeconds;
+
+    @Autowired
+    private ExchangeRateTable exchangeRates;
+
+    private SlidingWindowLimiter dailyWithdraw;
+    private SlidingWindowLimiter transferVelocity;
+    private ScheduledExecutorService expireExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (dailyWithdrawAmount > 0) {
+            dailyWithdraw = new SlidingWindowLimiter(DAY_MILLIS, dailyBuckets, dailyWithdrawAmount);
+        }
+        if (transfersPerMinute > 0) {
+            transferVelocity = new SlidingWindowLimiter(MINUTE_MILLIS, MINUTE_BUCKETS, transfersPerMinute);
+        }
+        if (null == dailyWithdraw && null == transferVelocity) {
+            return;
+        }
+        expireExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wallet-limit-expire");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expireExecutor.scheduleWithFixedDelay(this::expire, expireIntervalSeconds, expireIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void close() {
+        if (null != expireExecutor) {
+            expireExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void check(ValidationContext context) {
+        String operatorType = context.getOperatorType();
+        if (null != dailyWithdraw && WalletService.WITHDRAW.equals(operatorType)) {
+            long amount = exchangeRates.convert(context.getAmount(), context.getCurrency().getCurrencyCode(), limitCurrency);
+            if (!dailyWithdraw.tryAcquire(context.getUserId(), amount, context.getRequestTime())) {
+                throw new RuntimeException("daily withdraw limit exceeded");
+            }
+            //撤销时归还占用时折算的金额，期间汇率可能已经更新
+            context.setLimitAmount(amount);
+        }
+        if (null != transferVelocity && WalletService.TRANSFER.equals(operatorType)
+                && !transferVelocity.tryAcquire(context.getUserId(), 1, context.getRequestTime())) {
+            throw new RuntimeException("transfer frequency limit exceeded");
+        }
+    }
+
+    @Override
+    public void cancel(ValidationContext context) {
+        String operatorType = context.getOperatorType();
+        if (null != dailyWithdraw && WalletService.WITHDRAW.equals(operatorType)) {
+            dailyWithdraw.release(context.getUserId(), context.getLimitAmount(), context.getRequestTime());
+        }
+        if (null != transferVelocity && WalletService.TRANSFER.equals(operatorType)) {
+            transferVelocity.release(context.getUserId(), 1, context.getRequestTime());
+        }
+    }
+
+    /**
+     * 排在账户状态校验之后，被冻结的账户不占额度
+     */
+    @Override
+    public int cost() {
+        return 20;
+    }
+
+    private void expire() {
+        try {
+            long now = System.currentTimeMillis();
+            int expired = (null == dailyWithdraw ? 0 : dailyWithdraw.expire(now))
+                    + (null == transferVelocity ? 0 : transferVelocity.expire(now));
+            if (expired > 0 && LOG.isDebugEnabled()) {
+                LOG.debug("expired idle limit windows: " + expired);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("expire limit windows failed", e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.wallet.application;
+
+import com.wallet.domain.metrics.WalletMetrics;
+import com.wallet.domain.model.ReconciliationReport;
+import com.wallet.domain.service.ReconciliationEngine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+
+/**
+ * 监控查询
+ */
+@Service
+public class MonitorService {
+
+    @Autowired
+    private WalletMetrics metrics;
+    @Autowired
+    private ReconciliationEngine reconciliationEngine;
+
+    public String scrape() {
+        return metrics.scrape();
+    }
+
+    public Map<String, Long> hotAccounts(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        return metrics.hotAccounts(limit);
+    }
+
+    public ReconciliationReport reconcile() throws InterruptedException {
+        return reconciliationEngine.reconcile();
+    }
+
+    public ReconciliationReport lastReconciliation() {
+        return reconciliationEngine.getLastReport();
+    }
+}
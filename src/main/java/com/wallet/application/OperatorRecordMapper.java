@@ -0,0 +1,79 @@
+package com.wallet.application;
+
+import com.wallet.application.dto.OperatorRecord;
+import com.wallet.domain.model.TransactionRecord;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 交易记录到适配层对象的转换，逐字段复制
+ * 新增字段时两边都要改
+ */
+final class OperatorRecordMapper {
+
+    private OperatorRecordMapper() {
+    }
+
+    static OperatorRecord map(TransactionRecord record) {
+        OperatorRecord operatorRecord = new OperatorRecord();
+        operatorRecord.setOperatorType(record.getOperatorType());
+        operatorRecord.setOperatorAmount(record.getOperatorAmount());
+        operatorRecord.setOperatorCurrency(record.getOperatorCurrency());
+        operatorRecord.setOperatorUserId(record.getOperatorUserId());
+        operatorRecord.setFrom(record.getFrom());
+        operatorRecord.setTo(record.getTo());
+        operatorRecord.setRemark(record.getRemark());
+        return operatorRecord;
+    }
+
+    /**
+     * @return 只读视图，访问到哪条才转换哪条，不复制整个列表
+     */
+    static List<OperatorRecord> view(List<TransactionRecord> records) {
+        return new View(records);
+    }
+
+    /**
+     * @return 逐条转换的迭代器
+     */
+    static Iterator<OperatorRecord> iterator(Iterator<TransactionRecord> records) {
+        return new Iterator<OperatorRecord>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public OperatorRecord next() {
+                return map(records.next());
+            }
+        };
+    }
+
+    private static final class View extends AbstractList<OperatorRecord> implements RandomAccess {
+
+        private final List<TransactionRecord> records;
+
+        View(List<TransactionRecord> records) {
+            this.records = records;
+        }
+
+        @Override
+        public OperatorRecord get(int index) {
+            return map(records.get(index));
+        }
+
+        @Override
+        public int size() {
+            return records.size();
+        }
+
+        @Override
+        public Iterator<OperatorRecord> iterator() {
+            return OperatorRecordMapper.iterator(records.iterator());
+        }
+    }
+}
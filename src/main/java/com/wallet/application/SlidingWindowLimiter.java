@@ -0,0 +1,167 @@
+package com.wallet.application;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按账户的滑动窗口限额，无锁
+ * 窗口切成buckets个时间桶，每个账户一个long数组：[0]是最近一次使用的桶序号，之后每个桶一个long，
+ * 高位是桶序号的低STAMP_BITS位（判断桶是否过期），低位是桶内累计值，整个桶一次CAS更新
+ * <p>
+ * 先累加再检查：累加后窗口总和超过上限就减回去并拒绝，并发时可能多拒，不会多放
+ * 空闲超过一个窗口的账户由expire清理，内存只和窗口内活跃的账户数有关
+ */
+final class SlidingWindowLimiter {
+
+    private static final int STAMP_BITS = 20;
+    private static final int VALUE_BITS = 64 - STAMP_BITS;
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+    private static final long STAMP_MASK = (1L << STAMP_BITS) - 1;
+    /**
+     * [0]被标记成它表示账户已被清理，不能再用
+     */
+    private static final long DEAD = -1;
+
+    private final long bucketMillis;
+    private final int buckets;
+    private final long limit;
+    private final Map<String, AtomicLongArray> windowMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param windowMillis 窗口长度
+     * @param buckets      桶数，越多越精确，每个账户多占8字节
+     * @param limit        窗口内累计值上限
+     */
+    SlidingWindowLimiter(long windowMillis, int buckets, long limit) {
+        if (buckets < 1 || windowMillis < buckets) {
+            throw new IllegalArgumentException("invalid window: " + windowMillis + "ms/" + buckets);
+        }
+        if (limit > VALUE_MASK) {
+            throw new IllegalArgumentException("limit too large: " + limit);
+        }
+        this.bucketMillis = windowMillis / buckets;
+        this.buckets = buckets;
+        this.limit = limit;
+    }
+
+    /**
+     * 占用额度
+     *
+     * @return 占用后仍不超过上限返回true；超过返回false且不占用
+     */
+    boolean tryAcquire(String userId, long amount, long nowMillis) {
+        if (amount > limit) {
+            return false;
+        }
+        long epoch = nowMillis / bucketMillis;
+        for (; ; ) {
+            AtomicLongArray window = touch(userId, epoch);
+            if (null == window) {
+                continue;
+            }
+            add(window, epoch, amount);
+            if (sum(window, epoch) > limit) {
+                add(window, epoch, -amount);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 归还tryAcquire占用的额度（操作最终没有执行），占用时的桶已经滚出窗口时不处理
+     */
+    void release(String userId, long amount, long acquireMillis) {
+        AtomicLongArray window = windowMap.get(userId);
+        if (null != window) {
+            add(window, acquireMillis / bucketMillis, -amount);
+        }
+    }
+
+    /**
+     * @return 当前窗口内的累计值
+     */
+    long used(String userId, long nowMillis) {
+        AtomicLongArray window = windowMap.get(userId);
+        return null == window ? 0 : sum(window, nowMillis / bucketMillis);
+    }
+
+    /**
+     * 清理空闲超过一个窗口的账户
+     *
+     * @return 清理的账户数
+     */
+    int expire(long nowMillis) {
+        long idleBefore = nowMillis / bucketMillis - buckets;
+        int expired = 0;
+        for (Map.Entry<String, AtomicLongArray> entry : windowMap.entrySet()) {
+            AtomicLongArray window = entry.getValue();
+            long last = window.get(0);
+            //先标记再删除，标记之后并发的占用会换一个新数组重试
+            if (last != DEAD && last < idleBefore && window.compareAndSet(0, last, DEAD)) {
+                windowMap.remove(entry.getKey(), window);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    int size() {
+        return windowMap.size();
+    }
+
+    /**
+     * 把账户最近使用的桶序号推进到epoch
+     *
+     * @return 账户的窗口，遇到刚被清理的数组返回null，调用方重试
+     */
+    private AtomicLongArray touch(String userId, long epoch) {
+        AtomicLongArray window = windowMap.computeIfAbsent(userId, key -> new AtomicLongArray(buckets + 1));
+        for (; ; ) {
+            long last = window.get(0);
+            if (DEAD == last) {
+                windowMap.remove(userId, window);
+                return null;
+            }
+            if (last >= epoch || window.compareAndSet(0, last, epoch)) {
+                return window;
+            }
+        }
+    }
+
+    private void add(AtomicLongArray window, long epoch, long delta) {
+        int index = 1 + (int) (epoch % buckets);
+        long stamp = epoch & STAMP_MASK;
+        for (; ; ) {
+            long bucket = window.get(index);
+            long value;
+            long bucketStamp = bucket >>> VALUE_BITS;
+            if (bucketStamp == stamp) {
+                value = (bucket & VALUE_MASK) + delta;
+            } else if (delta > 0 && (0 == bucket || ((stamp - bucketStamp) & STAMP_MASK) <= STAMP_MASK >>> 1)) {
+                //空桶或者桶里是更早一轮的数据，直接覆盖
+                value = delta;
+            } else {
+                //要归还的桶已经滚走了，或者本线程的时间已经落后一整个窗口
+                return;
+            }
+            if (window.compareAndSet(index, bucket, stamp << VALUE_BITS | Math.max(0, value))) {
+                return;
+            }
+        }
+    }
+
+    private long sum(AtomicLongArray window, long epoch) {
+        long total = 0;
+        for (int i = 0; i < buckets; i++) {
+            long bucket = window.get(1 + i);
+            //桶序号在(epoch - buckets, epoch]之内才算
+            long age = (epoch - (bucket >>> VALUE_BITS)) & STAMP_MASK;
+            if (age < buckets) {
+                total += bucket & VALUE_MASK;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,214 @@
+package com.wallet.application;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 账单导出的定长写缓冲，写满整块写进通道，导出多少数据都只占这一块
+ * 数字和字符串直接编码成字节，不经过String.format和CharsetEncoder；
+ * 在遍历记录的回调里使用，写通道失败抛UncheckedIOException，由调用方还原
+ */
+final class StatementBuffer {
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L
+    };
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+    private long flushed;
+
+    /**
+     * @param capacity 缓冲字节数，至少16
+     */
+    StatementBuffer(WritableByteChannel channel, int capacity) {
+        if (capacity < 16) {
+            throw new IllegalArgumentException("buffer size too small: " + capacity);
+        }
+        this.channel = channel;
+        //堆内缓冲，FileChannel写入时用线程自己缓存的直接内存中转，不随导出次数增长
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    void put(byte value) {
+        ensure(1);
+        buffer.put(value);
+    }
+
+    void putShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    void putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    /**
+     * 十进制ASCII
+     */
+    void putDecimal(long value) {
+        ensure(20);
+        if (value < 0) {
+            buffer.put((byte) '-');
+        } else {
+            //统一按负数算，Long.MIN_VALUE也不会溢出
+            value = -value;
+        }
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (0 != value);
+        while (length > 0) {
+            buffer.put(digits[--length]);
+        }
+    }
+
+    /**
+     * 按币种小数位输出金额，小数部分补足位数，例如12345分输出123.45，100分输出1.00
+     */
+    void putAmount(long cent, int fractionDigits) {
+        if (fractionDigits <= 0 || fractionDigits >= POWERS_OF_TEN.length) {
+            putDecimal(cent);
+            return;
+        }
+        long scale = POWERS_OF_TEN[fractionDigits];
+        long integer = cent / scale;
+        long fraction = Math.abs(cent % scale);
+        if (cent < 0 && 0 == integer) {
+            put((byte) '-');
+        }
+        putDecimal(integer);
+        ensure(1 + fractionDigits);
+        buffer.put((byte) '.');
+        for (int i = fractionDigits - 1; i >= 0; i--) {
+            buffer.put((byte) ('0' + fraction / POWERS_OF_TEN[i] % 10));
+        }
+    }
+
+    /**
+     * UTF-8编码，单独的代理字符写成'?'
+     */
+    void putUtf8(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                put((byte) '?');
+            } else {
+                ensure(3);
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * CSV字段，含逗号、引号或换行时加引号，引号写两次；null写成空字段
+     */
+    void putCsv(String value) {
+        if (null == value) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = ',' == c || '"' == c || '\n' == c || '\r' == c;
+        }
+        if (!quote) {
+            putUtf8(value);
+            return;
+        }
+        put((byte) '"');
+        putUtf8(value.replace("\"", "\"\""));
+        put((byte) '"');
+    }
+
+    /**
+     * [short 长度][utf-8字节]，null编码为长度-1，和AccountCodec一致
+     */
+    void putString(String value) {
+        if (null == value) {
+            putShort(-1);
+            return;
+        }
+        int length = utf8Length(value);
+        if (length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("string too long: " + length);
+        }
+        putShort(length);
+        putUtf8(value);
+    }
+
+    /**
+     * 缓冲里的数据全部写进通道
+     */
+    void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return 已写入的字节数，包括还在缓冲里的
+     */
+    long written() {
+        return flushed + buffer.position();
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
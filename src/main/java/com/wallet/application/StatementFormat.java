@@ -0,0 +1,122 @@
+package com.wallet.application;
+
+import com.wallet.domain.model.TransactionRecord;
+
+import java.time.Instant;
+import java.util.Currency;
+import java.util.Date;
+
+/**
+ * 账单导出格式
+ */
+public enum StatementFormat {
+
+    /**
+     * 带表头的CSV，UTF-8，每条记录一行：
+     * user_id,operator_type,amount,currency,from,to,remark,gmt_create，金额按币种小数位输出，时间为ISO-8601（UTC）
+     */
+    CSV("csv") {
+        @Override
+        void begin(StatementBuffer out) {
+            out.putUtf8("user_id,operator_type,amount,currency,from,to,remark,gmt_create\n");
+        }
+
+        @Override
+        void beginUser(StatementBuffer out, String userId) {
+        }
+
+        @Override
+        void record(StatementBuffer out, String userId, TransactionRecord record) {
+            out.putCsv(userId);
+            out.put((byte) ',');
+            out.putCsv(record.getOperatorType());
+            out.put((byte) ',');
+            if (null != record.getOperatorAmount()) {
+                String currency = record.getOperatorCurrency();
+                out.putAmount(record.getOperatorAmount(), null == currency ? 0 : Currency.getInstance(currency).getDefaultFractionDigits());
+            }
+            out.put((byte) ',');
+            out.putCsv(record.getOperatorCurrency());
+            out.put((byte) ',');
+            out.putCsv(record.getFrom());
+            out.put((byte) ',');
+            out.putCsv(record.getTo());
+            out.put((byte) ',');
+            out.putCsv(record.getRemark());
+            out.put((byte) ',');
+            if (null != record.getGmt_create()) {
+                out.putUtf8(Instant.ofEpochMilli(record.getGmt_create().getTime()).toString());
+            }
+            out.put((byte) '\n');
+        }
+
+        @Override
+        void end(StatementBuffer out) {
+        }
+    },
+
+    /**
+     * 紧凑二进制：[int MAGIC]{[byte 1][userId]{[byte 2][记录]...}...}[byte 0]，
+     * 记录为类型、金额（分，空为Long.MIN_VALUE）、币种、来源、去向、备注、创建时间（毫秒，0表示空），
+     * 字符串为[short 长度][utf-8字节]，null长度为-1；没有记录的用户不输出
+     */
+    BINARY("bin") {
+        @Override
+        void begin(StatementBuffer out) {
+            out.putInt(MAGIC);
+        }
+
+        @Override
+        void beginUser(StatementBuffer out, String userId) {
+            out.put((byte) 1);
+            out.putString(userId);
+        }
+
+        @Override
+        void record(StatementBuffer out, String userId, TransactionRecord record) {
+            out.put((byte) 2);
+            out.putString(record.getOperatorType());
+            out.putLong(null == record.getOperatorAmount() ? Long.MIN_VALUE : record.getOperatorAmount());
+            out.putString(record.getOperatorCurrency());
+            out.putString(record.getFrom());
+            out.putString(record.getTo());
+            out.putString(record.getRemark());
+            Date gmtCreate = record.getGmt_create();
+            out.putLong(null == gmtCreate ? 0 : gmtCreate.getTime());
+        }
+
+        @Override
+        void end(StatementBuffer out) {
+            out.put((byte) 0);
+        }
+    };
+
+    /**
+     * 二进制格式的文件头，"WSTM"
+     */
+    public static final int MAGIC = 0x5753544D;
+
+    private final String extension;
+
+    StatementFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return 导出文件的扩展名
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    abstract void begin(StatementBuffer out);
+
+    /**
+     * 一个用户的第一条记录之前调用
+     */
+    abstract void beginUser(StatementBuffer out, String userId);
+
+    abstract void record(StatementBuffer out, String userId, TransactionRecord record);
+
+    abstract void end(StatementBuffer out);
+}
@@ -0,0 +1,207 @@
+package com.wallet.application;
+
+import com.wallet.application.dto.StatementExport;
+import com.wallet.domain.service.WalletService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 账单导出，流式读交易记录、流式写通道，内存占用和记录数无关
+ * <p>
+ * 逐条遍历交易记录的快照（一次只持有一个块，不物化列表），编码进定长缓冲，写满整块写进NIO通道；
+ * 批量导出按用户分段，每段一个文件，在独立的fork-join池里并行，不占用公共池（批量存取在用），
+ * 只读交易记录不加锁，不阻塞钱包变更
+ */
+@Service
+public class StatementService {
+
+    private static final Log LOG = LogFactory.getLog(StatementService.class);
+
+    /**
+     * 每个写缓冲的字节数，批量导出时每个并行任务一个
+     */
+    @Value("${wallet.export.bufferSize:65536}")
+    private int bufferSize;
+    /**
+     * 批量导出时每个文件包含的用户数
+     */
+    @Value("${wallet.export.usersPerFile:10000}")
+    private int usersPerFile;
+    /**
+     * 批量导出的并行度，0为CPU核数
+     */
+    @Value("${wallet.export.parallelism:0}")
+    private int parallelism;
+
+    @Autowired
+    private WalletService walletService;
+
+    /**
+     * 导出一个用户的账单，调用方负责关闭通道
+     *
+     * @param from 创建时间下限（含），可为空
+     * @param to   创建时间上限（不含），可为空
+     * @return 导出的记录数
+     */
+    public long export(String userId, Date from, Date to, StatementFormat format, WritableByteChannel channel) throws IOException {
+        StatementBuffer out = new StatementBuffer(channel, bufferSize);
+        try {
+            format.begin(out);
+            long records = write(userId, from, to, format, out);
+            format.end(out);
+            out.flush();
+            return records;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 导出全部有交易记录的用户的账单，每wallet.export.usersPerFile个用户一个文件（statement-00000.csv...），
+     * 每个文件先写临时文件，刷盘后改名，目录里不会出现写了一半的文件
+     *
+     * @param from 创建时间下限（含），可为空
+     * @param to   创建时间上限（不含），可为空
+     * @param dir  导出目录，不存在时创建，同名文件会被覆盖
+     */
+    public StatementExport exportAll(Date from, Date to, StatementFormat format, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create export dir: " + dir);
+        }
+        //只复制userId，和记录数无关
+        String[] userIds = walletService.transactionUserIds().toArray(new String[0]);
+        Job job = new Job(from, to, format, dir, userIds, (userIds.length + usersPerFile - 1) / usersPerFile);
+        long start = System.currentTimeMillis();
+        if (job.files.length > 0) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(),
+                    p -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                        thread.setName("wallet-statement-export-" + thread.getPoolIndex());
+                        return thread;
+                    }, null, false);
+            try {
+                pool.invoke(new ExportTask(job, 0, job.files.length));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+        LOG.info("export " + job.records.sum() + " records of " + userIds.length + " users into " + job.files.length
+                + " files in " + (System.currentTimeMillis() - start) + "ms");
+        return new StatementExport(Arrays.asList(job.files), userIds.length, job.records.sum(), job.bytes.sum());
+    }
+
+    /**
+     * 写一个用户的记录，没有记录时什么都不写
+     *
+     * @return 写出的记录数
+     */
+    private long write(String userId, Date from, Date to, StatementFormat format, StatementBuffer out) {
+        boolean[] started = new boolean[1];
+        return walletService.forEachTransactionRecord(userId, from, to, record -> {
+            if (!started[0]) {
+                format.beginUser(out, userId);
+                started[0] = true;
+            }
+            format.record(out, userId, record);
+        });
+    }
+
+    /**
+     * 写第part段用户的文件
+     */
+    private void writePart(Job job, int part) throws IOException {
+        File target = new File(job.dir, String.format("statement-%05d.%s", part, job.format.getExtension()));
+        File temp = new File(target.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            StatementBuffer out = new StatementBuffer(channel, bufferSize);
+            job.format.begin(out);
+            int end = Math.min(job.userIds.length, (part + 1) * usersPerFile);
+            for (int i = part * usersPerFile; i < end; i++) {
+                job.records.add(write(job.userIds[i], job.from, job.to, job.format, out));
+            }
+            job.format.end(out);
+            out.flush();
+            channel.force(false);
+            job.bytes.add(out.written());
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        job.files[part] = target.getPath();
+    }
+
+    /**
+     * 一次批量导出的参数和汇总
+     */
+    private static final class Job {
+
+        final Date from;
+        final Date to;
+        final StatementFormat format;
+        final File dir;
+        final String[] userIds;
+        final String[] files;
+        final LongAdder records = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        Job(Date from, Date to, StatementFormat format, File dir, String[] userIds, int parts) {
+            this.from = from;
+            this.to = to;
+            this.format = format;
+            this.dir = dir;
+            this.userIds = userIds;
+            this.files = new String[parts];
+        }
+    }
+
+    /**
+     * 导出[low, high)段，多于一段时对半拆分
+     */
+    private final class ExportTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Job job;
+        private final int low;
+        private final int high;
+
+        ExportTask(Job job, int low, int high) {
+            this.job = job;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected void compute() {
+            if (high - low > 1) {
+                int mid = (low + high) >>> 1;
+                invokeAll(new ExportTask(job, low, mid), new ExportTask(job, mid, high));
+                return;
+            }
+            try {
+                writePart(job, low);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.wallet.application;
 
+import com.wallet.domain.metrics.WalletMetrics;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -12,13 +13,82 @@ import java.util.function.Supplier;
 @Component
 public class UserBehavior {
 
+    /**
+     * 批量操作在监控里的操作类型
+     */
+    private static final String BATCH = "BATCH";
+
     @Autowired
     private ValidatorManager validatorManager;
+    @Autowired
+    private AdmissionController admissionController;
+    @Autowired
+    private WalletMetrics metrics;
+
+    public <R> R moneyOperatorTemplate(String operatorType, String userId, String targetUserId, Long amount, Currency currency, Supplier<R> supplier) {
+        return moneyOperatorTemplate(operatorType, userId, targetUserId, amount, currency, null, supplier);
+    }
+
+    /**
+     * @param targetCurrency 跨币种转账的到账币种，其他操作为空
+     */
+    public <R> R moneyOperatorTemplate(String operatorType, String userId, String targetUserId, Long amount, Currency currency,
+                                       Currency targetCurrency, Supplier<R> supplier) {
+        //被流控和校验拒绝的也算一次失败的操作
+        long start = metrics.start();
+        boolean success = false;
+        try {
+            R result = execute(operatorType, userId, targetUserId, amount, currency, targetCurrency, supplier);
+            success = true;
+            return result;
+        } finally {
+            metrics.operation(operatorType, userId, start, success);
+        }
+    }
 
-    public <R> R moneyOperatorTemplate(String userId, Long amount, Currency currency, Supplier<R> supplier) {
+    private <R> R execute(String operatorType, String userId, String targetUserId, Long amount, Currency currency,
+                          Currency targetCurrency, Supplier<R> supplier) {
+        //流控放在最前面，超限直接拒绝，不占用校验链的额度
+        admissionController.acquire(userId);
         //统一校验
-        validatorManager.validate();
-        //其他能统一做的先省略了，上面只是做一个示例
-        return supplier.get();
+        ValidationContext context = new ValidationContext(operatorType, userId, targetUserId, amount, currency);
+        context.setTargetCurrency(targetCurrency);
+        validate(context);
+        try {
+            return supplier.get();
+        } catch (RuntimeException e) {
+            cancel(context);
+            throw e;
+        }
+    }
+
+    /**
+     * 批量操作模板，按明细数占用全局流控，明细在执行前逐条调用validate，单条不通过只影响这一条
+     */
+    public <R> R batchOperatorTemplate(int size, Supplier<R> supplier) {
+        long start = metrics.start();
+        boolean success = false;
+        try {
+            admissionController.acquireBatch(size);
+            R result = supplier.get();
+            success = true;
+            return result;
+        } finally {
+            metrics.operation(BATCH, null, start, success);
+        }
+    }
+
+    /**
+     * 执行校验链，不通过抛异常
+     */
+    protected void validate(ValidationContext context) {
+        validatorManager.validate(context);
+    }
+
+    /**
+     * 校验通过但操作失败，撤销校验占用的额度
+     */
+    protected void cancel(ValidationContext context) {
+        validatorManager.cancel(context);
     }
 }
@@ -1,15 +1,28 @@
 package com.wallet.application;
 
-import com.alibaba.fastjson.JSON;
+import com.wallet.application.dto.BatchItem;
+import com.wallet.application.dto.BatchResult;
 import com.wallet.application.dto.OperatorRecord;
+import com.wallet.application.dto.RecordPage;
 import com.wallet.domain.model.Account;
+import com.wallet.domain.model.IdempotencyKey;
 import com.wallet.domain.model.Money;
+import com.wallet.domain.model.TransactionPage;
+import com.wallet.domain.model.WalletCommand;
+import com.wallet.domain.repository.AccountPolicyRepository;
 import com.wallet.domain.service.WalletService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Currency;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
  * 组合编排领域层服务，对外提供统一功能服务
@@ -18,9 +31,26 @@ import java.util.List;
 public class UserService extends UserBehavior {
 
 
+    /**
+     * 每个核的批量分片数，分片多一些负载更均衡
+     */
+    private static final int BATCH_SHARDS_PER_CORE = 4;
+
+    /**
+     * 分页查询的最大页大小
+     */
+    public static final int MAX_PAGE_SIZE = 1000;
+
     @Autowired
     private WalletService walletService;
 
+    @Autowired
+    private AccountPolicyRepository policyRepository;
+    @Autowired
+    private AdmissionController admissionController;
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
     /**
      * 用户存钱，核心是变更是钱包模型的变更，定义在应用层调用，是为了避免业务在钱包动作前后的业务定制逻辑侵入领域层
      * 当前业务场景不需要做额外的动作，后续业务定制扩展内容可以避免领域层的改动
@@ -31,39 +61,300 @@ public class UserService extends UserBehavior {
      * @return 存钱后余额
      */
     public Long deposit(String userId, Long amount, Currency currency) {
-        return moneyOperatorTemplate(userId, amount, currency, () -> {
+        return executeDeposit(userId, amount, currency, null);
+    }
+
+
+    public Long withdraw(String userId, Long amount, Currency currency) {
+        return executeWithdraw(userId, amount, currency, null);
+    }
+
+
+    public void transfer(String from, String to, Long amount, Currency currency) {
+        executeTransfer(from, to, amount, currency, null, null);
+    }
+
+
+    /**
+     * 幂等存钱：客户端超时重试时带上同一个请求号，只入账一次，重复请求返回第一次的余额
+     *
+     * @param requestId 请求号，在用户内唯一；同一请求号参数不同时报错
+     */
+    public Long deposit(String userId, Long amount, Currency currency, String requestId) {
+        return idempotencyStore.execute(userId, requestId, fingerprint(WalletService.DEPOSIT, null, amount, currency),
+                request -> executeDeposit(userId, amount, currency, request));
+    }
+
+
+    public Long withdraw(String userId, Long amount, Currency currency, String requestId) {
+        return idempotencyStore.execute(userId, requestId, fingerprint(WalletService.WITHDRAW, null, amount, currency),
+                request -> executeWithdraw(userId, amount, currency, request));
+    }
+
+
+    public void transfer(String from, String to, Long amount, Currency currency, String requestId) {
+        idempotencyStore.execute(from, requestId, fingerprint(WalletService.TRANSFER, to, amount, currency),
+                request -> executeTransfer(from, to, amount, currency, null, request));
+    }
+
+
+    /**
+     * 跨币种转账，来源扣currency，去向按当前汇率换算后入账到targetCurrency；
+     * 金额按扣款币种校验，到账币种也要在支持的币种里并且有报价
+     */
+    public void transfer(String from, String to, Long amount, Currency currency, Currency targetCurrency) {
+        executeTransfer(from, to, amount, currency, targetCurrency, null);
+    }
+
+
+    public void transfer(String from, String to, Long amount, Currency currency, Currency targetCurrency, String requestId) {
+        idempotencyStore.execute(from, requestId, fingerprint(WalletService.TRANSFER, to, amount, currency, targetCurrency),
+                request -> executeTransfer(from, to, amount, currency, targetCurrency, request));
+    }
+
+
+    /**
+     * @param request 幂等请求的标识，和变更写进同一条日志，为空时不去重
+     */
+    private Long executeDeposit(String userId, Long amount, Currency currency, IdempotencyKey request) {
+        return moneyOperatorTemplate(WalletService.DEPOSIT, userId, null, amount, currency, () -> {
             Money money = new Money(amount, currency);
-            Account account = walletService.deposit(userId, money);
+            Account account = walletService.deposit(userId, money, request);
             return account.getAmount().longValue();
         });
     }
 
 
-    public Long withdraw(String userId, Long amount, Currency currency) {
-        return moneyOperatorTemplate(userId, amount, currency, () -> {
+    private Long executeWithdraw(String userId, Long amount, Currency currency, IdempotencyKey request) {
+        return moneyOperatorTemplate(WalletService.WITHDRAW, userId, null, amount, currency, () -> {
             Money money = new Money(amount, currency);
-            Account account = walletService.withdraw(userId, money);
+            Account account = walletService.withdraw(userId, money, request);
             return account.getAmount().longValue();
         });
     }
 
 
-    public void transfer(String from, String to, Long amount, Currency currency) {
-        moneyOperatorTemplate(from, amount, currency, () -> {
+    /**
+     * @param targetCurrency 到账币种，为空时和currency相同
+     */
+    private Long executeTransfer(String from, String to, Long amount, Currency currency, Currency targetCurrency, IdempotencyKey request) {
+        return moneyOperatorTemplate(WalletService.TRANSFER, from, to, amount, currency, targetCurrency, () -> {
             Money money = new Money(amount, currency);
-            walletService.transfer(from, to, money);
+            walletService.transfer(from, to, money, null == targetCurrency ? null : targetCurrency.getCurrencyCode(), request);
             return null;
         });
     }
 
 
+    private static long fingerprint(String operatorType, String targetUserId, Long amount, Currency currency) {
+        return IdempotencyStore.fingerprint(operatorType, targetUserId, amount, null == currency ? null : currency.getCurrencyCode());
+    }
+
+
+    /**
+     * 到账币种和扣款币种相同时和同币种转账的指纹一样
+     */
+    private static long fingerprint(String operatorType, String targetUserId, Long amount, Currency currency, Currency targetCurrency) {
+        if (null == targetCurrency || targetCurrency.equals(currency)) {
+            return fingerprint(operatorType, targetUserId, amount, currency);
+        }
+        String code = null == currency ? null : currency.getCurrencyCode();
+        return IdempotencyStore.fingerprint(operatorType, targetUserId, amount, code + "->" + targetCurrency.getCurrencyCode());
+    }
+
+
+    /**
+     * 批量存钱，适合代发、返现等一次给大量用户入账的场景
+     *
+     * @param items 明细
+     * @return 按明细顺序的结果
+     */
+    public BatchResult batchDeposit(List<BatchItem> items) {
+        return batch(WalletService.DEPOSIT, items);
+    }
+
+
+    public BatchResult batchWithdraw(List<BatchItem> items) {
+        return batch(WalletService.WITHDRAW, items);
+    }
+
+
+    public BatchResult batchTransfer(List<BatchItem> items) {
+        return batch(WalletService.TRANSFER, items);
+    }
+
+
+    /**
+     * 按操作人userId散列分片，同一账户的明细落在同一分片内按原顺序执行，分片之间并行
+     */
+    private BatchResult batch(String operatorType, List<BatchItem> items) {
+        return batchOperatorTemplate(items.size(), () -> {
+            int size = items.size();
+            byte[] codes = new byte[size];
+            long[] balances = new long[size];
+            List<WalletCommand> commands = new ArrayList<>(size);
+            ValidationContext[] contexts = new ValidationContext[size];
+            for (int i = 0; i < size; i++) {
+                BatchItem item = items.get(i);
+                ValidationContext context = new ValidationContext(operatorType, item.getUserId(), item.getTargetUserId(), item.getAmount(), item.getCurrency());
+                try {
+                    validate(context);
+                    contexts[i] = context;
+                } catch (RuntimeException e) {
+                    //校验不通过的明细不执行
+                    codes[i] = WalletCommand.FAILED;
+                    commands.add(null);
+                    continue;
+                }
+                commands.add(WalletCommand.builder()
+                        .operatorType(operatorType)
+                        .userId(item.getUserId())
+                        .targetUserId(item.getTargetUserId())
+                        .money(new Money(item.getAmount(), item.getCurrency()))
+                        .build());
+            }
+            int[][] shards = shard(commands);
+            IntStream.range(0, shards.length).parallel()
+                    .filter(shard -> shards[shard].length > 0)
+                    .forEach(shard -> walletService.batch(commands, shards[shard], codes, balances));
+            for (int i = 0; i < size; i++) {
+                if (null != contexts[i] && WalletCommand.FAILED == codes[i]) {
+                    cancel(contexts[i]);
+                }
+            }
+            return new BatchResult(codes, balances);
+        });
+    }
+
+
+    /**
+     * @return 每个分片包含的明细下标，保持原顺序，跳过为空的明细
+     */
+    private int[][] shard(List<WalletCommand> commands) {
+        int shardCount = BATCH_SHARDS_PER_CORE * ForkJoinPool.commonPool().getParallelism();
+        int[] shardOf = new int[commands.size()];
+        int[] counts = new int[shardCount];
+        for (int i = 0; i < shardOf.length; i++) {
+            if (null == commands.get(i)) {
+                shardOf[i] = -1;
+                continue;
+            }
+            int h = commands.get(i).getUserId().hashCode();
+            shardOf[i] = ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shardCount;
+            counts[shardOf[i]]++;
+        }
+        int[][] shards = new int[shardCount][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards[shard] = new int[counts[shard]];
+            counts[shard] = 0;
+        }
+        for (int i = 0; i < shardOf.length; i++) {
+            if (shardOf[i] >= 0) {
+                shards[shardOf[i]][counts[shardOf[i]]++] = i;
+            }
+        }
+        return shards;
+    }
+
+
+    /**
+     * 冻结账户，冻结后不能存取转，也不能作为转账去向
+     */
+    public void freeze(String userId) {
+        policyRepository.update(userId, policy -> policy.toBuilder().frozen(true).build());
+    }
+
+
+    public void unfreeze(String userId) {
+        policyRepository.update(userId, policy -> policy.toBuilder().frozen(false).build());
+    }
+
+
+    /**
+     * 设置单笔金额上限（分）
+     */
+    public void limitAmountPerOperation(String userId, long maxAmount) {
+        policyRepository.update(userId, policy -> policy.toBuilder().maxAmountPerOperation(maxAmount).build());
+    }
+
+
+    /**
+     * 运行时调整流控，rate为每秒请求数，0为不限
+     */
+    public void limitRate(long globalRate, long globalBurst, long userRate, long userBurst) {
+        admissionController.setGlobalLimit(globalRate, globalBurst);
+        admissionController.setUserLimit(userRate, userBurst);
+    }
+
+
+    /**
+     * @return 默认币种的余额，没有返回0；固定币种，不随最近一次变更的币种变化
+     * @deprecated 用queryBalance(userId, currency)
+     */
+    @Deprecated
     public Long queryBalance(String userId) {
-        return walletService.queryBalance(userId).getAmount().longValue();
+        return walletService.queryBalance(userId, Money.DEFAULT_CURRENCY_CODE);
+    }
+
+
+    /**
+     * @return 该币种的余额，没有这个币种返回0
+     */
+    public Long queryBalance(String userId, Currency currency) {
+        return walletService.queryBalance(userId, currency.getCurrencyCode());
+    }
+
+
+    /**
+     * @return 余额不为0的各币种余额，币种代码 -> 分
+     */
+    public Map<String, Long> queryBalances(String userId) {
+        return walletService.queryBalance(userId).balanceMap();
     }
 
 
+    /**
+     * 替换全部汇率，之后的跨币种转账按新汇率换算
+     *
+     * @param base   基准币种
+     * @param quotes 1个基准币种可以换多少该币种，币种代码 -> 汇率
+     */
+    public void updateExchangeRates(Currency base, Map<String, BigDecimal> quotes) {
+        walletService.getExchangeRates().update(base.getCurrencyCode(), quotes);
+    }
+
+
+    /**
+     * @return 只读视图，访问时才转换，不复制记录
+     */
     public List<OperatorRecord> queryTransactionRecord(String userId) {
-        String jsonString = JSON.toJSONString(walletService.queryTransactionRecord(userId));
-        return JSON.parseArray(jsonString, OperatorRecord.class);
+        return OperatorRecordMapper.view(walletService.queryTransactionRecord(userId));
+    }
+
+
+    /**
+     * 按时间倒序分页查询交易记录，游标分页，翻页成本和总记录数无关
+     *
+     * @param userId       用户id
+     * @param from         创建时间下限（含），可为空
+     * @param to           创建时间上限（不含），可为空
+     * @param operatorType 操作类型，可为空
+     * @param cursor       上一页返回的游标，第一页为空
+     * @param limit        页大小，1到MAX_PAGE_SIZE
+     */
+    public RecordPage queryTransactionRecord(String userId, Date from, Date to, String operatorType, Long cursor, int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        TransactionPage page = walletService.queryTransactionPage(userId, from, to, operatorType, cursor, limit);
+        return new RecordPage(OperatorRecordMapper.view(page.getRecords()), page.getNextCursor() < 0 ? null : page.getNextCursor());
+    }
+
+
+    /**
+     * 流式遍历交易记录，记录很多时用它，任何时刻只有当前一条被转换出来
+     */
+    public Iterator<OperatorRecord> iterateTransactionRecord(String userId) {
+        return OperatorRecordMapper.iterator(walletService.queryTransactionRecord(userId).iterator());
     }
 }
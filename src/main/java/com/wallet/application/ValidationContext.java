@@ -0,0 +1,53 @@
+package com.wallet.application;
+
+import lombok.Data;
+
+import java.util.Currency;
+
+/**
+ * 一次资金操作的校验上下文，校验器从这里拿请求参数，不需要再额外查询
+ */
+@Data
+public class ValidationContext {
+    /**
+     * 操作类型，见WalletService.DEPOSIT/WITHDRAW/TRANSFER
+     */
+    private String operatorType;
+    /**
+     * 操作人
+     */
+    private String userId;
+    /**
+     * 转账去向，其他操作为空
+     */
+    private String targetUserId;
+    /**
+     * 金额（分）
+     */
+    private Long amount;
+    /**
+     * 币种
+     */
+    private Currency currency;
+    /**
+     * 跨币种转账的到账币种，其他操作为空
+     */
+    private Currency targetCurrency;
+    /**
+     * 请求时间，同一请求的校验和撤销用同一个时间
+     */
+    private long requestTime;
+    /**
+     * 取钱限额占用的额度（按限额币种折算），由LimitValidator写入，撤销时归还
+     */
+    private long limitAmount;
+
+    public ValidationContext(String operatorType, String userId, String targetUserId, Long amount, Currency currency) {
+        this.operatorType = operatorType;
+        this.userId = userId;
+        this.targetUserId = targetUserId;
+        this.amount = amount;
+        this.currency = currency;
+        this.requestTime = System.currentTimeMillis();
+    }
+}
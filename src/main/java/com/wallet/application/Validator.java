@@ -1,5 +1,23 @@
 package com.wallet.application;
 
+/**
+ * 校验器，校验不通过抛异常
+ * 校验链按cost从小到大执行，第一个失败就结束，便宜的参数校验放前面，要查状态的放后面
+ */
 public interface Validator {
-    void check();
+
+    void check(ValidationContext context);
+
+    /**
+     * 校验通过但操作最终失败时调用，占用了额度的校验器在这里归还
+     */
+    default void cancel(ValidationContext context) {
+    }
+
+    /**
+     * @return 相对成本，越小越先执行
+     */
+    default int cost() {
+        return 0;
+    }
 }
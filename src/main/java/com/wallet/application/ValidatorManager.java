@@ -5,23 +5,65 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 /**
  * 校验管理器
+ * 校验器按成本排好序编译成数组，热路径上只是一次数组遍历；运行时增删校验器整体替换数组
  */
 @Component
 public class ValidatorManager {
 
-    private List<Validator> validatorList = new ArrayList<>();
+    private volatile Validator[] chain = new Validator[0];
 
 
-    public void validate() {
-        validatorList.forEach(Validator::check);
+    public void validate(ValidationContext context) {
+        Validator[] validators = chain;
+        for (int i = 0; i < validators.length; i++) {
+            try {
+                validators[i].check(context);
+            } catch (RuntimeException e) {
+                //前面已通过的校验器可能占用了额度，撤销
+                for (int j = 0; j < i; j++) {
+                    validators[j].cancel(context);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 操作失败，通知整条校验链撤销（执行操作说明校验链全部通过）
+     */
+    public void cancel(ValidationContext context) {
+        for (Validator validator : chain) {
+            validator.cancel(context);
+        }
+    }
+
+    public synchronized void addValidator(Validator validator) {
+        List<Validator> validators = new ArrayList<>(Arrays.asList(chain));
+        validators.add(validator);
+        compile(validators);
+    }
+
+    public synchronized void removeValidator(Validator validator) {
+        List<Validator> validators = new ArrayList<>(Arrays.asList(chain));
+        validators.remove(validator);
+        compile(validators);
     }
 
     @Autowired
-    private void setValidatorList(List<Validator> validatorList) {
-        this.validatorList = validatorList;
+    private synchronized void setValidatorList(List<Validator> validatorList) {
+        compile(validatorList);
+    }
+
+    private void compile(List<Validator> validators) {
+        Validator[] compiled = validators.toArray(new Validator[0]);
+        //稳定排序，成本相同的保持注册顺序
+        Arrays.sort(compiled, Comparator.comparingInt(Validator::cost));
+        chain = compiled;
     }
 }
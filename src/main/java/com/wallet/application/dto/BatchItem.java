@@ -0,0 +1,32 @@
+package com.wallet.application.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Currency;
+
+/**
+ * 批量操作的一条明细
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchItem {
+    /**
+     * 用户标识（转账时为转账人）
+     */
+    private String userId;
+    /**
+     * 到账人标识，只有转账需要
+     */
+    private String targetUserId;
+    /**
+     * 金额
+     */
+    private Long amount;
+    /**
+     * 币种
+     */
+    private Currency currency;
+}
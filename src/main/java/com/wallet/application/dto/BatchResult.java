@@ -0,0 +1,60 @@
+package com.wallet.application.dto;
+
+import com.wallet.domain.model.WalletCommand;
+
+/**
+ * 批量操作结果，按明细顺序一一对应，用原始数组存放，几十万条明细也只占几MB
+ */
+public class BatchResult {
+    /**
+     * 成功
+     */
+    public static final byte SUCCESS = WalletCommand.SUCCESS;
+    /**
+     * 失败（余额不足、参数错误等）
+     */
+    public static final byte FAILED = WalletCommand.FAILED;
+
+    private final byte[] codes;
+    private final long[] balances;
+
+    public BatchResult(byte[] codes, long[] balances) {
+        this.codes = codes;
+        this.balances = balances;
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    public boolean isSuccess(int index) {
+        return SUCCESS == codes[index];
+    }
+
+    /**
+     * @return 第index条明细的结果码
+     */
+    public byte getCode(int index) {
+        return codes[index];
+    }
+
+    /**
+     * @return 第index条明细执行后用户的余额，失败时无意义
+     */
+    public long getBalance(int index) {
+        return balances[index];
+    }
+
+    /**
+     * @return 失败的明细数
+     */
+    public int failedCount() {
+        int failed = 0;
+        for (byte code : codes) {
+            if (SUCCESS != code) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,24 @@
+package com.wallet.application.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 历史账单分页结果，新的在前
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RecordPage {
+    /**
+     * 本页账单
+     */
+    private List<OperatorRecord> records;
+    /**
+     * 查询下一页时带上的游标，为空表示没有下一页
+     */
+    private Long nextCursor;
+}
@@ -0,0 +1,32 @@
+package com.wallet.application.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 批量账单导出的结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StatementExport {
+    /**
+     * 导出的文件，按用户分段的顺序
+     */
+    private List<String> files;
+    /**
+     * 参与导出的用户数（包括这段时间没有记录的）
+     */
+    private long users;
+    /**
+     * 导出的记录数
+     */
+    private long records;
+    /**
+     * 写出的字节数
+     */
+    private long bytes;
+}
@@ -0,0 +1,106 @@
+package com.wallet.domain.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 热点账户探测，Space-Saving算法：每条固定capacity个计数器，满了就顶替计数最小的那个并在它的计数上累加，
+ * 真实的热点一定留在表里，计数偏大不超过被顶替的最小值
+ * <p>
+ * 按线程分条，每条单独加锁，只喂采样后的请求，锁竞争很小；读取时合并各条
+ */
+public final class HotKeyDetector {
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * @param capacity 每条保留的账户数
+     */
+    public HotKeyDetector(int capacity) {
+        stripes = new Stripe[LatencyHistogram.stripeCount()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+        mask = stripes.length - 1;
+    }
+
+    public void hit(String key) {
+        stripes[LatencyHistogram.stripeOf(mask)].hit(key);
+    }
+
+    /**
+     * 所有计数减半，让结果反映最近的流量
+     */
+    public void decay() {
+        for (Stripe stripe : stripes) {
+            stripe.decay();
+        }
+    }
+
+    /**
+     * @return 计数最高的limit个账户，按计数倒序
+     */
+    public List<Map.Entry<String, Long>> top(int limit) {
+        Map<String, Long> merged = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            stripe.mergeInto(merged);
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(merged.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return entries.size() > limit ? new ArrayList<>(entries.subList(0, limit)) : entries;
+    }
+
+    private static final class Stripe {
+
+        private final String[] keys;
+        private final int[] hashes;
+        private final long[] counts;
+        private int size;
+
+        Stripe(int capacity) {
+            keys = new String[capacity];
+            hashes = new int[capacity];
+            counts = new long[capacity];
+        }
+
+        synchronized void hit(String key) {
+            int hash = key.hashCode();
+            int min = 0;
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash && keys[i].equals(key)) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            if (size < keys.length) {
+                keys[size] = key;
+                hashes[size] = hash;
+                counts[size++] = 1;
+                return;
+            }
+            keys[min] = key;
+            hashes[min] = hash;
+            counts[min]++;
+        }
+
+        synchronized void decay() {
+            for (int i = 0; i < size; i++) {
+                counts[i] >>>= 1;
+            }
+        }
+
+        synchronized void mergeInto(Map<String, Long> merged) {
+            for (int i = 0; i < size; i++) {
+                if (counts[i] > 0) {
+                    merged.merge(keys[i], counts[i], Long::sum);
+                }
+            }
+        }
+    }
+}
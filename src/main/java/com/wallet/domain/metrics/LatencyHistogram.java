@@ -0,0 +1,145 @@
+package com.wallet.domain.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图（HDR风格的对数线性分桶），单位纳秒
+ * 每个2的幂区间再均分成32个子桶，相对误差不超过1/32；超过MAX_VALUE的值记在最后一个桶
+ * <p>
+ * 按线程分条，每条一个桶数组，记录时只对本条做一次原子自增，读取时把各条相加
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /**
+     * 约18分钟
+     */
+    static final long MAX_VALUE = (1L << 40) - 1;
+    static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        stripes = new AtomicLongArray[stripeCount()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        mask = stripes.length - 1;
+    }
+
+    public void record(long nanos) {
+        long value = Math.min(MAX_VALUE, Math.max(0, nanos));
+        stripes[stripeOf(mask)].getAndIncrement(bucketOf(value));
+        sum.add(value);
+        for (long current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get()) {
+            //只有刷新最大值时才会竞争
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = stripe.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        return new Snapshot(counts, total, sum.sum(), max.get());
+    }
+
+    /**
+     * @return 不小于CPU核数的2的幂，最多64
+     */
+    static int stripeCount() {
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors() && count < 64) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    /**
+     * 按线程id散列到条
+     */
+    static int stripeOf(int mask) {
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h >>> 16) & mask;
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT << 1) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * @return 桶内的最大值
+     */
+    static long highestOf(int bucket) {
+        if (bucket < SUB_COUNT << 1) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long mantissa = SUB_COUNT + (bucket & (SUB_COUNT - 1));
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * 某一时刻的读数，各条之间不是原子的，误差在并发写入的那几次之内
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param quantile 0~1
+         * @return 不小于该分位的桶上界，没有数据返回0
+         */
+        public long valueAt(double quantile) {
+            if (0 == count) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, highestOf(i));
+                }
+            }
+            return max;
+        }
+    }
+}
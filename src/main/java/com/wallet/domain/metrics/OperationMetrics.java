@@ -0,0 +1,55 @@
+package com.wallet.domain.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一种操作的计数和延迟，计数每次都记，延迟只记采样到的那些
+ */
+public final class OperationMetrics {
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final boolean enabled;
+
+    OperationMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param start WalletMetrics.start()的返回值，0表示这次没有采样
+     */
+    public void record(long start, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        calls.increment();
+        if (!success) {
+            failures.increment();
+        }
+        if (0 != start) {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 只记延迟，不计数，用在调用次数能从操作次数推出来的地方，省掉每次一个原子累加
+     */
+    public void latency(long start) {
+        if (0 != start) {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public LatencyHistogram.Snapshot latency() {
+        return latency.snapshot();
+    }
+}
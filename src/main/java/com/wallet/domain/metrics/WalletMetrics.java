@@ -0,0 +1,248 @@
+package com.wallet.domain.metrics;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 钱包监控指标：每种操作的次数、失败次数和延迟直方图，仓储调用的延迟，余额CAS冲突和热点账户
+ * <p>
+ * 计数用分条累加器，每次都记；取时间和热点探测按1/2^sampleShift采样，采样之外的请求不读时钟，
+ * 开销只有一次随机数和几次无竞争的累加。scrape输出Prometheus文本格式
+ */
+@Component
+public class WalletMetrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int TOP_HOT_KEYS = 10;
+
+    @Value("${wallet.metrics.enabled:true}")
+    private boolean enabled;
+    /**
+     * 每2^sampleShift次操作取一次时间
+     */
+    @Value("${wallet.metrics.sampleShift:6}")
+    private int sampleShift;
+    /**
+     * 热点账户每条保留的个数
+     */
+    @Value("${wallet.metrics.hotKeyCapacity:32}")
+    private int hotKeyCapacity;
+    /**
+     * 热点计数减半的间隔，结果反映最近几个间隔的流量
+     */
+    @Value("${wallet.metrics.hotKeyDecaySeconds:60}")
+    private long hotKeyDecaySeconds;
+
+    private int sampleMask;
+    private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final Map<String, OperationMetrics> calls = new ConcurrentHashMap<>();
+    /**
+     * 其他组件自己维护的计数，scrape时读取
+     */
+    private final Map<String, LongSupplier> counters = new ConcurrentHashMap<>();
+    private final LongAdder casConflicts = new LongAdder();
+    private final LongAdder lockFallbacks = new LongAdder();
+    /**
+     * 按采样流量统计的热点
+     */
+    private HotKeyDetector hotAccounts;
+    /**
+     * 按退化到加锁的次数统计的热点，每次都记（本来就很少）
+     */
+    private HotKeyDetector contendedAccounts;
+    private ScheduledExecutorService decayExecutor;
+
+    @PostConstruct
+    private void init() {
+        sampleMask = (1 << sampleShift) - 1;
+        hotAccounts = new HotKeyDetector(hotKeyCapacity);
+        contendedAccounts = new HotKeyDetector(hotKeyCapacity);
+        decayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wallet-metrics-decay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        decayExecutor.scheduleWithFixedDelay(() -> {
+            hotAccounts.decay();
+            contendedAccounts.decay();
+        }, hotKeyDecaySeconds, hotKeyDecaySeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void close() {
+        decayExecutor.shutdownNow();
+    }
+
+    /**
+     * @return 采样到时返回当前纳秒时间，否则返回0
+     */
+    public long start() {
+        if (!enabled || 0 != (ThreadLocalRandom.current().nextInt() & sampleMask)) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        return 0 == now ? 1 : now;
+    }
+
+    /**
+     * 记录一次用户操作，采样到的操作同时计入热点
+     *
+     * @param start start()的返回值
+     */
+    public void operation(String operatorType, String userId, long start, boolean success) {
+        if (!enabled) {
+            return;
+        }
+        //先get：jdk8的computeIfAbsent即使key已存在也会锁桶
+        OperationMetrics metrics = operations.get(operatorType);
+        if (null == metrics) {
+            metrics = operations.computeIfAbsent(operatorType, key -> new OperationMetrics(enabled));
+        }
+        metrics.record(start, success);
+        if (0 != start && null != userId) {
+            hotAccounts.hit(userId);
+        }
+    }
+
+    /**
+     * @return 仓储调用的指标，调用方持有返回值，避免每次查表；关闭监控时返回的对象什么都不记
+     */
+    public OperationMetrics call(String name) {
+        return calls.computeIfAbsent(name, key -> new OperationMetrics(enabled));
+    }
+
+    /**
+     * 余额CAS失败一次（账户在读和写之间被别人改了）
+     */
+    public void casConflict() {
+        if (enabled) {
+            casConflicts.increment();
+        }
+    }
+
+    /**
+     * 乐观自旋用完，退化到分段锁
+     */
+    public void lockFallback(String userId) {
+        if (enabled) {
+            lockFallbacks.increment();
+            contendedAccounts.hit(userId);
+        }
+    }
+
+    /**
+     * 注册一个计数，scrape时输出为counter
+     *
+     * @param name Prometheus指标名
+     */
+    public void counter(String name, LongSupplier value) {
+        counters.put(name, value);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public OperationMetrics operation(String operatorType) {
+        return operations.get(operatorType);
+    }
+
+    public long getCasConflicts() {
+        return casConflicts.sum();
+    }
+
+    public long getLockFallbacks() {
+        return lockFallbacks.sum();
+    }
+
+    /**
+     * @return 采样流量最大的limit个账户，值是按采样率还原的估计请求数
+     */
+    public Map<String, Long> hotAccounts(int limit) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : hotAccounts.top(limit)) {
+            result.put(entry.getKey(), entry.getValue() << sampleShift);
+        }
+        return result;
+    }
+
+    /**
+     * @return Prometheus文本格式的全部指标
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, OperationMetrics> sortedOperations = new TreeMap<>(operations);
+        Map<String, OperationMetrics> sortedCalls = new TreeMap<>(calls);
+
+        type(out, "wallet_operations_total", "counter");
+        sortedOperations.forEach((name, metrics) -> sample(out, "wallet_operations_total", "operation", name, metrics.getCalls()));
+        type(out, "wallet_operation_failures_total", "counter");
+        sortedOperations.forEach((name, metrics) -> sample(out, "wallet_operation_failures_total", "operation", name, metrics.getFailures()));
+        summary(out, "wallet_operation_latency_seconds", "operation", sortedOperations);
+        summary(out, "wallet_repository_latency_seconds", "call", sortedCalls);
+
+        type(out, "wallet_balance_cas_conflicts_total", "counter");
+        out.append("wallet_balance_cas_conflicts_total ").append(casConflicts.sum()).append('\n');
+        type(out, "wallet_balance_lock_fallbacks_total", "counter");
+        out.append("wallet_balance_lock_fallbacks_total ").append(lockFallbacks.sum()).append('\n');
+
+        new TreeMap<>(counters).forEach((name, value) -> {
+            type(out, name, "counter");
+            out.append(name).append(' ').append(value.getAsLong()).append('\n');
+        });
+
+        type(out, "wallet_hot_account_requests", "gauge");
+        hotAccounts(TOP_HOT_KEYS).forEach((userId, count) -> sample(out, "wallet_hot_account_requests", "userId", userId, count));
+        type(out, "wallet_contended_account_fallbacks", "gauge");
+        for (Map.Entry<String, Long> entry : contendedAccounts.top(TOP_HOT_KEYS)) {
+            sample(out, "wallet_contended_account_fallbacks", "userId", entry.getKey(), entry.getValue());
+        }
+        return out.toString();
+    }
+
+    /**
+     * 延迟按summary输出，_count是采样到的次数
+     */
+    private static void summary(StringBuilder out, String name, String label, Map<String, OperationMetrics> metrics) {
+        type(out, name, "summary");
+        metrics.forEach((key, value) -> {
+            LatencyHistogram.Snapshot snapshot = value.latency();
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(label).append("=\"").append(escape(key))
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(snapshot.valueAt(quantile))).append('\n');
+            }
+            sample(out, name + "_sum", label, key, seconds(snapshot.getSum()));
+            sample(out, name + "_count", label, key, snapshot.getCount());
+        });
+    }
+
+    private static void type(StringBuilder out, String name, String type) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String key, Object value) {
+        out.append(name).append('{').append(label).append("=\"").append(escape(key)).append("\"} ").append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -3,11 +3,17 @@ package com.wallet.domain.model;
 import lombok.Builder;
 import lombok.Data;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 账户模型
+ * <p>
+ * 一个账户可以持有多个币种，各币种余额互不混合；amount和currency是其中一个币种的视图：
+ * 变更返回的账户是本次变更的币种，查询不指定币种时是最近一次变更的币种
  */
 @Data
 @Builder
@@ -18,12 +24,17 @@ public class Account {
     private String userId;
     /**
      * 原子变量保证原子性，单机的话可以放弃锁的开销提升性能
+     * 已发布到仓储的Account视为不可变快照，余额变更由BalanceEngine生成新的Account，不要原地修改
      */
     private AtomicLong amount;
     /**
-     * 币种
+     * amount的币种
      */
     private String currency;
+    /**
+     * 各币种余额（分），下标是Currencies序号，没有的币种为0；只有currency一个币种有余额时为null，单币种账户不多占内存
+     */
+    private long[] balances;
     /**
      * version避免并发ABA问题
      */
@@ -36,4 +47,77 @@ public class Account {
      * 更新时间
      */
     private Date gmt_modify;
+
+    /**
+     * @return 该币种的余额（分），没有该币种返回0
+     */
+    public long balanceOf(String currencyCode) {
+        if (null == balances) {
+            return null != amount && null != currencyCode && currencyCode.equals(currency) ? amount.get() : 0;
+        }
+        int ordinal = Currencies.ordinalOf(currencyCode);
+        return ordinal < balances.length ? balances[ordinal] : 0;
+    }
+
+    /**
+     * @return 余额不为0的各币种余额，按币种代码排序
+     */
+    public Map<String, Long> balanceMap() {
+        Map<String, Long> result = new TreeMap<>();
+        if (null == balances) {
+            if (null != amount && 0 != amount.get()) {
+                result.put(currency, amount.get());
+            }
+            return result;
+        }
+        for (int ordinal = 1; ordinal < balances.length; ordinal++) {
+            if (0 != balances[ordinal]) {
+                result.put(Currencies.codeOf(ordinal), balances[ordinal]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 余额变更后的下一个版本，当前账户不变
+     *
+     * @param origin   变更前的账户，不存在时是version为0的空账户
+     * @param currency 变更的币种
+     * @param balance  该币种变更后的余额（分）
+     * @param now      变更时间
+     */
+    public static Account next(Account origin, String currency, long balance, Date now) {
+        return Account.builder()
+                .userId(origin.getUserId())
+                .amount(new AtomicLong(balance))
+                .currency(currency)
+                .balances(origin.balancesWith(currency, balance))
+                .version(origin.getVersion() + 1)
+                .gmt_create(null == origin.getGmt_create() ? now : origin.getGmt_create())
+                .gmt_modify(now)
+                .build();
+    }
+
+    /**
+     * @return 把currency的余额改成balance之后的balances，只剩currency有余额时返回null
+     */
+    private long[] balancesWith(String currencyCode, long balance) {
+        long[] current = balances;
+        if (null == current) {
+            if (null == currency || currency.equals(currencyCode) || null == amount || 0 == amount.get()) {
+                return null;
+            }
+            current = new long[Currencies.ordinalOf(currency) + 1];
+            current[current.length - 1] = amount.get();
+        }
+        int ordinal = Currencies.ordinalOf(currencyCode);
+        long[] updated = Arrays.copyOf(current, Math.max(current.length, ordinal + 1));
+        updated[ordinal] = balance;
+        for (int i = 1; i < updated.length; i++) {
+            if (i != ordinal && 0 != updated[i]) {
+                return updated;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,30 @@
+package com.wallet.domain.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 账户的风控策略，校验时使用
+ * 策略对象不可变，修改时整体替换
+ */
+@Data
+@Builder(toBuilder = true)
+public class AccountPolicy {
+
+    /**
+     * 没有单独设置策略的账户使用的默认策略
+     */
+    public static final AccountPolicy DEFAULT = AccountPolicy.builder()
+            .frozen(false)
+            .maxAmountPerOperation(Long.MAX_VALUE)
+            .build();
+
+    /**
+     * 是否冻结，冻结后不能存取转
+     */
+    private boolean frozen;
+    /**
+     * 单笔金额上限（分）
+     */
+    private long maxAmountPerOperation;
+}
@@ -0,0 +1,64 @@
+package com.wallet.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * 余额变更事件，一次变更涉及几个账户就有几个事件，带的是变更后的状态（和预写日志一致），
+ * 下游按version判断新旧，按(sequence, leg)去重
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BalanceChangeEvent {
+    /**
+     * 变更的序号，开启持久化时是这次变更在预写日志里结束的位置，否则是进程内递增序号
+     */
+    private Long sequence;
+    /**
+     * 在这次变更涉及的账户里的下标
+     */
+    private Integer leg;
+    /**
+     * 操作类型
+     */
+    private String operatorType;
+    /**
+     * 用户id，热点账户拆分过时发布前换成主账户（见HotAccountSplitter.toMainAccounts），不会是子账户
+     */
+    private String userId;
+    /**
+     * 变更后余额（分），热点账户是主账户加子账户的合计
+     */
+    private Long balance;
+    /**
+     * 币种
+     */
+    private String currency;
+    /**
+     * 变更后的账户version
+     */
+    private Long version;
+    /**
+     * 变更时间
+     */
+    private Date gmt_create;
+
+    public static BalanceChangeEvent of(long sequence, int leg, String operatorType, Account account) {
+        return BalanceChangeEvent.builder()
+                .sequence(sequence)
+                .leg(leg)
+                .operatorType(operatorType)
+                .userId(account.getUserId())
+                .balance(account.getAmount().get())
+                .currency(account.getCurrency())
+                .version(account.getVersion())
+                .gmt_create(account.getGmt_modify())
+                .build();
+    }
+}
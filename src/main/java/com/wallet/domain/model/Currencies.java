@@ -0,0 +1,61 @@
+package com.wallet.domain.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 币种序号表，把币种代码驻留成一个小整数，方便按序号存储和比较
+ * 序号一经分配不会改变，0保留给"未指定币种"
+ */
+public final class Currencies {
+
+    /**
+     * 未指定币种的序号
+     */
+    public static final int NONE = 0;
+
+    private static final Map<String, Integer> ORDINAL_MAP = new ConcurrentHashMap<>();
+    private static volatile String[] codes = new String[]{null};
+
+    private Currencies() {
+    }
+
+    /**
+     * @param code 币种代码，null返回NONE
+     * @return 币种序号，第一次出现时分配
+     */
+    public static int ordinalOf(String code) {
+        if (null == code) {
+            return NONE;
+        }
+        Integer ordinal = ORDINAL_MAP.get(code);
+        return null != ordinal ? ordinal : register(code);
+    }
+
+    /**
+     * @param ordinal 币种序号
+     * @return 币种代码，NONE返回null
+     */
+    public static String codeOf(int ordinal) {
+        String[] current = codes;
+        if (ordinal < 0 || ordinal >= current.length) {
+            throw new IllegalArgumentException("unknown currency ordinal: " + ordinal);
+        }
+        return current[ordinal];
+    }
+
+    private static synchronized int register(String code) {
+        Integer ordinal = ORDINAL_MAP.get(code);
+        if (null != ordinal) {
+            return ordinal;
+        }
+        String[] current = codes;
+        String[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = code;
+        //先发布代码表再发布序号，拿到序号的线程一定能查到代码
+        codes = grown;
+        ORDINAL_MAP.put(code, current.length);
+        return current.length;
+    }
+}
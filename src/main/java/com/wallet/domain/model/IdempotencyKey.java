@@ -0,0 +1,19 @@
+package com.wallet.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 幂等请求的标识：(userId, requestId)的128位散列和请求参数的指纹
+ * 随变更写进同一条预写日志，和变更一起刷盘，重启后据此重建去重表
+ */
+@Data
+@AllArgsConstructor
+public class IdempotencyKey {
+    private long high;
+    private long low;
+    /**
+     * 请求参数的指纹，同一请求号参数不同时报错
+     */
+    private long fingerprint;
+}
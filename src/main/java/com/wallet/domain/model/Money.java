@@ -96,6 +96,15 @@ public class Money implements Comparable<Money>, Serializable, Cloneable {
 
     private static final Currency DEFAULT_CURRENCY = Currency.getInstance(DEFAULT_CURRENCY_CODE);
 
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
     private int hashCode;
 
     /**
@@ -107,12 +116,42 @@ public class Money implements Comparable<Money>, Serializable, Cloneable {
     }
 
     public String getAmountString() {
-        String amount = this.getAmount().toString();
-        if (amount.endsWith(".00")) {
-            return amount.substring(0, amount.length() - 3);
-        } else {
-            return amount;
+        return amountString(cent, currency.getDefaultFractionDigits());
+    }
+
+    /**
+     * 和getAmountString()结果一致，只用long运算，不构造BigDecimal
+     *
+     * @param cent         金额（分）
+     * @param currencyCode 币种代码
+     */
+    public static String amountString(long cent, String currencyCode) {
+        return amountString(cent, Currency.getInstance(currencyCode).getDefaultFractionDigits());
+    }
+
+    private static String amountString(long cent, int fractionDigits) {
+        if (fractionDigits <= 0 || fractionDigits > 18) {
+            return fractionDigits <= 0 ? Long.toString(cent) : BigDecimal.valueOf(cent, fractionDigits).toString();
         }
+        long scale = POWERS_OF_TEN[fractionDigits];
+        long integer = cent / scale;
+        //余数的绝对值小于scale，取绝对值不会溢出
+        long fraction = Math.abs(cent % scale);
+        if (2 == fractionDigits && 0 == fraction) {
+            //整数元省略".00"
+            return Long.toString(integer);
+        }
+        StringBuilder builder = new StringBuilder(24);
+        if (cent < 0 && 0 == integer) {
+            //-0.05这种整数部分是0，符号要自己补
+            builder.append('-');
+        }
+        builder.append(integer).append('.');
+        String digits = Long.toString(fraction);
+        for (int i = digits.length(); i < fractionDigits; i++) {
+            builder.append('0');
+        }
+        return builder.append(digits).toString();
     }
 
     /**
@@ -129,7 +168,10 @@ public class Money implements Comparable<Money>, Serializable, Cloneable {
         Currency otherCurrency = other.currency;
         Currency currency = this.currency;
         checkArgument(otherCurrency == currency || otherCurrency.equals(currency));
-        return new Money(cent + other.cent, currency);
+        if (0 == other.cent) {
+            return this;
+        }
+        return new Money(Math.addExact(cent, other.cent), currency);
     }
 
     /**
@@ -139,14 +181,20 @@ public class Money implements Comparable<Money>, Serializable, Cloneable {
         Currency otherCurrency = other.currency;
         Currency currency = this.currency;
         checkArgument(otherCurrency == currency || otherCurrency.equals(currency));
-        return new Money(cent - other.cent, currency);
+        if (0 == other.cent) {
+            return this;
+        }
+        return new Money(Math.subtractExact(cent, other.cent), currency);
     }
 
     /**
      * 相乘。
      */
     public Money multiply(long val) {
-        return new Money(cent * val, currency);
+        if (1 == val) {
+            return this;
+        }
+        return new Money(Math.multiplyExact(cent, val), currency);
     }
 
     /**
@@ -251,7 +299,7 @@ public class Money implements Comparable<Money>, Serializable, Cloneable {
             throw new IllegalArgumentException("can't compare money of different currencies");
         }
 
-        return (int) Math.signum(cent - o.cent);
+        return Long.compare(cent, o.cent);
     }
 
     /**
@@ -270,6 +318,13 @@ public class Money implements Comparable<Money>, Serializable, Cloneable {
         return getCurrency().getCurrencyCode();
     }
 
+    /**
+     * @return 相反数（分），溢出时抛ArithmeticException
+     */
+    public long negateCent() {
+        return Math.negateExact(cent);
+    }
+
     /**
      * 以中国货币格式化成字符串。如果当前货币不是人民币则报错。
      */
@@ -0,0 +1,80 @@
+package com.wallet.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对账报告：每个账户各币种的余额应当等于它的交易记录之和（存入-取出+转入-转出），
+ * 拆分过的热点账户按主账户加子账户合计
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReconciliationReport {
+    /**
+     * 开始时间
+     */
+    private Date startTime;
+    /**
+     * 耗时（毫秒）
+     */
+    private long elapsedMillis;
+    /**
+     * 核对的账户数（子账户算进主账户）
+     */
+    private long accounts;
+    /**
+     * 本次新读的交易记录数，之前读过的从检查点累加
+     */
+    private long records;
+    /**
+     * 二次确认后仍然对不上的账户
+     */
+    private List<Discrepancy> discrepancies;
+    /**
+     * 确认期间一直在变更、没能确认的账户，下次再对
+     */
+    private List<String> unconfirmed;
+    /**
+     * 各币种的合计，币种代码 -> 合计；逐账户累加，不是同一时刻的快照
+     */
+    private Map<String, CurrencyTotals> totals;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Discrepancy {
+        private String userId;
+        private String currency;
+        /**
+         * 账户余额（分）
+         */
+        private long balance;
+        /**
+         * 交易记录推算的余额（分）
+         */
+        private long expected;
+    }
+
+    @Data
+    @NoArgsConstructor
+    public static class CurrencyTotals {
+        /**
+         * 账户余额合计
+         */
+        private long balance;
+        /**
+         * 交易记录推算的余额合计
+         */
+        private long expected;
+        private long deposits;
+        private long withdrawals;
+        private long transfersIn;
+        private long transfersOut;
+    }
+}
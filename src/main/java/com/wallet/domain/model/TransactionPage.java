@@ -0,0 +1,22 @@
+package com.wallet.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 交易记录分页结果，按时间倒序
+ */
+@Data
+@AllArgsConstructor
+public class TransactionPage {
+    /**
+     * 本页记录，新的在前
+     */
+    private List<TransactionRecord> records;
+    /**
+     * 下一页的游标，传给下一次查询；没有下一页为-1
+     */
+    private long nextCursor;
+}
@@ -36,7 +36,7 @@ public class TransactionRecord {
      */
     private String to;
     /**
-     * 备注
+     * 备注，为空时由操作人、操作类型和金额推导，见getRemark
      */
     private String remark;
     /**
@@ -47,4 +47,21 @@ public class TransactionRecord {
      * 更新时间
      */
     private Date gmt_modify;
+
+    /**
+     * 默认备注不在写入时拼接，读取时才格式化，写路径不产生字符串
+     */
+    public String getRemark() {
+        if (null != remark || null == operatorAmount || null == operatorCurrency) {
+            return remark;
+        }
+        return operatorUserId + operatorType + Money.amountString(operatorAmount, operatorCurrency);
+    }
+
+    /**
+     * @return 写入时指定的备注，没有指定返回null；不是getter，不参与序列化
+     */
+    public String customRemark() {
+        return remark;
+    }
 }
@@ -0,0 +1,45 @@
+package com.wallet.domain.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * 钱包变更指令，批量和异步执行时使用
+ */
+@Data
+@Builder
+public class WalletCommand {
+    /**
+     * 执行成功
+     */
+    public static final byte SUCCESS = 0;
+    /**
+     * 执行失败（余额不足、参数错误等）
+     */
+    public static final byte FAILED = 1;
+
+    /**
+     * 操作类型
+     */
+    private String operatorType;
+    /**
+     * 操作人
+     */
+    private String userId;
+    /**
+     * 转账去向，其他操作为空
+     */
+    private String targetUserId;
+    /**
+     * 金额
+     */
+    private Money money;
+    /**
+     * 转账入账的币种，为空时和money相同，不同时按汇率表换算
+     */
+    private String targetCurrency;
+    /**
+     * 幂等请求的标识，写进变更的日志，为空时不去重
+     */
+    private IdempotencyKey request;
+}
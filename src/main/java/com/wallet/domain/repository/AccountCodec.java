@@ -0,0 +1,124 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.Currencies;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 账户状态的二进制编码，预写日志和快照共用
+ * 格式：userId、version、余额（分）、币种、创建时间、更新时间，字符串为[short 长度][utf-8字节]，时间为毫秒（0表示空）
+ * <p>
+ * 持有多个币种的账户在币种的位置写[short -2-n]，后跟n个[币种][余额]，第一个是amount的币种；
+ * 写币种代码而不是Currencies序号，序号只在进程内有效。单币种账户的格式不变，旧的日志和快照照常读取
+ */
+final class AccountCodec {
+
+    /**
+     * 币种位置上小于等于该值的长度表示多币种余额
+     */
+    private static final int MULTI_CURRENCY = -2;
+
+    private AccountCodec() {
+    }
+
+    static void write(DataOutput out, Account account) throws IOException {
+        writeString(out, account.getUserId());
+        out.writeLong(account.getVersion());
+        out.writeLong(account.getAmount().get());
+        long[] balances = account.getBalances();
+        if (null == balances) {
+            writeString(out, account.getCurrency());
+        } else {
+            writeBalances(out, account.getCurrency(), balances);
+        }
+        out.writeLong(null == account.getGmt_create() ? 0 : account.getGmt_create().getTime());
+        out.writeLong(null == account.getGmt_modify() ? 0 : account.getGmt_modify().getTime());
+    }
+
+    static Account read(ByteBuffer buffer) {
+        String userId = readString(buffer);
+        long version = buffer.getLong();
+        long balance = buffer.getLong();
+        int marker = buffer.getShort(buffer.position());
+        String currency;
+        long[] balances = null;
+        if (marker > MULTI_CURRENCY) {
+            currency = readString(buffer);
+        } else {
+            buffer.getShort();
+            currency = readString(buffer);
+            balances = new long[Currencies.ordinalOf(currency) + 1];
+            balances[balances.length - 1] = buffer.getLong();
+            for (int i = 1; i < MULTI_CURRENCY - marker; i++) {
+                int ordinal = Currencies.ordinalOf(readString(buffer));
+                if (ordinal >= balances.length) {
+                    balances = Arrays.copyOf(balances, ordinal + 1);
+                }
+                balances[ordinal] = buffer.getLong();
+            }
+        }
+        long gmtCreate = buffer.getLong();
+        long gmtModify = buffer.getLong();
+        return Account.builder()
+                .userId(userId)
+                .version(version)
+                .amount(new AtomicLong(balance))
+                .currency(currency)
+                .balances(balances)
+                .gmt_create(0 == gmtCreate ? null : new Date(gmtCreate))
+                .gmt_modify(0 == gmtModify ? null : new Date(gmtModify))
+                .build();
+    }
+
+    private static void writeBalances(DataOutput out, String currency, long[] balances) throws IOException {
+        int viewOrdinal = Currencies.ordinalOf(currency);
+        int count = 1;
+        for (int ordinal = 1; ordinal < balances.length; ordinal++) {
+            if (ordinal != viewOrdinal && 0 != balances[ordinal]) {
+                count++;
+            }
+        }
+        out.writeShort(MULTI_CURRENCY - count);
+        writeString(out, currency);
+        out.writeLong(viewOrdinal < balances.length ? balances[viewOrdinal] : 0);
+        for (int ordinal = 1; ordinal < balances.length; ordinal++) {
+            if (ordinal != viewOrdinal && 0 != balances[ordinal]) {
+                writeString(out, Currencies.codeOf(ordinal));
+                out.writeLong(balances[ordinal]);
+            }
+        }
+    }
+
+    /**
+     * null编码为长度-1
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (null == value) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("string too long: " + bytes.length);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,40 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.AccountPolicy;
+import org.springframework.stereotype.Repository;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * 账户策略，只保存和默认策略不同的账户
+ */
+@Repository
+public class AccountPolicyRepository {
+
+    private final Map<String, AccountPolicy> policyMap = new ConcurrentHashMap<>();
+
+    /**
+     * @return 账户策略，没有单独设置返回AccountPolicy.DEFAULT
+     */
+    public AccountPolicy get(String userId) {
+        AccountPolicy policy = policyMap.get(userId);
+        return null == policy ? AccountPolicy.DEFAULT : policy;
+    }
+
+    /**
+     * 原子地修改账户策略，改回默认策略时删除
+     *
+     * @param userId  userId
+     * @param updater 由旧策略得到新策略
+     * @return 新策略
+     */
+    public AccountPolicy update(String userId, UnaryOperator<AccountPolicy> updater) {
+        AccountPolicy updated = policyMap.compute(userId, (key, origin) -> {
+            AccountPolicy policy = updater.apply(null == origin ? AccountPolicy.DEFAULT : origin);
+            return AccountPolicy.DEFAULT.equals(policy) ? null : policy;
+        });
+        return null == updated ? AccountPolicy.DEFAULT : updated;
+    }
+}
@@ -0,0 +1,40 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+
+import java.util.function.Consumer;
+
+/**
+ * 账户表，WalletRepository的账户存储后端
+ * 账户的version严格递增，CAS只比较version，因此不存在ABA问题
+ */
+public interface AccountTable {
+
+    /**
+     * @param userId userId
+     * @return 账户当前快照，不存在返回null
+     */
+    Account get(String userId);
+
+    /**
+     * 当前version等于expect的version时，用update整体替换账户
+     * 不存在的账户视为version为0的空账户
+     *
+     * @param userId userId
+     * @param expect 更新前的账户
+     * @param update 更新后的账户，version必须大于expect
+     * @return 是否更新成功
+     */
+    boolean compareAndSet(String userId, Account expect, Account update);
+
+    /**
+     * 直接覆盖账户，不做version比较
+     * 只允许在该账户只有一个写者时使用（单写者分片），否则会覆盖其他线程的更新
+     */
+    void put(String userId, Account account);
+
+    /**
+     * 遍历所有账户，不阻塞写入；每个账户拿到的是一致的快照，但不同账户的快照不保证是同一时刻
+     */
+    void forEach(Consumer<Account> consumer);
+}
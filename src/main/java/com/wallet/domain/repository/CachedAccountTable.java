@@ -0,0 +1,246 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 挡在账户表（将来的持久化存储）前面的读缓存，写穿透
+ * <p>
+ * 组相联结构：按userId散列到组，每组WAYS个槽，槽里直接放不可变的Account，读不加锁；
+ * 容量固定，淘汰在组内进行：新账户要顶替组里访问频率最低的那个，且只有频率更高才准入（TinyLFU），
+ * 频率用4位计数的Count-Min草图估计，累计到一定次数后整体减半，老的热点会逐渐让位
+ * <p>
+ * 版本：槽只会被换成version更大的同一账户或者别的账户，写成功后先给所在组的写戳加一再把新版本放进缓存；
+ * 未命中时记下写戳再读底层表，放进缓存后写戳变了就撤回（加载期间有写者，读到的可能已经旧了），
+ * 因此写者之后的读不会看到旧版本，未命中也只读一次底层表
+ */
+public class CachedAccountTable implements AccountTable {
+
+    private static final int WAYS = 4;
+    /**
+     * 计数饱和值，4位
+     */
+    private static final int MAX_FREQUENCY = 15;
+
+    private final AccountTable backing;
+    private final AtomicReferenceArray<Account> slots;
+    /**
+     * 每组的写戳
+     */
+    private final AtomicIntegerArray stamps;
+    private final int setMask;
+    private final long[] sketch;
+    private final int sketchMask;
+    private final long resetThreshold;
+    /**
+     * 草图的累计次数（按1/16采样），到resetThreshold减半
+     */
+    private final AtomicLong additions = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param backing  底层账户表
+     * @param capacity 最多缓存的账户数，向上取到WAYS的2的幂倍
+     */
+    public CachedAccountTable(AccountTable backing, int capacity) {
+        this.backing = backing;
+        int sets = 1;
+        while (sets * WAYS < capacity) {
+            sets <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(sets * WAYS);
+        this.stamps = new AtomicIntegerArray(sets);
+        this.setMask = sets - 1;
+        //每个long放16个4位计数，草图的计数个数是容量的4倍
+        this.sketch = new long[Math.max(1, sets * WAYS / 4)];
+        this.sketchMask = sketch.length - 1;
+        this.resetThreshold = 10L * sets * WAYS;
+    }
+
+    @Override
+    public Account get(String userId) {
+        int hash = spread(userId.hashCode());
+        touch(hash);
+        Account cached = lookup(userId, hash);
+        if (null != cached) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        int set = hash & setMask;
+        int stamp = stamps.get(set);
+        Account loaded = backing.get(userId);
+        if (null == loaded) {
+            //不存在的账户不缓存，开户后第一次写会放进来
+            return null;
+        }
+        int slot = offer(loaded, hash);
+        if (slot >= 0 && stamps.get(set) != stamp) {
+            //写者的放入可能早于这次放入，撤回，下次读重新加载
+            slots.compareAndSet(slot, loaded, null);
+        }
+        return loaded;
+    }
+
+    @Override
+    public boolean compareAndSet(String userId, Account expect, Account update) {
+        if (!backing.compareAndSet(userId, expect, update)) {
+            return false;
+        }
+        written(update, spread(userId.hashCode()));
+        return true;
+    }
+
+    @Override
+    public void put(String userId, Account account) {
+        backing.put(userId, account);
+        written(account, spread(userId.hashCode()));
+    }
+
+    @Override
+    public void forEach(Consumer<Account> consumer) {
+        backing.forEach(consumer);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return 组内该账户version最大的那份，没有返回null
+     */
+    private Account lookup(String userId, int hash) {
+        int base = (hash & setMask) * WAYS;
+        Account found = null;
+        for (int i = 0; i < WAYS; i++) {
+            Account account = slots.get(base + i);
+            if (null != account && userId.equals(account.getUserId())
+                    && (null == found || account.getVersion() > found.getVersion())) {
+                found = account;
+            }
+        }
+        return found;
+    }
+
+    private void written(Account account, int hash) {
+        stamps.incrementAndGet(hash & setMask);
+        offer(account, hash);
+    }
+
+    /**
+     * 把account放进缓存：已有同一账户时只升级version，没有时按频率决定是否顶替
+     *
+     * @return 新占用的槽，没有新占用返回-1
+     */
+    private int offer(Account account, int hash) {
+        String userId = account.getUserId();
+        int base = (hash & setMask) * WAYS;
+        boolean present = false;
+        for (int i = 0; i < WAYS; i++) {
+            for (; ; ) {
+                Account current = slots.get(base + i);
+                if (null == current || !userId.equals(current.getUserId())) {
+                    break;
+                }
+                present = true;
+                //并发插入可能让同一账户占了两个槽，都升级
+                if (current.getVersion() >= account.getVersion() || slots.compareAndSet(base + i, current, account)) {
+                    break;
+                }
+            }
+        }
+        if (present) {
+            return -1;
+        }
+        int victim = -1;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int i = 0; i < WAYS; i++) {
+            Account current = slots.get(base + i);
+            if (null == current) {
+                victim = i;
+                victimFrequency = -1;
+                break;
+            }
+            int frequency = frequency(spread(current.getUserId().hashCode()));
+            if (frequency < victimFrequency) {
+                victim = i;
+                victimFrequency = frequency;
+            }
+        }
+        if (victimFrequency >= 0 && frequency(hash) <= victimFrequency) {
+            //新账户不比组里最冷的账户热，不准入，避免一次性扫描冲掉热点
+            return -1;
+        }
+        Account current = slots.get(base + victim);
+        if ((null == current || !userId.equals(current.getUserId())) && slots.compareAndSet(base + victim, current, account)) {
+            return base + victim;
+        }
+        return -1;
+    }
+
+    /**
+     * 记一次访问，计数已饱和时不写，热点账户的读不会反复写草图
+     */
+    private void touch(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int shift = counterShift(hash, i);
+            long word = sketch[index];
+            if (((word >>> shift) & MAX_FREQUENCY) < MAX_FREQUENCY) {
+                //不加锁，并发下偶尔丢一次计数不影响估计
+                sketch[index] = word + (1L << shift);
+                added = true;
+            }
+        }
+        if (added && 0 == (ThreadLocalRandom.current().nextInt() & 15)
+                && additions.addAndGet(16) >= resetThreshold) {
+            reset();
+        }
+    }
+
+    private int frequency(int hash) {
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < 4; i++) {
+            frequency = Math.min(frequency, (int) ((sketch[indexOf(hash, i)] >>> counterShift(hash, i)) & MAX_FREQUENCY));
+        }
+        return frequency;
+    }
+
+    /**
+     * 所有计数减半
+     */
+    private void reset() {
+        additions.set(0);
+        for (int i = 0; i < sketch.length; i++) {
+            sketch[i] = (sketch[i] >>> 1) & 0x7777_7777_7777_7777L;
+        }
+    }
+
+    private int indexOf(int hash, int i) {
+        int h = (hash + i) * 0x9E3779B9;
+        h ^= h >>> 15;
+        return h & sketchMask;
+    }
+
+    private static int counterShift(int hash, int i) {
+        return (((hash >>> (i << 3)) & 15)) << 2;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,228 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.BalanceChangeEvent;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 余额变更事件的发件箱，由事件发布者单线程消费：poll取一批，发出去之后commit
+ * <p>
+ * 开启持久化时预写日志本身就是发件箱：变更和事件是同一条日志，变更路径上不多写任何东西；
+ * 只读已刷盘的日志，所以不会发出没有落盘的变更。确认的位置每秒写一次检查点，检查点之后的日志段快照不回收，
+ * 重启后从检查点重发，投递语义是至少一次，下游按(sequence, leg)去重
+ * <p>
+ * 纯内存模式下变更时把账户快照（已发布的Account不可变）放进有界无锁队列，事件对象由发布者构造；
+ * 满了变更线程等发布者取走再放（背压），变更在事件入队之后才返回，确认过的变更不会丢事件；发布者停止后不再入队
+ */
+public class EventOutbox {
+
+    private static final Log LOG = LogFactory.getLog(EventOutbox.class);
+
+    private static final String CHECKPOINT_FILE = "outbox.checkpoint";
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+    /**
+     * 背压等待时隔多久检查一次发件箱是否已关闭
+     */
+    private static final long WAIT_MILLIS = 100;
+
+    private final WalletJournal journal;
+    private final File checkpointFile;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Change> queue = new ConcurrentLinkedQueue<>();
+    /**
+     * 队列的空位，纯内存模式下使用
+     */
+    private final Semaphore slots;
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder blocked = new LongAdder();
+    private volatile boolean closed;
+    /**
+     * 已读取的日志位置，只有消费者访问
+     */
+    private long cursor;
+    /**
+     * 已确认发出的日志位置，只有消费者访问
+     */
+    private long acknowledged;
+    /**
+     * 已写进检查点的位置，快照回收日志不能越过它
+     */
+    private volatile long checkpoint;
+    private long checkpointMillis;
+
+    /**
+     * 纯内存模式
+     *
+     * @param capacity 队列里最多积压的事件数
+     */
+    EventOutbox(int capacity) {
+        this.journal = null;
+        this.checkpointFile = null;
+        this.capacity = Math.max(1, capacity);
+        this.slots = new Semaphore(this.capacity);
+    }
+
+    /**
+     * 读预写日志，第一次开启时从日志末尾开始，不补发开启之前的变更
+     */
+    EventOutbox(WalletJournal journal, File dir) throws IOException {
+        this.journal = journal;
+        this.checkpointFile = new File(dir, CHECKPOINT_FILE);
+        this.capacity = 0;
+        this.slots = null;
+        this.checkpoint = checkpointFile.exists()
+                ? ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath())).getLong()
+                : journal.getWrittenPosition();
+        this.cursor = checkpoint;
+        this.acknowledged = checkpoint;
+        LOG.info("event outbox starts from journal position " + checkpoint);
+    }
+
+    /**
+     * 纯内存模式下记下一次变更，队列满了等到有空位，不响应中断（中断标记留给调用方）；持久化模式下什么都不做（事件从日志里读）
+     *
+     * @param accounts 变更后的账户，调用方之后不能再修改这个数组
+     */
+    void offer(String operatorType, Account[] accounts) {
+        if (null != journal || closed) {
+            return;
+        }
+        //一次变更的账户数超过容量时整个队列归它
+        int permits = Math.min(accounts.length, capacity);
+        if (!slots.tryAcquire(permits) && !await(permits)) {
+            return;
+        }
+        queue.offer(new Change(sequence.incrementAndGet(), operatorType, accounts, permits));
+    }
+
+    /**
+     * 等队列空出permits个位置
+     *
+     * @return 是否等到，发布者停止了返回false
+     */
+    private boolean await(int permits) {
+        blocked.increment();
+        boolean interrupted = false;
+        try {
+            while (!closed) {
+                try {
+                    if (slots.tryAcquire(permits, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 取出下一批事件
+     *
+     * @param limit 最多取出的变更数（持久化模式下是日志条数）
+     * @return 取出的事件数
+     */
+    public int poll(List<BalanceChangeEvent> out, int limit) throws IOException {
+        int before = out.size();
+        if (null == journal) {
+            Change change;
+            int permits = 0;
+            for (int i = 0; i < limit && null != (change = queue.poll()); i++) {
+                for (int leg = 0; leg < change.accounts.length; leg++) {
+                    out.add(BalanceChangeEvent.of(change.sequence, leg, change.operatorType, change.accounts[leg]));
+                }
+                permits += change.permits;
+            }
+            slots.release(permits);
+        } else {
+            cursor = journal.read(cursor, limit, (position, type, accounts) -> {
+                for (int leg = 0; leg < accounts.length; leg++) {
+                    out.add(BalanceChangeEvent.of(position, leg, type, accounts[leg]));
+                }
+            });
+        }
+        return out.size() - before;
+    }
+
+    /**
+     * 确认poll取出的事件都已发出
+     */
+    public void commit() throws IOException {
+        acknowledged = cursor;
+        long now = System.currentTimeMillis();
+        if (null != journal && acknowledged != checkpoint && now - checkpointMillis >= CHECKPOINT_INTERVAL_MILLIS) {
+            writeCheckpoint();
+            checkpointMillis = now;
+        }
+    }
+
+    /**
+     * 停止发布时调用，写下最后确认的位置，取出了但没确认的下次启动重发；纯内存模式下放开等待入队的变更，之后的变更不再入队
+     */
+    public void close() throws IOException {
+        closed = true;
+        if (null != journal && acknowledged != checkpoint) {
+            writeCheckpoint();
+        }
+    }
+
+    /**
+     * @return 快照可以回收到的日志位置，纯内存模式下不限制
+     */
+    long retainFrom() {
+        return null == journal ? Long.MAX_VALUE : checkpoint;
+    }
+
+    /**
+     * @return 纯内存模式下变更因队列满等待的次数
+     */
+    public long getBlocked() {
+        return blocked.sum();
+    }
+
+    /**
+     * 先写临时文件再改名，崩溃时检查点要么是旧的要么是新的
+     */
+    private void writeCheckpoint() throws IOException {
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        Files.write(temp.toPath(), ByteBuffer.allocate(8).putLong(acknowledged).array());
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = acknowledged;
+    }
+
+    private static final class Change {
+
+        final long sequence;
+        final String operatorType;
+        final Account[] accounts;
+        /**
+         * 占用的队列位置数
+         */
+        final int permits;
+
+        Change(long sequence, String operatorType, Account[] accounts, int permits) {
+            this.sequence = sequence;
+            this.operatorType = operatorType;
+            this.accounts = accounts;
+            this.permits = permits;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.wallet.domain.repository;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * 文件版归档（默认）：写满的块和驻留表的新条目按顺序追加到一个文件，堆上每个用户只留各块在文件里的位置和长度（每块16字节，一块256条记录）
+ * <p>
+ * 文件由帧组成：[int 长度][int crc][byte 类型][内容]，类型1是驻留表条目 [byte 表][int 序号][字符串]，类型2是块 [userId][long 块序号][块]；
+ * 块格式：[long 基准时间][long 最小时间][long 最大时间][long 类型位图][long 最后日志位置][int 字节数][字节][char 每条的起始位置]...[int 备注数][int 下标][备注]...
+ * <p>
+ * 驻留表条目先攒在内存，写下一个块时一起写在块前面，块用到的序号在文件里一定先出现。文件不单独刷盘（关闭时刷）：
+ * 重启时从头读到第一个不完整或校验不过的帧，之后的内容截掉，丢掉的记录由日志重放补回
+ * <p>
+ * 追加串行，读取用定位读，不加锁；同一用户的块由持有用户锁的写者按块序号依次归档
+ */
+public class FileHistoryArchive implements HistoryArchive, Closeable {
+
+    private static final Log LOG = LogFactory.getLog(FileHistoryArchive.class);
+
+    private static final String FILE_NAME = "history.archive";
+    private static final int HEADER_SIZE = 8;
+    private static final byte INTERN = 1;
+    private static final byte CHUNK = 2;
+
+    private final FileChannel channel;
+    private final ConcurrentMap<String, Positions> positionMap = new ConcurrentHashMap<>();
+    /**
+     * 还没写进文件的驻留表条目（已经是帧），只在持有this时访问
+     */
+    private final ByteArrayOutputStream pendingInterns = new ByteArrayOutputStream();
+    /**
+     * 文件末尾，只在持有this时读写
+     */
+    private long end;
+
+    /**
+     * @param dir 归档目录，不存在则创建；已有的归档在restore时加载
+     */
+    public FileHistoryArchive(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create history archive dir: " + dir);
+        }
+        channel = FileChannel.open(new File(dir, FILE_NAME).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = channel.size();
+    }
+
+    @Override
+    public void archive(String userId, long chunkNo, RecordChunk chunk) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.length + HistoryStore.CHUNK_SIZE * 2 + 96);
+        int offset;
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(CHUNK);
+            AccountCodec.writeString(out, userId);
+            out.writeLong(chunkNo);
+            out.flush();
+            offset = bytes.size();
+            encode(out, chunk);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] body = bytes.toByteArray();
+        long position = append(body);
+        positionMap.computeIfAbsent(userId, key -> new Positions()).set(chunkNo, position + HEADER_SIZE + offset, body.length - offset);
+    }
+
+    @Override
+    public RecordChunk load(String userId, long chunkNo) {
+        Positions positions = positionMap.get(userId);
+        long[] values = null == positions ? null : positions.values;
+        int index = (int) (chunkNo * 2);
+        if (null == values || index + 1 >= values.length || 0 == values[index + 1]) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) values[index + 1]);
+        try {
+            read(buffer, values[index]);
+        } catch (IOException e) {
+            throw new RuntimeException("history archive read failed", e);
+        }
+        buffer.flip();
+        return decode(buffer);
+    }
+
+    @Override
+    public synchronized void intern(int table, int ordinal, String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + value.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(INTERN);
+            out.writeByte(table);
+            out.writeInt(ordinal);
+            AccountCodec.writeString(out, value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] frame = frame(bytes.toByteArray());
+        pendingInterns.write(frame, 0, frame.length);
+    }
+
+    @Override
+    public synchronized void restore(Restorer restorer) {
+        long position = 0;
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                read(header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length <= 0 || length > size - position - HEADER_SIZE) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                read(body, position + HEADER_SIZE);
+                if (checksum != checksum(body.array())) {
+                    break;
+                }
+                body.flip();
+                byte type = body.get();
+                if (INTERN == type) {
+                    restorer.intern(body.get(), body.getInt(), AccountCodec.readString(body));
+                } else if (CHUNK == type) {
+                    String userId = AccountCodec.readString(body);
+                    long chunkNo = body.getLong();
+                    int offset = body.position();
+                    if (!restorer.chunk(userId, chunkNo, decode(body))) {
+                        break;
+                    }
+                    positionMap.computeIfAbsent(userId, key -> new Positions()).set(chunkNo, position + HEADER_SIZE + offset, length - offset);
+                } else {
+                    break;
+                }
+                position += HEADER_SIZE + length;
+            }
+            if (position < size) {
+                LOG.warn("history archive truncated at " + position + ", size: " + size);
+                channel.truncate(position);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("history archive restore failed", e);
+        }
+        end = position;
+    }
+
+    /**
+     * 刷盘后关闭，没写出去的驻留表条目没有块用到，直接丢弃
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * 先写攒下的驻留表条目，再写块，一次写入
+     *
+     * @return 块的帧在文件里的位置
+     */
+    private synchronized long append(byte[] body) {
+        byte[] frame = frame(body);
+        ByteBuffer buffer = ByteBuffer.allocate(pendingInterns.size() + frame.length);
+        buffer.put(pendingInterns.toByteArray()).put(frame).flip();
+        long start = end;
+        long position = start + pendingInterns.size();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, start + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("history archive write failed", e);
+        }
+        pendingInterns.reset();
+        end = start + buffer.limit();
+        return position;
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("history archive truncated at " + position);
+            }
+        }
+    }
+
+    private static byte[] frame(byte[] body) {
+        return ByteBuffer.allocate(HEADER_SIZE + body.length)
+                .putInt(body.length)
+                .putInt(checksum(body))
+                .put(body)
+                .array();
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+
+    private static void encode(DataOutputStream out, RecordChunk chunk) throws IOException {
+        out.writeLong(chunk.baseTime);
+        out.writeLong(chunk.minTime);
+        out.writeLong(chunk.maxTime);
+        out.writeLong(chunk.typeMask);
+        out.writeLong(chunk.lastPosition);
+        out.writeInt(chunk.length);
+        out.write(chunk.data, 0, chunk.length);
+        for (char offset : chunk.offsets) {
+            out.writeChar(offset);
+        }
+        String[] remarks = chunk.remarks;
+        int count = 0;
+        for (int i = 0; null != remarks && i < remarks.length; i++) {
+            count += null == remarks[i] ? 0 : 1;
+        }
+        out.writeInt(count);
+        for (int i = 0; 0 != count && i < remarks.length; i++) {
+            if (null != remarks[i]) {
+                out.writeInt(i);
+                AccountCodec.writeString(out, remarks[i]);
+            }
+        }
+    }
+
+    private static RecordChunk decode(ByteBuffer buffer) {
+        RecordChunk chunk = new RecordChunk();
+        chunk.baseTime = buffer.getLong();
+        chunk.minTime = buffer.getLong();
+        chunk.maxTime = buffer.getLong();
+        chunk.typeMask = buffer.getLong();
+        chunk.lastPosition = buffer.getLong();
+        chunk.length = buffer.getInt();
+        chunk.data = new byte[chunk.length];
+        buffer.get(chunk.data);
+        for (int i = 0; i < chunk.offsets.length; i++) {
+            chunk.offsets[i] = buffer.getChar();
+        }
+        for (int count = buffer.getInt(); count > 0; count--) {
+            chunk.putRemark(buffer.getInt(), AccountCodec.readString(buffer));
+        }
+        return chunk;
+    }
+
+    /**
+     * 一个用户各块的位置和长度，下标是块序号*2；单写者追加，读者经HistoryStore发布的layout看到已归档的块
+     */
+    private static final class Positions {
+
+        volatile long[] values = new long[8];
+
+        void set(long chunkNo, long position, int length) {
+            int index = Math.toIntExact(chunkNo * 2);
+            long[] current = values;
+            if (index + 1 >= current.length) {
+                current = Arrays.copyOf(current, Math.max(current.length * 2, index + 2));
+            }
+            current[index] = position;
+            current[index + 1] = length;
+            values = current;
+        }
+    }
+}
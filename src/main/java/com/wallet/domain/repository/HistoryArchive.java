@@ -0,0 +1,44 @@
+package com.wallet.domain.repository;
+
+/**
+ * 交易记录归档层，热数据超过上限后整块滚动到这里
+ * 块是紧凑编码（见RecordChunk），里面的userId和操作类型是驻留序号，驻留表的新条目也交给归档层，和块一起保存、一起恢复
+ */
+public interface HistoryArchive {
+
+    /**
+     * 归档一个写满的块
+     *
+     * @param userId  userId
+     * @param chunkNo 块序号，第chunkNo块包含第chunkNo*块大小开始的记录
+     * @param chunk   写满的块，归档后不会再被修改
+     */
+    void archive(String userId, long chunkNo, RecordChunk chunk);
+
+    /**
+     * @return 归档的块，不存在返回null
+     */
+    RecordChunk load(String userId, long chunkNo);
+
+    /**
+     * 驻留表新分配了一个序号，在分配锁内调用，要先于用到它的块保存
+     *
+     * @param table 驻留表编号，见RecordCodec.TYPES/USER_IDS
+     */
+    void intern(int table, int ordinal, String value);
+
+    /**
+     * 启动时调用一次，按归档顺序交出已保存的驻留表条目和块；restorer不接受的块和它之后的内容全部丢弃
+     */
+    void restore(Restorer restorer);
+
+    interface Restorer {
+
+        void intern(int table, int ordinal, String value);
+
+        /**
+         * @return 是否接受这个块
+         */
+        boolean chunk(String userId, long chunkNo, RecordChunk chunk);
+    }
+}
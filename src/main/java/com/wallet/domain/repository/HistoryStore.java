@@ -0,0 +1,462 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.TransactionPage;
+import com.wallet.domain.model.TransactionRecord;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * 交易记录存储，只追加
+ * 每个用户的记录按固定大小分块，追加只锁该用户自己，不同用户之间互不影响；
+ * 热数据最多保留maxHotChunks块，更早的块整块滚动到归档层（默认是文件，见FileHistoryArchive）；
+ * 读取拿到的是某一时刻的快照，创建快照O(1)，不复制记录；
+ * 块内记录是紧凑编码（见RecordCodec），userId和操作类型驻留成序号，读取时逐条解码成新的TransactionRecord；
+ * 索引按块建：每块的时间范围和类型位图存在块里随块归档，归档块在堆上只留一个目录（每块16字节：最大时间、类型位图），
+ * 时间区间先按块二分再在块内扫描，按类型分页跳过位图里没有该类型的块，都是O(log 块数 + 块大小 + 页大小)；
+ * 启动时从归档层恢复已归档的块，日志重放时跳过归档里已有的记录
+ */
+public class HistoryStore {
+
+    /**
+     * 每块记录数，2的幂
+     */
+    static final int CHUNK_SIZE = 256;
+    private static final int CHUNK_SHIFT = 8;
+
+    private final ConcurrentMap<String, UserHistory> historyMap = new ConcurrentHashMap<>();
+    private final int maxHotChunks;
+    private final HistoryArchive archive;
+    private final RecordCodec codec = new RecordCodec();
+
+    /**
+     * @param restoreThrough 恢复归档到这个日志位置：最后一条记录的日志位置不超过它的块才恢复，之后的记录由日志重放补回；
+     *                       没开启持久化时传-1，归档里已有的内容全部丢弃
+     */
+    public HistoryStore(int maxHotChunks, HistoryArchive archive, long restoreThrough) {
+        if (maxHotChunks < 1) {
+            throw new IllegalArgumentException("maxHotChunks must be positive");
+        }
+        this.maxHotChunks = maxHotChunks;
+        this.archive = archive;
+        archive.restore(new HistoryArchive.Restorer() {
+            @Override
+            public void intern(int table, int ordinal, String value) {
+                codec.restore(table, ordinal, value);
+            }
+
+            @Override
+            public boolean chunk(String userId, long chunkNo, RecordChunk chunk) {
+                return chunk.lastPosition >= 0 && chunk.lastPosition <= restoreThrough
+                        && historyMap.computeIfAbsent(userId, UserHistory::new).restore(chunkNo, chunk);
+            }
+        });
+        codec.listen(archive);
+    }
+
+    public void append(String userId, TransactionRecord record) {
+        append(userId, record, -1);
+    }
+
+    /**
+     * @param position 记录所在日志的结束位置，没开启持久化时为-1；不晚于该用户已归档的记录时跳过（重放归档里已有的记录）
+     */
+    public void append(String userId, TransactionRecord record, long position) {
+        historyMap.computeIfAbsent(userId, UserHistory::new).append(record, position);
+    }
+
+    /**
+     * @return 当前时刻的只读快照，之后追加的记录不可见；没有记录返回空列表
+     */
+    public List<TransactionRecord> snapshot(String userId) {
+        UserHistory history = historyMap.get(userId);
+        return null == history ? Collections.emptyList() : history.snapshot();
+    }
+
+    /**
+     * 按追加顺序遍历某个时间段的记录，遍历的是调用时刻的快照，同一时刻只持有一个块，不复制记录
+     *
+     * @param fromMillis 创建时间下限（含），不限传Long.MIN_VALUE
+     * @param toMillis   创建时间上限（不含），不限传Long.MAX_VALUE
+     * @return 遍历的记录数
+     */
+    public long forEach(String userId, long fromMillis, long toMillis, Consumer<TransactionRecord> consumer) {
+        UserHistory history = historyMap.get(userId);
+        return null == history ? 0 : history.forEach(fromMillis, toMillis, consumer);
+    }
+
+    /**
+     * 从某个位置开始按追加顺序遍历到调用时刻的末尾，用于增量处理
+     *
+     * @param fromPosition 起始位置（该用户下的追加序号），上次返回的值
+     * @return 遍历结束的位置，下次从这里继续
+     */
+    public long forEachFrom(String userId, long fromPosition, Consumer<TransactionRecord> consumer) {
+        UserHistory history = historyMap.get(userId);
+        return null == history ? fromPosition : history.forEachFrom(fromPosition, consumer);
+    }
+
+    /**
+     * @return 有交易记录的userId，弱一致的只读视图，不复制
+     */
+    public Set<String> userIds() {
+        return Collections.unmodifiableSet(historyMap.keySet());
+    }
+
+    /**
+     * 按时间倒序分页查询
+     *
+     * @param userId       userId
+     * @param fromMillis   创建时间下限（含），不限传Long.MIN_VALUE
+     * @param toMillis     创建时间上限（不含），不限传Long.MAX_VALUE
+     * @param operatorType 操作类型，不限传null
+     * @param before       游标，只返回位置小于它的记录，第一页传Long.MAX_VALUE
+     * @param limit        页大小
+     */
+    public TransactionPage page(String userId, long fromMillis, long toMillis, String operatorType, long before, int limit) {
+        UserHistory history = historyMap.get(userId);
+        if (null == history) {
+            return new TransactionPage(Collections.emptyList(), -1);
+        }
+        return history.page(fromMillis, toMillis, operatorType, before, limit);
+    }
+
+    /**
+     * 热数据块的布局，变化时整体替换
+     */
+    private static final class Layout {
+        /**
+         * 第一个热数据块的块序号
+         */
+        final long firstChunkNo;
+        final RecordChunk[] chunks;
+
+        Layout(long firstChunkNo, RecordChunk[] chunks) {
+            this.firstChunkNo = firstChunkNo;
+            this.chunks = chunks;
+        }
+    }
+
+    private final class UserHistory {
+
+        private final String userId;
+        /**
+         * 已发布的记录数，写在记录之后，读到size就一定能读到size之前的记录
+         */
+        private volatile long size;
+        private volatile Layout layout = new Layout(0, new RecordChunk[0]);
+        /**
+         * 归档块的目录，下标是块序号*2：最大时间、类型位图；在layout滚过这些块之前发布
+         */
+        private volatile long[] directory = new long[0];
+        /**
+         * 最后一条记录的索引时间，只有写者访问
+         */
+        private long lastTime = Long.MIN_VALUE;
+        /**
+         * 从归档恢复的最后一条记录的日志位置，重放时不超过它的记录跳过
+         */
+        private long restoredThrough = -1;
+
+        UserHistory(String userId) {
+            this.userId = userId;
+        }
+
+        synchronized void append(TransactionRecord record, long position) {
+            if (position >= 0 && position <= restoredThrough) {
+                return;
+            }
+            long index = size;
+            int offset = (int) (index & (CHUNK_SIZE - 1));
+            Layout current = layout;
+            if (0 == offset) {
+                current = grow(current, index >>> CHUNK_SHIFT);
+            }
+            RecordChunk chunk = current.chunks[current.chunks.length - 1];
+            int type = codec.append(chunk, offset, userId, record);
+            //索引时间取创建时间和之前记录的较大值，单调不减；并发写入时创建时间可能有毫秒级乱序
+            long time = null == record.getGmt_create() ? lastTime : Math.max(lastTime, record.getGmt_create().getTime());
+            lastTime = time;
+            if (0 == offset) {
+                chunk.minTime = time;
+            }
+            chunk.maxTime = time;
+            chunk.typeMask |= typeBit(type);
+            chunk.lastPosition = position;
+            if (CHUNK_SIZE - 1 == offset) {
+                chunk.trim();
+            }
+            size = index + 1;
+        }
+
+        /**
+         * 启动时按块序号恢复归档的块，块本身不留在堆上
+         *
+         * @return 块序号不连续时返回false
+         */
+        synchronized boolean restore(long chunkNo, RecordChunk chunk) {
+            if (chunkNo != size >>> CHUNK_SHIFT || 0 != (size & (CHUNK_SIZE - 1))) {
+                return false;
+            }
+            index(chunkNo, chunk);
+            lastTime = chunk.maxTime;
+            restoredThrough = chunk.lastPosition;
+            layout = new Layout(chunkNo + 1, new RecordChunk[0]);
+            size = (chunkNo + 1) << CHUNK_SHIFT;
+            return true;
+        }
+
+        /**
+         * 追加一个新块，热数据超过上限时把最老的块滚到归档层
+         */
+        private Layout grow(Layout current, long chunkNo) {
+            RecordChunk[] hot = current.chunks;
+            long firstChunkNo = current.firstChunkNo;
+            int keep = hot.length;
+            if (keep >= maxHotChunks) {
+                archive.archive(userId, firstChunkNo, hot[0]);
+                index(firstChunkNo, hot[0]);
+                firstChunkNo++;
+                keep--;
+            }
+            RecordChunk[] chunks = new RecordChunk[keep + 1];
+            System.arraycopy(hot, hot.length - keep, chunks, 0, keep);
+            chunks[keep] = new RecordChunk();
+            if (0 == keep) {
+                firstChunkNo = chunkNo;
+            }
+            Layout grown = new Layout(firstChunkNo, chunks);
+            layout = grown;
+            return grown;
+        }
+
+        /**
+         * 归档块的时间和类型写进目录
+         */
+        private void index(long chunkNo, RecordChunk chunk) {
+            int slot = Math.toIntExact(chunkNo * 2);
+            long[] current = directory;
+            if (slot + 1 >= current.length) {
+                current = Arrays.copyOf(current, Math.max(current.length * 2, slot + 8));
+            }
+            current[slot] = chunk.maxTime;
+            current[slot + 1] = chunk.typeMask;
+            directory = current;
+        }
+
+        List<TransactionRecord> snapshot() {
+            //先读size再读layout，layout只会往后滚，覆盖不到的位置去归档层取
+            long snapshotSize = size;
+            return new Snapshot(this, snapshotSize, layout);
+        }
+
+        long forEach(long fromMillis, long toMillis, Consumer<TransactionRecord> consumer) {
+            long visible = size;
+            Snapshot snapshot = new Snapshot(this, visible, layout);
+            long low = Long.MIN_VALUE == fromMillis ? 0 : snapshot.firstAtOrAfter(fromMillis);
+            long high = Long.MAX_VALUE == toMillis ? visible : snapshot.firstAtOrAfter(toMillis);
+            snapshot.forEach((int) low, (int) high, consumer);
+            return Math.max(0, high - low);
+        }
+
+        long forEachFrom(long fromPosition, Consumer<TransactionRecord> consumer) {
+            long visible = size;
+            if (fromPosition < visible) {
+                new Snapshot(this, visible, layout).forEach((int) fromPosition, (int) visible, consumer);
+            }
+            return Math.max(fromPosition, visible);
+        }
+
+        TransactionPage page(long fromMillis, long toMillis, String operatorType, long before, int limit) {
+            long visible = size;
+            Snapshot snapshot = new Snapshot(this, visible, layout);
+            //可见范围[low, high)
+            long low = Long.MIN_VALUE == fromMillis ? 0 : snapshot.firstAtOrAfter(fromMillis);
+            long high = Math.min(before, Long.MAX_VALUE == toMillis ? visible : snapshot.firstAtOrAfter(toMillis));
+            List<TransactionRecord> records = new ArrayList<>((int) Math.max(0, Math.min(limit, high - low)));
+            long last = -1;
+            boolean more = false;
+            if (null == operatorType) {
+                long position = high - 1;
+                for (; position >= low && records.size() < limit; position--) {
+                    records.add(snapshot.get((int) position));
+                    last = position;
+                }
+                more = position >= low;
+            } else {
+                int type = codec.typeCode(operatorType);
+                long bit = type < 0 ? 0 : typeBit(type);
+                RecordChunk chunk = null;
+                long loaded = -1;
+                for (long position = high - 1; 0 != bit && position >= low; position--) {
+                    long chunkNo = position >>> CHUNK_SHIFT;
+                    if (0 == (snapshot.typeMaskOf(chunkNo) & bit)) {
+                        //整块没有这个类型
+                        position = chunkNo << CHUNK_SHIFT;
+                        continue;
+                    }
+                    if (chunkNo != loaded) {
+                        chunk = snapshot.chunkOf(chunkNo);
+                        loaded = chunkNo;
+                    }
+                    int offset = (int) (position & (CHUNK_SIZE - 1));
+                    if (codec.typeCodeOf(chunk, offset) != type) {
+                        continue;
+                    }
+                    if (records.size() == limit) {
+                        more = true;
+                        break;
+                    }
+                    records.add(codec.decode(chunk, offset, userId));
+                    last = position;
+                }
+            }
+            return new TransactionPage(records, more ? last : -1);
+        }
+    }
+
+    /**
+     * @return 类型编码在位图里的位，序号63及以上共用最高位；null类型不进位图
+     */
+    private static long typeBit(int type) {
+        return 0 == type ? 0 : 1L << Math.min(type - 1, 63);
+    }
+
+    private final class Snapshot extends AbstractList<TransactionRecord> {
+
+        private final String userId;
+        private final int size;
+        private final Layout layout;
+        /**
+         * 在layout之后读，layout滚过的块都在目录里
+         */
+        private final long[] directory;
+
+        Snapshot(UserHistory history, long size, Layout layout) {
+            this.userId = history.userId;
+            this.size = (int) Math.min(size, Integer.MAX_VALUE);
+            this.layout = layout;
+            this.directory = history.directory;
+        }
+
+        @Override
+        public TransactionRecord get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+            }
+            return codec.decode(chunkOf(index >>> CHUNK_SHIFT), index & (CHUNK_SIZE - 1), userId);
+        }
+
+        /**
+         * 顺序遍历时按块取，一个归档块只加载一次
+         */
+        @Override
+        public Iterator<TransactionRecord> iterator() {
+            return new Iterator<TransactionRecord>() {
+                private int index;
+                private RecordChunk chunk;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public TransactionRecord next() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    int offset = index & (CHUNK_SIZE - 1);
+                    if (null == chunk || 0 == offset) {
+                        chunk = chunkOf(index >>> CHUNK_SHIFT);
+                    }
+                    index++;
+                    return codec.decode(chunk, offset, userId);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 按块遍历[from, to)，一个归档块只加载一次
+         */
+        void forEach(int from, int to, Consumer<TransactionRecord> consumer) {
+            RecordChunk chunk = null;
+            for (int index = from; index < to; index++) {
+                int offset = index & (CHUNK_SIZE - 1);
+                if (null == chunk || 0 == offset) {
+                    chunk = chunkOf(index >>> CHUNK_SHIFT);
+                }
+                consumer.accept(codec.decode(chunk, offset, userId));
+            }
+        }
+
+        /**
+         * 先按块的最大时间二分，再在块内按索引时间扫描
+         *
+         * @return [0, size)里第一个索引时间不早于time的位置，都早于time返回size
+         */
+        long firstAtOrAfter(long time) {
+            long chunks = ((long) size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT;
+            long low = 0;
+            long high = chunks;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (maxTimeOf(mid) < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low == chunks) {
+                return size;
+            }
+            RecordChunk chunk = chunkOf(low);
+            long start = low << CHUNK_SHIFT;
+            int count = (int) Math.min(CHUNK_SIZE, size - start);
+            long indexTime = chunk.minTime;
+            for (int offset = 0; offset < count; offset++) {
+                indexTime = Math.max(indexTime, codec.createTimeOf(chunk, offset));
+                if (indexTime >= time) {
+                    return start + offset;
+                }
+            }
+            //正在写的块，最大时间来自还不可见的记录
+            return start + count;
+        }
+
+        long typeMaskOf(long chunkNo) {
+            return chunkNo >= layout.firstChunkNo
+                    ? layout.chunks[(int) (chunkNo - layout.firstChunkNo)].typeMask : directory[(int) (chunkNo * 2 + 1)];
+        }
+
+        private long maxTimeOf(long chunkNo) {
+            return chunkNo >= layout.firstChunkNo
+                    ? layout.chunks[(int) (chunkNo - layout.firstChunkNo)].maxTime : directory[(int) (chunkNo * 2)];
+        }
+
+        RecordChunk chunkOf(long chunkNo) {
+            if (chunkNo >= layout.firstChunkNo) {
+                return layout.chunks[(int) (chunkNo - layout.firstChunkNo)];
+            }
+            RecordChunk archived = archive.load(userId, chunkNo);
+            if (null == archived) {
+                throw new IllegalStateException("archived chunk missing, userId: " + userId + ", chunkNo: " + chunkNo);
+            }
+            return archived;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.wallet.domain.repository;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * 字符串驻留表，把userId、操作类型这类重复出现的字符串换成一个小整数，记录里只存序号
+ * 序号一经分配不会改变；每个字符串只保留第一次出现的实例。新分配的序号通知监听者（归档层记进文件），重启后按原序号恢复
+ */
+final class InternTable {
+
+    private final Map<String, Integer> ordinalMap = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    /**
+     * 已分配的个数，只在register里访问
+     */
+    private int size;
+    /**
+     * 新分配序号时在分配锁内回调，先于序号发布；为空时不回调
+     */
+    private volatile ObjIntConsumer<String> listener;
+
+    /**
+     * @return 序号，第一次出现时分配
+     */
+    int ordinalOf(String value) {
+        Integer ordinal = ordinalMap.get(value);
+        return null != ordinal ? ordinal : register(value);
+    }
+
+    /**
+     * @return 序号，没有分配过返回-1，不分配
+     */
+    int find(String value) {
+        Integer ordinal = ordinalMap.get(value);
+        return null == ordinal ? -1 : ordinal;
+    }
+
+    /**
+     * @param ordinal ordinalOf返回过的序号
+     */
+    String valueOf(int ordinal) {
+        return values[ordinal];
+    }
+
+    void listen(ObjIntConsumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 恢复时按序号从小到大放回，序号必须和分配时一致；不通知监听者
+     */
+    synchronized void restore(int ordinal, String value) {
+        if (ordinal != size || ordinalMap.containsKey(value)) {
+            throw new IllegalStateException("intern table restored out of order: " + ordinal + ", size: " + size);
+        }
+        put(value);
+    }
+
+    private synchronized int register(String value) {
+        Integer ordinal = ordinalMap.get(value);
+        if (null != ordinal) {
+            return ordinal;
+        }
+        ObjIntConsumer<String> current = listener;
+        if (null != current) {
+            current.accept(value, size);
+        }
+        return put(value);
+    }
+
+    private int put(String value) {
+        String[] current = values;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = value;
+        //先发布值表再发布序号，拿到序号的线程一定能查到值
+        values = current;
+        ordinalMap.put(value, size);
+        return size++;
+    }
+}
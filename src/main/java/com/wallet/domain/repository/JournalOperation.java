@@ -0,0 +1,132 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.IdempotencyKey;
+import com.wallet.domain.model.Money;
+import com.wallet.domain.model.TransactionRecord;
+
+import java.util.Date;
+import java.util.function.BiConsumer;
+
+/**
+ * 一次账户变更的操作：操作类型、它产生的交易记录（记录归属的userId -> 记录）和幂等请求的标识与结果，
+ * 和变更后的账户写在同一条预写日志里，恢复时据此重建交易记录和去重表，和余额一起恢复
+ * <p>
+ * 同币种转账两边是同一条记录，日志里只写一次
+ */
+public final class JournalOperation {
+
+    private static final String[] NO_OWNERS = new String[0];
+    private static final TransactionRecord[] NO_RECORDS = new TransactionRecord[0];
+
+    private final String operatorType;
+    private final String[] owners;
+    private final TransactionRecord[] records;
+    /**
+     * 操作时间（毫秒）
+     */
+    private final long time;
+    private IdempotencyKey request;
+    private Long result;
+
+    JournalOperation(String operatorType, String[] owners, TransactionRecord[] records, long time) {
+        this.operatorType = operatorType;
+        this.owners = owners;
+        this.records = records;
+        this.time = time;
+    }
+
+    /**
+     * 不产生交易记录的变更，如归集、退款、跨分片转账的扣款腿
+     */
+    public static JournalOperation of(String operatorType) {
+        return new JournalOperation(operatorType, NO_OWNERS, NO_RECORDS, System.currentTimeMillis());
+    }
+
+    /**
+     * 存钱、取钱：操作人自己记一笔
+     */
+    public static JournalOperation single(String operatorType, String userId, Money money, Date now) {
+        return new JournalOperation(operatorType, new String[]{userId},
+                new TransactionRecord[]{record(userId, money, operatorType, userId, userId, now)}, now.getTime());
+    }
+
+    /**
+     * 转账：两边都记一笔，否则去向账户的余额和交易记录对不上；跨币种时去向记入账币种的金额
+     *
+     * @param credit 去向入账的金额，同币种时就是money
+     */
+    public static JournalOperation transfer(String operatorType, String from, String to, Money money, Money credit, Date now) {
+        TransactionRecord debit = record(from, money, operatorType, from, to, now);
+        boolean same = credit == money
+                || (credit.getCent() == money.getCent() && credit.getCurrencyCode().equals(money.getCurrencyCode()));
+        return new JournalOperation(operatorType, new String[]{from, to},
+                new TransactionRecord[]{debit, same ? debit : record(from, credit, operatorType, from, to, now)}, now.getTime());
+    }
+
+    /**
+     * 带上幂等请求的标识和返回给请求方的结果，和变更写在同一条日志里，一起刷盘
+     *
+     * @param request 为空时不去重
+     * @param result  结果，没有结果（转账）为null
+     * @return this
+     */
+    public JournalOperation request(IdempotencyKey request, Long result) {
+        this.request = request;
+        this.result = result;
+        return this;
+    }
+
+    public String getOperatorType() {
+        return operatorType;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return 幂等请求的标识，没有返回null
+     */
+    public IdempotencyKey getRequest() {
+        return request;
+    }
+
+    public Long getResult() {
+        return result;
+    }
+
+    /**
+     * 按写入顺序逐条给出(归属userId, 记录)
+     */
+    public void forEachRecord(BiConsumer<String, TransactionRecord> consumer) {
+        for (int i = 0; i < records.length; i++) {
+            consumer.accept(owners[i], records[i]);
+        }
+    }
+
+    int size() {
+        return records.length;
+    }
+
+    String ownerAt(int index) {
+        return owners[index];
+    }
+
+    TransactionRecord recordAt(int index) {
+        return records[index];
+    }
+
+    private static TransactionRecord record(String userId, Money money, String operatorType, String from, String to, Date now) {
+        return TransactionRecord.builder()
+                .from(from)
+                .to(to)
+                .operatorAmount(money.getCent())
+                .operatorCurrency(money.getCurrencyCode())
+                .operatorUserId(userId)
+                .operatorType(operatorType)
+                .gmt_create(now)
+                .gmt_modify(now)
+                //remark留空，读取时由TransactionRecord.getRemark推导
+                .build();
+    }
+}
@@ -0,0 +1,49 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * 基于ConcurrentHashMap的账户表
+ * 每个账户一个引用单元，单元里的Account发布后不可变，变更通过CAS替换整个Account
+ */
+public class MapAccountTable implements AccountTable {
+
+    private final ConcurrentMap<String, AtomicReference<Account>> accountMap = new ConcurrentHashMap<>();
+
+    @Override
+    public Account get(String userId) {
+        AtomicReference<Account> cell = accountMap.get(userId);
+        return null == cell ? null : cell.get();
+    }
+
+    @Override
+    public boolean compareAndSet(String userId, Account expect, Account update) {
+        AtomicReference<Account> cell = accountMap.get(userId);
+        if (null == cell) {
+            //首次开户，只有基于空账户计算出的结果才能落下
+            return 0L == expect.getVersion() && null == accountMap.putIfAbsent(userId, new AtomicReference<>(update));
+        }
+        Account current = cell.get();
+        return current.getVersion().equals(expect.getVersion()) && cell.compareAndSet(current, update);
+    }
+
+    @Override
+    public void put(String userId, Account account) {
+        AtomicReference<Account> cell = accountMap.get(userId);
+        if (null == cell) {
+            accountMap.put(userId, new AtomicReference<>(account));
+        } else {
+            cell.set(account);
+        }
+    }
+
+    @Override
+    public void forEach(Consumer<Account> consumer) {
+        accountMap.values().forEach(cell -> consumer.accept(cell.get()));
+    }
+}
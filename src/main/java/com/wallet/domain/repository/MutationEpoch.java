@@ -0,0 +1,55 @@
+package com.wallet.domain.repository;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 变更纪元，用来等待某一时刻之前开始的所有变更（含写日志）结束，而不阻塞新的变更
+ * 每个变更进入时在当前纪元的计数上加一，结束时减一；计数按线程分段，避免热点
+ * 只允许一个线程调用advance
+ */
+class MutationEpoch {
+
+    /**
+     * 每个分段独占一个缓存行（8个long），避免伪共享
+     */
+    private static final int PAD = 8;
+    private static final int STRIPES = 32;
+
+    private final AtomicLongArray active = new AtomicLongArray(2 * STRIPES * PAD);
+    private volatile long epoch;
+
+    /**
+     * @return 凭证，传给exit
+     */
+    int enter() {
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        for (; ; ) {
+            long current = epoch;
+            int index = (((int) current & 1) * STRIPES + stripe) * PAD;
+            active.incrementAndGet(index);
+            //计数落下之后纪元没变，advance之后的等待一定能看到这次计数
+            if (epoch == current) {
+                return index;
+            }
+            active.decrementAndGet(index);
+        }
+    }
+
+    void exit(int ticket) {
+        active.decrementAndGet(ticket);
+    }
+
+    /**
+     * 进入下一个纪元，并等待上一个纪元里开始的变更全部结束
+     */
+    void advance() throws InterruptedException {
+        long previous = epoch;
+        epoch = previous + 1;
+        int offset = ((int) previous & 1) * STRIPES;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            while (active.get((offset + stripe) * PAD) > 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.IdempotencyKey;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 跨分片转账的待入账意图
+ * 转出分片扣款时随日志写下，转入分片入账时用transferId关闭；恢复时仍未关闭的意图会被补入账，
+ * 并按扣款的来源、金额和时间补上两边的交易记录
+ */
+@Data
+@AllArgsConstructor
+public class PendingCredit {
+    /**
+     * 转账标识
+     */
+    private long transferId;
+    /**
+     * 入账人
+     */
+    private String userId;
+    /**
+     * 入账金额（分）
+     */
+    private long cent;
+    /**
+     * 币种
+     */
+    private String currency;
+    /**
+     * 来源，旧日志里的意图没有，补入账时不补交易记录
+     */
+    private String from;
+    /**
+     * 扣款金额（分）
+     */
+    private long debitCent;
+    /**
+     * 扣款币种
+     */
+    private String debitCurrency;
+    /**
+     * 扣款时间（毫秒），交易记录用
+     */
+    private long time;
+    /**
+     * 幂等请求的标识，入账成功时写进关闭意图的日志，退款时不写；为空时不去重
+     */
+    private IdempotencyKey request;
+}
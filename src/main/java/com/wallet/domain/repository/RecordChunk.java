@@ -0,0 +1,104 @@
+package com.wallet.domain.repository;
+
+import java.util.Arrays;
+
+/**
+ * 一块交易记录的紧凑编码：记录按行紧排在一个字节数组里，offsets记每条的起始位置，可以按块内下标随机解码，编码格式见RecordCodec
+ * <p>
+ * userId和操作类型存的是驻留序号，驻留表随归档文件恢复（见RecordCodec.restore），块原样归档和取回
+ * <p>
+ * 块自带索引：时间范围和类型位图，随块一起归档，查询按块跳过，不再逐条建索引
+ * <p>
+ * 只由持有用户锁的写者追加，读者用HistoryStore发布的size限定可见范围；写满之后不再修改
+ */
+public final class RecordChunk {
+
+    /**
+     * 单条记录编码后的最大字节数
+     */
+    static final int MAX_RECORD_BYTES = 64;
+    private static final int INITIAL_BYTES = 1024;
+
+    byte[] data = new byte[INITIAL_BYTES];
+    final char[] offsets = new char[HistoryStore.CHUNK_SIZE];
+    /**
+     * 已写的字节数
+     */
+    int length;
+    /**
+     * 块内时间的基准，取第一条记录的创建时间，记录里只存和它的差值
+     */
+    long baseTime;
+    /**
+     * 写入时指定了备注的记录，按块内下标存放；默认备注读取时推导，绝大多数块没有这个数组
+     */
+    String[] remarks;
+    /**
+     * 第一条和最后一条记录的索引时间：创建时间和之前所有记录的较大值，跨块单调不减，可以按块二分
+     */
+    long minTime;
+    long maxTime;
+    /**
+     * 块里出现过的操作类型，第i位是驻留序号i，序号63及以上共用最高位
+     */
+    long typeMask;
+    /**
+     * 最后一条记录所在日志的结束位置，没开启持久化时为-1；重启时归档到这里的记录不再从日志重放
+     */
+    long lastPosition = -1;
+
+    RecordChunk() {
+    }
+
+    /**
+     * @return 编码后的字节数
+     */
+    public int byteSize() {
+        return length;
+    }
+
+    /**
+     * 开始写一条记录，容量不够时按倍数扩容（读者可能还拿着旧数组，旧数组里已发布的记录不变）
+     */
+    void begin(int index) {
+        if (length + MAX_RECORD_BYTES > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + MAX_RECORD_BYTES));
+        }
+        offsets[index] = (char) length;
+    }
+
+    /**
+     * 写满后去掉多余的容量
+     */
+    void trim() {
+        if (data.length != length) {
+            data = Arrays.copyOf(data, length);
+        }
+    }
+
+    void putByte(int value) {
+        data[length++] = (byte) value;
+    }
+
+    void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    /**
+     * 有符号数先zigzag，绝对值小的数编码也短
+     */
+    void putZigZag(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    void putRemark(int index, String remark) {
+        if (null == remarks) {
+            remarks = new String[HistoryStore.CHUNK_SIZE];
+        }
+        remarks[index] = remark;
+    }
+}
@@ -0,0 +1,282 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Currencies;
+import com.wallet.domain.model.TransactionRecord;
+
+import java.util.Date;
+
+/**
+ * 交易记录的紧凑编码，一条记录通常十来个字节
+ * <pre>
+ * flags         1字节，见下面的常量
+ * type          varint，操作类型的驻留序号+1，0表示null
+ * currency      varint，币种序号（Currencies）
+ * amount        zigzag varint，没有金额时省略
+ * parties       按flags的低两位：SELF省略；OUT/IN一个varint，对方userId的驻留序号；
+ *               GENERAL三个varint（操作人、来源、去向），驻留序号+1，0表示null
+ * gmt_create    zigzag varint，和块基准时间的差值，为null时省略
+ * gmt_modify    zigzag varint，和块基准时间的差值，等于gmt_create或为null时省略
+ * </pre>
+ * 记录所属的userId就是块所属的userId，不存；默认备注读取时由TransactionRecord推导，写入时指定的备注单独存在块里
+ * <p>
+ * 驻留表新分配的序号通知归档层，和块一起记进归档文件，重启后按原序号恢复（restore），归档的块不用重新编码
+ */
+final class RecordCodec {
+
+    /**
+     * 驻留表的编号：操作类型
+     */
+    static final int TYPES = 0;
+    /**
+     * 驻留表的编号：userId
+     */
+    static final int USER_IDS = 1;
+
+    private static final int PARTIES = 0x03;
+    /**
+     * 操作人、来源、去向都是记录所属的用户
+     */
+    private static final int SELF = 0;
+    /**
+     * 操作人和来源是记录所属的用户，去向是别人
+     */
+    private static final int OUT = 1;
+    /**
+     * 去向是记录所属的用户，操作人和来源是同一个别人
+     */
+    private static final int IN = 2;
+    private static final int GENERAL = 3;
+    private static final int NO_AMOUNT = 0x04;
+    private static final int NO_CREATE = 0x08;
+    private static final int MODIFY_SAME = 0x10;
+    private static final int NO_MODIFY = 0x20;
+    private static final int REMARK = 0x40;
+
+    private final InternTable types = new InternTable();
+    private final InternTable userIds = new InternTable();
+
+    /**
+     * 恢复一个驻留序号，要在任何append之前按归档顺序调用
+     */
+    void restore(int table, int ordinal, String value) {
+        (TYPES == table ? types : userIds).restore(ordinal, value);
+    }
+
+    /**
+     * 之后新分配的驻留序号通知归档层
+     */
+    void listen(HistoryArchive archive) {
+        types.listen((value, ordinal) -> archive.intern(TYPES, ordinal, value));
+        userIds.listen((value, ordinal) -> archive.intern(USER_IDS, ordinal, value));
+    }
+
+    /**
+     * @return 操作类型在记录里的编码（驻留序号+1），null是0，没出现过的类型返回-1
+     */
+    int typeCode(String operatorType) {
+        if (null == operatorType) {
+            return 0;
+        }
+        int ordinal = types.find(operatorType);
+        return ordinal < 0 ? -1 : ordinal + 1;
+    }
+
+    /**
+     * 在块尾追加一条记录
+     *
+     * @param owner 记录所属的userId
+     * @param index 块内下标
+     * @return 操作类型的编码，见typeCode
+     */
+    int append(RecordChunk chunk, int index, String owner, TransactionRecord record) {
+        String operator = record.getOperatorUserId();
+        String from = record.getFrom();
+        String to = record.getTo();
+        int parties;
+        if (owner.equals(operator) && owner.equals(from) && owner.equals(to)) {
+            parties = SELF;
+        } else if (owner.equals(operator) && owner.equals(from) && null != to) {
+            parties = OUT;
+        } else if (owner.equals(to) && null != from && from.equals(operator)) {
+            parties = IN;
+        } else {
+            parties = GENERAL;
+        }
+        Long amount = record.getOperatorAmount();
+        Date create = record.getGmt_create();
+        Date modify = record.getGmt_modify();
+        String remark = record.customRemark();
+        int flags = parties
+                | (null == amount ? NO_AMOUNT : 0)
+                | (null == create ? NO_CREATE : 0)
+                | (sameTime(create, modify) ? MODIFY_SAME : null == modify ? NO_MODIFY : 0)
+                | (null == remark ? 0 : REMARK);
+
+        if (0 == index) {
+            chunk.baseTime = null == create ? 0 : create.getTime();
+        }
+        chunk.begin(index);
+        chunk.putByte(flags);
+        int type = null == record.getOperatorType() ? 0 : types.ordinalOf(record.getOperatorType()) + 1;
+        chunk.putVarLong(type);
+        chunk.putVarLong(Currencies.ordinalOf(record.getOperatorCurrency()));
+        if (null != amount) {
+            chunk.putZigZag(amount);
+        }
+        switch (parties) {
+            case OUT:
+                chunk.putVarLong(userIds.ordinalOf(to));
+                break;
+            case IN:
+                chunk.putVarLong(userIds.ordinalOf(from));
+                break;
+            case GENERAL:
+                chunk.putVarLong(nullableOrdinal(operator));
+                chunk.putVarLong(nullableOrdinal(from));
+                chunk.putVarLong(nullableOrdinal(to));
+                break;
+            default:
+                break;
+        }
+        if (null != create) {
+            chunk.putZigZag(create.getTime() - chunk.baseTime);
+        }
+        if (0 == (flags & (MODIFY_SAME | NO_MODIFY))) {
+            chunk.putZigZag(modify.getTime() - chunk.baseTime);
+        }
+        if (null != remark) {
+            chunk.putRemark(index, remark);
+        }
+        return type;
+    }
+
+    /**
+     * @return 块内第index条记录的操作类型编码，只读类型不解码整条
+     */
+    int typeCodeOf(RecordChunk chunk, int index) {
+        Reader in = new Reader(chunk.data, chunk.offsets[index] + 1);
+        return (int) in.varLong();
+    }
+
+    /**
+     * @return 块内第index条记录的创建时间，没有返回Long.MIN_VALUE；跳过前面的字段，不解码整条
+     */
+    long createTimeOf(RecordChunk chunk, int index) {
+        Reader in = new Reader(chunk.data, chunk.offsets[index]);
+        int flags = in.data[in.position++];
+        if (0 != (flags & NO_CREATE)) {
+            return Long.MIN_VALUE;
+        }
+        //类型、币种
+        in.varLong();
+        in.varLong();
+        if (0 == (flags & NO_AMOUNT)) {
+            in.varLong();
+        }
+        int parties = flags & PARTIES;
+        for (int i = OUT == parties || IN == parties ? 1 : GENERAL == parties ? 3 : 0; i > 0; i--) {
+            in.varLong();
+        }
+        return chunk.baseTime + in.zigZag();
+    }
+
+    /**
+     * 解码块内第index条记录，每次返回新对象
+     *
+     * @param owner 记录所属的userId
+     */
+    TransactionRecord decode(RecordChunk chunk, int index, String owner) {
+        Reader in = new Reader(chunk.data, chunk.offsets[index]);
+        int flags = in.data[in.position++];
+        int type = (int) in.varLong();
+        int currency = (int) in.varLong();
+        Long amount = 0 == (flags & NO_AMOUNT) ? in.zigZag() : null;
+        String operator;
+        String from;
+        String to;
+        switch (flags & PARTIES) {
+            case SELF:
+                operator = owner;
+                from = owner;
+                to = owner;
+                break;
+            case OUT:
+                operator = owner;
+                from = owner;
+                to = userIds.valueOf((int) in.varLong());
+                break;
+            case IN:
+                operator = userIds.valueOf((int) in.varLong());
+                from = operator;
+                to = owner;
+                break;
+            default:
+                operator = nullableValue((int) in.varLong());
+                from = nullableValue((int) in.varLong());
+                to = nullableValue((int) in.varLong());
+                break;
+        }
+        Date create = 0 == (flags & NO_CREATE) ? new Date(chunk.baseTime + in.zigZag()) : null;
+        Date modify;
+        if (0 != (flags & MODIFY_SAME)) {
+            //和WalletService写入时一样，两个时间是同一个对象
+            modify = create;
+        } else {
+            modify = 0 == (flags & NO_MODIFY) ? new Date(chunk.baseTime + in.zigZag()) : null;
+        }
+        return TransactionRecord.builder()
+                .operatorType(0 == type ? null : types.valueOf(type - 1))
+                .operatorAmount(amount)
+                .operatorCurrency(Currencies.codeOf(currency))
+                .operatorUserId(operator)
+                .from(from)
+                .to(to)
+                .remark(0 != (flags & REMARK) ? chunk.remarks[index] : null)
+                .gmt_create(create)
+                .gmt_modify(modify)
+                .build();
+    }
+
+    private static boolean sameTime(Date create, Date modify) {
+        return null == create ? null == modify : null != modify && create.getTime() == modify.getTime();
+    }
+
+    private long nullableOrdinal(String userId) {
+        return null == userId ? 0 : userIds.ordinalOf(userId) + 1L;
+    }
+
+    private String nullableValue(int ordinal) {
+        return 0 == ordinal ? null : userIds.valueOf(ordinal - 1);
+    }
+
+    /**
+     * 解码游标，只活在一次decode里
+     */
+    private static final class Reader {
+
+        final byte[] data;
+        int position;
+
+        Reader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        long varLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        long zigZag() {
+            long value = varLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.Currencies;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 开放寻址的原始类型账户表，账户字段全部以long存放在一块连续的数组里，不为每个账户创建对象
+ * 开放寻址的索引只存userId和行号，账户数据按开户顺序紧凑排列，每行STRIDE个long：序列号、余额（分）、币种序号、创建时间、更新时间
+ * 序列号是version*2，写入期间为奇数，读取按seqlock方式重试，Account对象只在读取时临时生成
+ * 容量在创建时确定，不扩容，需要按预估的钱包数量设置
+ * 持有多个币种的账户，各币种余额数组（Account.balances，不可变）另外按行号存一个引用，和行一起受seqlock保护；
+ * 单币种账户这一格为空
+ */
+public class SlabAccountTable implements AccountTable {
+
+    private static final int SEQ = 0;
+    private static final int BALANCE = 1;
+    private static final int CURRENCY = 2;
+    private static final int GMT_CREATE = 3;
+    private static final int GMT_MODIFY = 4;
+    private static final int STRIDE = 5;
+
+    /**
+     * 最大装载因子，超过后线性探测的长度会明显变长
+     */
+    private static final double LOAD_FACTOR = 0.75;
+
+    /**
+     * 索引：userId -> 行号，写入行号之后才发布userId
+     */
+    private final AtomicReferenceArray<String> keys;
+    private final AtomicIntegerArray rows;
+    private final AtomicLongArray slab;
+    /**
+     * 行号 -> 多币种余额
+     */
+    private final AtomicReferenceArray<long[]> balances;
+    private final int mask;
+    private final int maxSize;
+    /**
+     * 已开户数，只在开户锁内修改
+     */
+    private volatile int size;
+
+    /**
+     * @param capacity 最多容纳的账户数
+     */
+    public SlabAccountTable(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        long slots = Long.highestOneBit((long) Math.ceil(capacity / LOAD_FACTOR) - 1) << 1;
+        if (slots > Integer.MAX_VALUE || (long) capacity * STRIDE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity too large: " + capacity);
+        }
+        this.keys = new AtomicReferenceArray<>((int) slots);
+        this.rows = new AtomicIntegerArray((int) slots);
+        this.slab = new AtomicLongArray(capacity * STRIDE);
+        this.balances = new AtomicReferenceArray<>(capacity);
+        this.mask = (int) slots - 1;
+        this.maxSize = capacity;
+    }
+
+    @Override
+    public Account get(String userId) {
+        int slot = find(userId);
+        return slot < 0 ? null : read(slot);
+    }
+
+    @Override
+    public void forEach(Consumer<Account> consumer) {
+        for (int slot = 0; slot <= mask; slot++) {
+            if (null != keys.get(slot)) {
+                Account account = read(slot);
+                if (null != account) {
+                    consumer.accept(account);
+                }
+            }
+        }
+    }
+
+    /**
+     * seqlock方式读取一行
+     */
+    private Account read(int slot) {
+        int row = rows.get(slot);
+        int base = row * STRIDE;
+        for (; ; ) {
+            long seq = slab.get(base + SEQ);
+            if ((seq & 1) != 0) {
+                //有写入正在进行
+                Thread.yield();
+                continue;
+            }
+            long balance = slab.get(base + BALANCE);
+            int currency = (int) slab.get(base + CURRENCY);
+            long gmtCreate = slab.get(base + GMT_CREATE);
+            long gmtModify = slab.get(base + GMT_MODIFY);
+            long[] multi = balances.get(row);
+            if (slab.get(base + SEQ) != seq) {
+                continue;
+            }
+            if (0 == seq) {
+                //已占位但还没有写入过
+                return null;
+            }
+            return Account.builder()
+                    .userId(keys.get(slot))
+                    .amount(new AtomicLong(balance))
+                    .currency(Currencies.codeOf(currency))
+                    .balances(multi)
+                    .version(seq >>> 1)
+                    .gmt_create(0 == gmtCreate ? null : new Date(gmtCreate))
+                    .gmt_modify(0 == gmtModify ? null : new Date(gmtModify))
+                    .build();
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(String userId, Account expect, Account update) {
+        int slot = find(userId);
+        if (slot < 0) {
+            if (0L != expect.getVersion()) {
+                return false;
+            }
+            slot = insert(userId);
+        }
+        int row = rows.get(slot);
+        int base = row * STRIDE;
+        long expectSeq = expect.getVersion() << 1;
+        if (!slab.compareAndSet(base + SEQ, expectSeq, expectSeq | 1)) {
+            return false;
+        }
+        write(row, update);
+        return true;
+    }
+
+    @Override
+    public void put(String userId, Account account) {
+        int slot = find(userId);
+        int row = rows.get(slot < 0 ? insert(userId) : slot);
+        int base = row * STRIDE;
+        //单写者不需要CAS，先置为奇数挡住读者
+        slab.set(base + SEQ, slab.get(base + SEQ) | 1);
+        write(row, account);
+    }
+
+    /**
+     * 写入一行并发布新的序列号，调用前序列号必须已经是奇数
+     */
+    private void write(int row, Account update) {
+        int base = row * STRIDE;
+        balances.set(row, update.getBalances());
+        slab.set(base + BALANCE, update.getAmount().get());
+        slab.set(base + CURRENCY, Currencies.ordinalOf(update.getCurrency()));
+        slab.set(base + GMT_CREATE, null == update.getGmt_create() ? 0 : update.getGmt_create().getTime());
+        slab.set(base + GMT_MODIFY, null == update.getGmt_modify() ? 0 : update.getGmt_modify().getTime());
+        slab.set(base + SEQ, update.getVersion() << 1);
+    }
+
+    /**
+     * @return 已开户数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 槽位下标，不存在返回-1
+     */
+    private int find(String userId) {
+        for (int slot = indexOf(userId); ; slot = (slot + 1) & mask) {
+            String key = keys.get(slot);
+            if (null == key) {
+                return -1;
+            }
+            if (key.equals(userId)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * 开户，相对余额变更是低频操作，加锁保证行号分配和索引发布的顺序，读取不受影响
+     *
+     * @return 槽位下标
+     */
+    private synchronized int insert(String userId) {
+        for (int slot = indexOf(userId); ; slot = (slot + 1) & mask) {
+            String key = keys.get(slot);
+            if (null == key) {
+                if (size >= maxSize) {
+                    throw new IllegalStateException("account table is full, capacity: " + maxSize);
+                }
+                rows.set(slot, size);
+                keys.set(slot, userId);
+                size = size + 1;
+                return slot;
+            }
+            if (key.equals(userId)) {
+                return slot;
+            }
+        }
+    }
+
+    private int indexOf(String userId) {
+        int h = userId.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
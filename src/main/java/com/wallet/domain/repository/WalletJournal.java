@@ -0,0 +1,567 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.IdempotencyKey;
+import com.wallet.domain.model.TransactionRecord;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 预写日志，只追加，按固定大小分段并内存映射
+ * 每条日志对应一次存钱、取钱或转账，记录的是变更后各账户的完整状态（不是增量），
+ * 因此重放时按version取大即可，与日志的先后顺序和重复重放无关；
+ * 同一条日志里还有这次操作产生的交易记录和幂等请求的结果（JournalOperation），恢复时按日志顺序重建，和余额一起生效
+ * 刷盘采用组提交：同一时刻只有一个线程fsync，它把当时已经写入的所有日志一起刷下去，排队的线程大多直接返回
+ * <p>
+ * 跨分片转账的两条腿分别写日志，扣款日志带上待入账意图（PendingCredit），入账日志关闭意图
+ * <p>
+ * 日志格式：[int 长度][int crc32][长度个字节的内容]，长度为0表示本段剩余空间已废弃
+ * 内容：[操作类型][byte 账户数][账户...][byte 意图标记][意图][byte 操作标记][转账明细][交易记录][幂等请求]，意图标记 0无 1打开 2关闭；
+ * 操作标记之后的部分是后来加的，旧日志里没有，读到内容末尾就当作没有交易记录
+ * 位置是全局偏移，段文件名是该段起始的全局偏移
+ */
+public class WalletJournal implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final byte NO_INTENT = 0;
+    private static final byte OPEN_INTENT = 1;
+    private static final byte CLOSE_INTENT = 2;
+    /**
+     * 操作标记：带交易记录
+     */
+    private static final int RECORDS = 0x01;
+    /**
+     * 操作标记：打开的意图带转账的来源、扣款金额和时间
+     */
+    private static final int TRANSFER_DETAIL = 0x02;
+    /**
+     * 操作标记：带幂等请求的标识和结果
+     */
+    private static final int REQUEST = 0x04;
+
+    private final File dir;
+    private final int segmentSize;
+    /**
+     * 每写入一条日志在appendLock内回调一次，回调的顺序就是日志的顺序
+     */
+    private final OperationVisitor appendListener;
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    /**
+     * 当前写入段，只在appendLock内读写
+     */
+    private Segment current;
+    /**
+     * 已写入（未必已刷盘）的位置
+     */
+    private volatile long writtenPosition;
+    /**
+     * 已刷盘的位置
+     */
+    private volatile long durablePosition;
+
+    private final AtomicLong syncCount = new AtomicLong();
+    /**
+     * read最近打开的旧段，只有读取线程访问
+     */
+    private Segment readSegment;
+
+    /**
+     * 打开日志目录，定位到最后一段的有效末尾，之后的写入从这里继续
+     *
+     * @param dir            日志目录，不存在则创建
+     * @param segmentSize    每段字节数
+     * @param appendListener 每写入一条日志在追加锁内回调，不能阻塞也不能抛异常，为空时不回调
+     */
+    public WalletJournal(File dir, int segmentSize, OperationVisitor appendListener) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create journal dir: " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.appendListener = appendListener;
+        List<Long> bases = segmentBases();
+        long base = bases.isEmpty() ? 0 : bases.get(bases.size() - 1);
+        current = openSegment(base);
+        current.buffer.position(scan(current, 0, null, null, null));
+        writtenPosition = current.base + current.buffer.position();
+        durablePosition = writtenPosition;
+    }
+
+    /**
+     * 追加一条日志，返回后日志未必已刷盘，需要持久化时调用sync
+     *
+     * @param operation 操作和它产生的交易记录
+     * @param accounts  变更后的账户
+     * @return 这条日志结束的位置
+     */
+    public long append(JournalOperation operation, Account... accounts) {
+        return append(encode(operation, accounts, NO_INTENT, null, 0), operation);
+    }
+
+    /**
+     * 追加跨分片转账的扣款日志，同时打开待入账意图
+     */
+    public long appendOpen(JournalOperation operation, PendingCredit credit, Account... accounts) {
+        return append(encode(operation, accounts, OPEN_INTENT, credit, credit.getTransferId()), operation);
+    }
+
+    /**
+     * 追加跨分片转账的入账日志，同时关闭待入账意图
+     */
+    public long appendClose(JournalOperation operation, long transferId, Account... accounts) {
+        return append(encode(operation, accounts, CLOSE_INTENT, null, transferId), operation);
+    }
+
+    private long append(byte[] payload, JournalOperation operation) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        synchronized (appendLock) {
+            try {
+                if (current.buffer.remaining() < HEADER_SIZE + payload.length) {
+                    roll(payload.length);
+                }
+                MappedByteBuffer buffer = current.buffer;
+                buffer.putInt(payload.length);
+                buffer.putInt((int) crc.getValue());
+                buffer.put(payload);
+                long position = current.base + buffer.position();
+                if (null != appendListener) {
+                    //先回调再发布位置，读到writtenPosition的线程能看到它之前的日志的回调结果
+                    appendListener.visit(position, operation);
+                }
+                writtenPosition = position;
+                return position;
+            } catch (IOException e) {
+                throw new RuntimeException("journal append failed", e);
+            }
+        }
+    }
+
+    /**
+     * 保证position之前的日志都已刷盘（组提交）
+     */
+    public void sync(long position) {
+        if (durablePosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            //排队期间前一个线程可能已经把我们的日志一起刷下去了
+            if (durablePosition >= position) {
+                return;
+            }
+            Segment segment;
+            long target;
+            synchronized (appendLock) {
+                segment = current;
+                target = writtenPosition;
+            }
+            //切段时旧段已经刷过盘，这里只需要刷当前段
+            segment.buffer.force();
+            syncCount.incrementAndGet();
+            durablePosition = target;
+        }
+    }
+
+    /**
+     * 按顺序重放fromPosition之后的日志
+     *
+     * @param fromPosition 起始位置（含）
+     * @param consumer     逐个接收日志里的账户状态
+     * @param operations   逐条接收日志里的操作，按日志顺序
+     * @param pending      重放结束后仍未关闭的待入账意图，key是transferId
+     * @return 重放到的位置
+     */
+    public long replay(long fromPosition, Consumer<Account> consumer, OperationVisitor operations,
+                       Map<Long, PendingCredit> pending) throws IOException {
+        List<Long> bases = segmentBases();
+        long end = fromPosition;
+        for (int i = 0; i < bases.size(); i++) {
+            long base = bases.get(i);
+            long next = i + 1 < bases.size() ? bases.get(i + 1) : Long.MAX_VALUE;
+            if (next <= fromPosition) {
+                continue;
+            }
+            Segment segment = base == current.base ? current : openSegment(base);
+            int offset = (int) Math.max(0, fromPosition - base);
+            end = base + scan(segment, offset, consumer, operations, pending);
+        }
+        return end;
+    }
+
+    /**
+     * 按顺序读取fromPosition之后已刷盘的日志，事件发件箱用；只能单线程调用
+     *
+     * @param fromPosition 起始位置，上次read的返回值
+     * @param limit        最多读取的日志条数
+     * @param visitor      逐条接收日志
+     * @return 读到的位置，下次从这里继续
+     */
+    public long read(long fromPosition, int limit, RecordVisitor visitor) throws IOException {
+        long durable = durablePosition;
+        Segment writing;
+        synchronized (appendLock) {
+            writing = current;
+        }
+        List<Long> bases = segmentBases();
+        long position = fromPosition;
+        int count = 0;
+        for (int i = 0; i < bases.size() && count < limit && position < durable; i++) {
+            long base = bases.get(i);
+            long next = i + 1 < bases.size() ? bases.get(i + 1) : Long.MAX_VALUE;
+            if (next <= position) {
+                continue;
+            }
+            //上一段读到了段尾的废弃空间，或者前面的段已经回收
+            position = Math.max(position, base);
+            Segment segment = base == writing.base ? writing : readSegmentOf(base);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position((int) (position - base));
+            while (count < limit && base + buffer.position() < durable && buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("journal corrupted at " + position);
+                }
+                position = base + buffer.position();
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                String type = AccountCodec.readString(record);
+                Account[] accounts = new Account[record.get()];
+                for (int leg = 0; leg < accounts.length; leg++) {
+                    accounts[leg] = AccountCodec.read(record);
+                }
+                visitor.visit(position, type, accounts);
+                count++;
+            }
+        }
+        return position;
+    }
+
+    private Segment readSegmentOf(long base) throws IOException {
+        if (null == readSegment || readSegment.base != base) {
+            readSegment = openSegment(base);
+        }
+        return readSegment;
+    }
+
+    /**
+     * 删除完全位于position之前的段，快照之后用来回收空间
+     */
+    public void truncateBefore(long position) throws IOException {
+        List<Long> bases = segmentBases();
+        for (int i = 0; i + 1 < bases.size(); i++) {
+            if (bases.get(i + 1) <= position && bases.get(i) != current.base) {
+                File file = segmentFile(bases.get(i));
+                if (!file.delete()) {
+                    throw new IOException("can not delete journal segment: " + file);
+                }
+            }
+        }
+    }
+
+    public long getWrittenPosition() {
+        return writtenPosition;
+    }
+
+    /**
+     * @return fsync次数，组提交的效果 = 写入次数 / fsync次数
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            current.buffer.force();
+        }
+    }
+
+    private void roll(int payloadLength) throws IOException {
+        if (HEADER_SIZE + payloadLength > segmentSize) {
+            throw new IOException("journal entry too large: " + payloadLength);
+        }
+        MappedByteBuffer buffer = current.buffer;
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(0);
+        }
+        buffer.force();
+        current = openSegment(current.base + buffer.capacity());
+    }
+
+    /**
+     * 从offset开始扫描一段里的有效日志，遇到段尾、废弃标记或校验失败（写了一半）就停下
+     *
+     * @return 有效日志结束处的段内偏移
+     */
+    private int scan(Segment segment, int offset, Consumer<Account> consumer, OperationVisitor operations,
+                     Map<Long, PendingCredit> pending) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                return start;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            if (null != consumer) {
+                decode(payload, segment.base + buffer.position(), consumer, operations, pending);
+            }
+        }
+        return buffer.position();
+    }
+
+    private static byte[] encode(JournalOperation operation, Account[] accounts, byte intent, PendingCredit credit, long transferId) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * accounts.length + 96 * operation.size() + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            AccountCodec.writeString(out, operation.getOperatorType());
+            out.writeByte(accounts.length);
+            for (Account account : accounts) {
+                AccountCodec.write(out, account);
+            }
+            out.writeByte(intent);
+            if (NO_INTENT != intent) {
+                out.writeLong(transferId);
+            }
+            if (OPEN_INTENT == intent) {
+                AccountCodec.writeString(out, credit.getUserId());
+                out.writeLong(credit.getCent());
+                AccountCodec.writeString(out, credit.getCurrency());
+            }
+            IdempotencyKey request = operation.getRequest();
+            int flags = (0 == operation.size() ? 0 : RECORDS) | (OPEN_INTENT == intent ? TRANSFER_DETAIL : 0)
+                    | (null == request ? 0 : REQUEST);
+            out.writeByte(flags);
+            if (0 != (flags & TRANSFER_DETAIL)) {
+                AccountCodec.writeString(out, credit.getFrom());
+                out.writeLong(credit.getDebitCent());
+                AccountCodec.writeString(out, credit.getDebitCurrency());
+                out.writeLong(credit.getTime());
+                //入账成功才算请求完成，先跟着意图走
+                out.writeBoolean(null != credit.getRequest());
+                if (null != credit.getRequest()) {
+                    writeRequest(out, credit.getRequest());
+                }
+            }
+            if (0 != (flags & RECORDS)) {
+                out.writeByte(operation.size());
+                for (int i = 0; i < operation.size(); i++) {
+                    AccountCodec.writeString(out, operation.ownerAt(i));
+                    //同币种转账两边是同一条记录
+                    boolean shared = i > 0 && operation.recordAt(i) == operation.recordAt(i - 1);
+                    out.writeBoolean(shared);
+                    if (!shared) {
+                        writeRecord(out, operation.recordAt(i));
+                    }
+                }
+            }
+            if (0 != (flags & REQUEST)) {
+                writeRequest(out, request);
+                Long result = operation.getResult();
+                out.writeBoolean(null != result);
+                out.writeLong(null == result ? 0 : result);
+                out.writeLong(operation.getTime());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param position 这条日志结束的位置
+     */
+    private static void decode(byte[] payload, long position, Consumer<Account> consumer, OperationVisitor operations,
+                               Map<Long, PendingCredit> pending) {
+        //crc已经校验过，内容一定是完整的
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        String type = AccountCodec.readString(buffer);
+        int legs = buffer.get();
+        for (int i = 0; i < legs; i++) {
+            consumer.accept(AccountCodec.read(buffer));
+        }
+        byte intent = buffer.get();
+        long transferId = NO_INTENT == intent ? 0 : buffer.getLong();
+        PendingCredit credit = null;
+        if (OPEN_INTENT == intent) {
+            credit = new PendingCredit(transferId, AccountCodec.readString(buffer), buffer.getLong(), AccountCodec.readString(buffer),
+                    null, 0, null, 0, null);
+        }
+        //旧日志到这里就结束了
+        int flags = buffer.hasRemaining() ? buffer.get() : 0;
+        if (0 != (flags & TRANSFER_DETAIL)) {
+            credit.setFrom(AccountCodec.readString(buffer));
+            credit.setDebitCent(buffer.getLong());
+            credit.setDebitCurrency(AccountCodec.readString(buffer));
+            credit.setTime(buffer.getLong());
+            credit.setRequest(0 != buffer.get() ? readRequest(buffer) : null);
+        }
+        if (OPEN_INTENT == intent) {
+            pending.put(transferId, credit);
+        } else if (CLOSE_INTENT == intent) {
+            pending.remove(transferId);
+        }
+        int count = 0 != (flags & RECORDS) ? buffer.get() : 0;
+        String[] owners = new String[count];
+        TransactionRecord[] records = new TransactionRecord[count];
+        for (int i = 0; i < count; i++) {
+            owners[i] = AccountCodec.readString(buffer);
+            records[i] = 0 != buffer.get() ? records[i - 1] : readRecord(buffer);
+        }
+        JournalOperation operation;
+        if (0 != (flags & REQUEST)) {
+            IdempotencyKey request = readRequest(buffer);
+            boolean hasResult = 0 != buffer.get();
+            long result = buffer.getLong();
+            operation = new JournalOperation(type, owners, records, buffer.getLong()).request(request, hasResult ? result : null);
+        } else {
+            operation = new JournalOperation(type, owners, records, 0);
+        }
+        operations.visit(position, operation);
+    }
+
+    private static void writeRequest(DataOutputStream out, IdempotencyKey request) throws IOException {
+        out.writeLong(request.getHigh());
+        out.writeLong(request.getLow());
+        out.writeLong(request.getFingerprint());
+    }
+
+    private static IdempotencyKey readRequest(ByteBuffer buffer) {
+        return new IdempotencyKey(buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * 交易记录：[类型][byte 有金额][long 金额][币种][操作人][来源][去向][指定的备注][long 创建时间][long 更新时间]，时间0表示空
+     */
+    private static void writeRecord(DataOutputStream out, TransactionRecord record) throws IOException {
+        AccountCodec.writeString(out, record.getOperatorType());
+        Long amount = record.getOperatorAmount();
+        out.writeBoolean(null != amount);
+        out.writeLong(null == amount ? 0 : amount);
+        AccountCodec.writeString(out, record.getOperatorCurrency());
+        AccountCodec.writeString(out, record.getOperatorUserId());
+        AccountCodec.writeString(out, record.getFrom());
+        AccountCodec.writeString(out, record.getTo());
+        AccountCodec.writeString(out, record.customRemark());
+        out.writeLong(null == record.getGmt_create() ? 0 : record.getGmt_create().getTime());
+        out.writeLong(null == record.getGmt_modify() ? 0 : record.getGmt_modify().getTime());
+    }
+
+    private static TransactionRecord readRecord(ByteBuffer buffer) {
+        String type = AccountCodec.readString(buffer);
+        boolean hasAmount = 0 != buffer.get();
+        long amount = buffer.getLong();
+        String currency = AccountCodec.readString(buffer);
+        String operator = AccountCodec.readString(buffer);
+        String from = AccountCodec.readString(buffer);
+        String to = AccountCodec.readString(buffer);
+        String remark = AccountCodec.readString(buffer);
+        long create = buffer.getLong();
+        long modify = buffer.getLong();
+        Date created = 0 == create ? null : new Date(create);
+        return TransactionRecord.builder()
+                .operatorType(type)
+                .operatorAmount(hasAmount ? amount : null)
+                .operatorCurrency(currency)
+                .operatorUserId(operator)
+                .from(from)
+                .to(to)
+                .remark(remark)
+                .gmt_create(created)
+                //和写入时一样，两个时间相同时是同一个对象
+                .gmt_modify(create == modify ? created : 0 == modify ? null : new Date(modify))
+                .build();
+    }
+
+    private List<Long> segmentBases() {
+        List<Long> bases = new ArrayList<>();
+        String[] names = dir.list();
+        if (null != names) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    bases.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        bases.sort(null);
+        return bases;
+    }
+
+    private File segmentFile(long base) {
+        return new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, base, SEGMENT_SUFFIX));
+    }
+
+    private Segment openSegment(long base) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(base), "rw")) {
+            if (file.length() < segmentSize) {
+                file.setLength(segmentSize);
+            }
+            //映射建立后即使关闭文件也一直有效；已有的段按实际长度映射，段大小配置变化不影响旧段
+            return new Segment(base, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length()));
+        }
+    }
+
+    /**
+     * 逐条接收日志里的操作
+     */
+    public interface OperationVisitor {
+
+        /**
+         * @param position  这条日志结束的位置
+         * @param operation 操作和它产生的交易记录
+         */
+        void visit(long position, JournalOperation operation);
+    }
+
+    /**
+     * 逐条接收日志
+     */
+    public interface RecordVisitor {
+
+        /**
+         * @param position 这条日志结束的位置
+         * @param type     操作类型
+         * @param accounts 变更后的账户
+         */
+        void visit(long position, String type, Account[] accounts);
+    }
+
+    private static final class Segment {
+        final long base;
+        final MappedByteBuffer buffer;
+
+        Segment(long base, MappedByteBuffer buffer) {
+            this.base = base;
+            this.buffer = buffer;
+        }
+    }
+}
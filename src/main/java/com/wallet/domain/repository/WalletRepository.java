@@ -1,12 +1,34 @@
 package com.wallet.domain.repository;
 
 
+import com.wallet.domain.metrics.OperationMetrics;
+import com.wallet.domain.metrics.WalletMetrics;
 import com.wallet.domain.model.Account;
+import com.wallet.domain.model.Money;
+import com.wallet.domain.model.TransactionPage;
 import com.wallet.domain.model.TransactionRecord;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Currency;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * 仓储层（用内存变量代替持久化了，为了简便不设计领域驱动依赖接口的依赖倒置了）
@@ -14,30 +36,416 @@ import java.util.concurrent.ConcurrentHashMap;
 @Repository
 public class WalletRepository {
 
-    private Map<String, Account> accountMap = new ConcurrentHashMap<>();
-    private Map<String, List<TransactionRecord>> recordMap = new HashMap<>();
+    private static final Log LOG = LogFactory.getLog(WalletRepository.class);
 
+    /**
+     * 每个用户在内存里最多保留的记录块数，超过的滚到归档层
+     */
+    private static final int MAX_HOT_CHUNKS = 16;
+    /**
+     * 恢复时补入账的跨分片转账的操作类型，和WalletService.TRANSFER一致
+     */
+    private static final String TRANSFER = "TRANSFER";
 
-    public void update(String userId, Account account) {
-        //当userId对应的账户version比当前acct大，说明已经被其他线程更新，抛异常，避免ABA问题出现
-        if (null != accountMap.get(userId) && accountMap.get(userId).getVersion() >= account.getVersion()) {
-            throw new RuntimeException("account balance maybe changed, please try again");
+    /**
+     * 账户表实现，map：ConcurrentHashMap；slab：原始类型开放寻址表，适合海量钱包
+     */
+    @Value("${wallet.account.table:map}")
+    private String accountTableType;
+    /**
+     * slab账户表的容量
+     */
+    @Value("${wallet.account.capacity:1048576}")
+    private int accountCapacity;
+    /**
+     * 账户表前的读缓存能放的账户数，0不开启；账户表是内存实现时开启没有收益，留给持久化存储
+     */
+    @Value("${wallet.account.cacheSize:0}")
+    private int accountCacheSize;
+
+    /**
+     * 预写日志目录，为空时不持久化（纯内存）
+     */
+    @Value("${wallet.journal.dir:}")
+    private String journalDir;
+    @Value("${wallet.journal.segmentSize:67108864}")
+    private int journalSegmentSize;
+    /**
+     * 快照间隔，开启持久化时生效，快照写在日志目录下；交易记录只在日志里，日志段不随快照回收
+     */
+    @Value("${wallet.snapshot.intervalSeconds:300}")
+    private long snapshotIntervalSeconds;
+    /**
+     * 交易记录归档目录，为空时开启持久化用日志目录下的history，否则用临时目录（关闭时删除）；
+     * 重启时恢复不晚于日志末尾的归档块，其余记录从日志重放
+     */
+    @Value("${wallet.history.archiveDir:}")
+    private String historyArchiveDir;
+
+    @Autowired
+    private WalletMetrics metrics;
+
+    private AccountTable accountTable;
+    private WalletJournal journal;
+    private final MutationEpoch mutationEpoch = new MutationEpoch();
+    private ScheduledExecutorService snapshotExecutor;
+    private long lastSnapshotPosition = -1;
+    private FileHistoryArchive historyArchive;
+    /**
+     * 未开启持久化时归档用的临时目录，关闭时删除
+     */
+    private File historyTempDir;
+    private HistoryStore historyStore;
+    /**
+     * 事件发件箱，有发布者时才打开
+     */
+    private volatile EventOutbox outbox;
+    /**
+     * 只对会碰到IO或者拷贝的调用计时，账户表的读写本身是纳秒级，计时比调用还贵
+     */
+    private OperationMetrics syncMetrics;
+    private OperationMetrics recordMetrics;
+
+
+    @PostConstruct
+    private void init() throws IOException {
+        syncMetrics = metrics.call("syncJournal");
+        recordMetrics = metrics.call("updateRecord");
+        accountTable = "slab".equals(accountTableType) ? new SlabAccountTable(accountCapacity) : new MapAccountTable();
+        if (accountCacheSize > 0) {
+            CachedAccountTable cache = new CachedAccountTable(accountTable, accountCacheSize);
+            metrics.counter("wallet_account_cache_hits_total", cache::getHits);
+            metrics.counter("wallet_account_cache_misses_total", cache::getMisses);
+            accountTable = cache;
+        }
+        File archiveDir;
+        if (!historyArchiveDir.isEmpty()) {
+            archiveDir = new File(historyArchiveDir);
+        } else if (!journalDir.isEmpty()) {
+            archiveDir = new File(journalDir, "history");
+        } else {
+            historyTempDir = Files.createTempDirectory("wallet-history").toFile();
+            archiveDir = historyTempDir;
+        }
+        historyArchive = new FileHistoryArchive(archiveDir);
+        if (!journalDir.isEmpty()) {
+            //交易记录随日志写下，按日志顺序追加，同一用户的记录顺序和日志一致；打开日志时还没有追加，historyStore随后创建
+            journal = new WalletJournal(new File(journalDir), journalSegmentSize, this::appendRecords);
+        }
+        //归档的块最后一条记录不能晚于日志的有效末尾（归档不刷盘，崩溃前的日志可能没落盘），否则丢弃由重放补回
+        historyStore = new HistoryStore(MAX_HOT_CHUNKS, historyArchive, null == journal ? -1 : journal.getWrittenPosition());
+        if (null != journal) {
+            File dir = new File(journalDir);
+            //先加载最新快照，再从头重放日志：账户按version取大，快照之前的日志不会覆盖新状态；归档里已有的交易记录跳过，其余重建
+            lastSnapshotPosition = WalletSnapshot.loadLatest(dir, this::restore);
+            Map<Long, PendingCredit> pending = new HashMap<>();
+            journal.replay(0, this::restore, this::appendRecords, pending);
+            pending.values().forEach(this::settle);
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "wallet-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotExecutor.scheduleWithFixedDelay(this::scheduledSnapshot,
+                    snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
         }
-        accountMap.put(userId, account);
     }
 
+    @PreDestroy
+    private void destroy() throws IOException {
+        if (null != journal) {
+            snapshotExecutor.shutdownNow();
+            journal.close();
+        }
+        historyArchive.close();
+        if (null != historyTempDir) {
+            File[] files = historyTempDir.listFiles();
+            for (File file : null == files ? new File[0] : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+            Files.deleteIfExists(historyTempDir.toPath());
+        }
+    }
+
+
+    /**
+     * 标记一次账户变更开始，从变更账户到写完日志都要包在begin/end之间，快照据此判断变更是否已落日志
+     *
+     * @return 凭证，传给endMutation
+     */
+    public int beginMutation() {
+        return mutationEpoch.enter();
+    }
+
+    public void endMutation(int ticket) {
+        mutationEpoch.exit(ticket);
+    }
+
+    /**
+     * 等待此刻之前开始的变更全部结束（账户、日志和交易记录都已写完），不阻塞之后开始的变更；和快照共用纪元，互斥执行
+     */
+    public synchronized void awaitMutations() throws InterruptedException {
+        mutationEpoch.advance();
+    }
+
+
+    /**
+     * 写一次账户快照，写入期间不阻塞账户变更；交易记录只在日志里，日志段不回收
+     */
+    public synchronized void snapshot() throws IOException, InterruptedException {
+        if (null == journal) {
+            return;
+        }
+        long position = journal.getWrittenPosition();
+        if (position == lastSnapshotPosition) {
+            return;
+        }
+        WalletSnapshot.write(new File(journalDir), position, accountTable, mutationEpoch);
+        lastSnapshotPosition = position;
+    }
+
+    private void scheduledSnapshot() {
+        try {
+            snapshot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            //快照失败不影响正确性，只是下次启动要多重放一些日志，下个周期再试
+            LOG.warn("wallet snapshot failed", e);
+        }
+    }
+
+
+    /**
+     * 打开余额变更事件的发件箱，只由事件发布者在启动时调用一次
+     *
+     * @param capacity 纯内存模式下最多积压的事件数
+     */
+    public synchronized EventOutbox openOutbox(int capacity) throws IOException {
+        if (null == outbox) {
+            outbox = null == journal ? new EventOutbox(capacity) : new EventOutbox(journal, new File(journalDir));
+        }
+        return outbox;
+    }
+
+    /**
+     * 纯内存模式下没有日志，变更随日志调用放进发件箱
+     */
+    private void offerEvent(String operatorType, Account[] accounts) {
+        EventOutbox events = outbox;
+        if (null != events) {
+            events.offer(operatorType, accounts);
+        }
+    }
+
+
+    /**
+     * 把账户变更和它产生的交易记录写入预写日志并等待刷盘，未开启持久化时只写交易记录
+     * 并发调用共享同一次fsync
+     *
+     * @param operation 操作和它产生的交易记录
+     * @param accounts  变更后的账户
+     */
+    public void journal(JournalOperation operation, Account... accounts) {
+        syncJournal(appendJournal(operation, accounts));
+    }
+
+    /**
+     * 只写入预写日志不等待刷盘，批量变更时最后统一syncJournal；交易记录在写日志时一起追加
+     *
+     * @return 日志结束的位置，未开启持久化返回-1
+     */
+    public long appendJournal(JournalOperation operation, Account... accounts) {
+        if (null == journal) {
+            appendRecords(-1, operation);
+            offerEvent(operation.getOperatorType(), accounts);
+            return -1;
+        }
+        return journal.append(operation, accounts);
+    }
+
+    /**
+     * 写入跨分片转账的扣款日志（不等待刷盘），带上待入账意图；交易记录在入账时写
+     *
+     * @return 日志结束的位置，未开启持久化返回-1
+     */
+    public long appendTransferOut(JournalOperation operation, PendingCredit credit, Account account) {
+        if (null == journal) {
+            appendRecords(-1, operation);
+            offerEvent(operation.getOperatorType(), new Account[]{account});
+            return -1;
+        }
+        return journal.appendOpen(operation, credit, account);
+    }
+
+    /**
+     * 写入跨分片转账的入账日志（不等待刷盘），关闭待入账意图
+     *
+     * @return 日志结束的位置，未开启持久化返回-1
+     */
+    public long appendTransferIn(JournalOperation operation, long transferId, Account account) {
+        if (null == journal) {
+            appendRecords(-1, operation);
+            offerEvent(operation.getOperatorType(), new Account[]{account});
+            return -1;
+        }
+        return journal.appendClose(operation, transferId, account);
+    }
+
+    /**
+     * 等待position之前的日志刷盘
+     */
+    public void syncJournal(long position) {
+        if (null != journal && position >= 0) {
+            long start = metrics.start();
+            journal.sync(position);
+            syncMetrics.latency(start);
+        }
+    }
+
+
+    /**
+     * CAS更新账户，期间被其他线程更新过（version变化）则返回false，避免ABA问题出现
+     *
+     * @param userId userId
+     * @param expect 更新前的账户
+     * @param update 更新后的账户
+     * @return 是否更新成功
+     */
+    public boolean compareAndSet(String userId, Account expect, Account update) {
+        return accountTable.compareAndSet(userId, expect, update);
+    }
+
+    /**
+     * 直接覆盖账户，不做version比较，只允许该账户唯一的写者（单写者分片）调用
+     */
+    public void store(String userId, Account account) {
+        accountTable.put(userId, account);
+    }
+
+    /**
+     * @param userId userId
+     * @return 账户当前快照，不存在时返回余额为0、version为0的空账户
+     */
     public Account query(String userId) {
-        return Optional.ofNullable(accountMap.get(userId)).orElse(Account.builder().build());
+        Account account = accountTable.get(userId);
+        return null == account ? emptyAccount(userId) : account;
+    }
+
+
+    /**
+     * 遍历全部账户，只在启动和后台任务里用
+     */
+    public void forEachAccount(Consumer<Account> consumer) {
+        accountTable.forEach(consumer);
+    }
+
+
+    /**
+     * 用日志里的账户状态恢复账户，version不比当前新的忽略
+     */
+    private void restore(Account account) {
+        for (; ; ) {
+            Account current = query(account.getUserId());
+            if (current.getVersion() >= account.getVersion()
+                    || accountTable.compareAndSet(account.getUserId(), current, account)) {
+                return;
+            }
+        }
     }
 
 
+    /**
+     * 恢复时补上崩溃前没来得及入账的跨分片转账，并写日志关闭意图，两边的交易记录随这条日志补上
+     */
+    private void settle(PendingCredit credit) {
+        Money creditMoney = new Money(credit.getCent(), Currency.getInstance(credit.getCurrency()));
+        //旧日志里的意图没有转账明细，只补余额
+        JournalOperation operation = null == credit.getFrom() ? JournalOperation.of(TRANSFER)
+                : JournalOperation.transfer(TRANSFER, credit.getFrom(), credit.getUserId(),
+                new Money(credit.getDebitCent(), Currency.getInstance(credit.getDebitCurrency())), creditMoney, new Date(credit.getTime()))
+                .request(credit.getRequest(), null);
+        for (; ; ) {
+            Account origin = query(credit.getUserId());
+            Date now = new Date();
+            Account credited = Account.next(origin, credit.getCurrency(),
+                    Math.addExact(origin.balanceOf(credit.getCurrency()), credit.getCent()), now);
+            if (accountTable.compareAndSet(credit.getUserId(), origin, credited)) {
+                journal.sync(journal.appendClose(operation, credit.getTransferId(), credited));
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * 从头重放日志里的操作（不恢复账户），重启后重建幂等去重表用；未开启持久化时什么都不做
+     */
+    public void replayOperations(WalletJournal.OperationVisitor visitor) throws IOException {
+        if (null != journal) {
+            journal.replay(0, account -> {
+            }, visitor, new HashMap<>());
+        }
+    }
+
+
+    private Account emptyAccount(String userId) {
+        return Account.builder().userId(userId).amount(new AtomicLong()).version(0L).build();
+    }
+
 
-    public void updateRecord(String userId, TransactionRecord record) {
-        List<TransactionRecord> origin = Optional.ofNullable(recordMap.get(userId)).orElse(new ArrayList<>());
-        origin.add(record);
+
+    /**
+     * 追加一次操作产生的交易记录：写日志时在日志的追加锁内调用，重放时按日志顺序调用
+     *
+     * @param position 日志结束的位置，未开启持久化时为-1
+     */
+    private void appendRecords(long position, JournalOperation operation) {
+        if (0 == operation.size()) {
+            return;
+        }
+        long start = metrics.start();
+        operation.forEachRecord((userId, record) -> historyStore.append(userId, record, position));
+        recordMetrics.latency(start);
     }
 
+    /**
+     * @param userId userId
+     * @return 交易记录的只读快照，没有记录返回空列表
+     */
     public List<TransactionRecord> queryRecord(String userId) {
-        return recordMap.get(userId);
+        return historyStore.snapshot(userId);
+    }
+
+    /**
+     * 按追加顺序遍历某个时间段的交易记录，参数见HistoryStore.forEach
+     *
+     * @return 遍历的记录数
+     */
+    public long forEachRecord(String userId, long fromMillis, long toMillis, Consumer<TransactionRecord> consumer) {
+        return historyStore.forEach(userId, fromMillis, toMillis, consumer);
+    }
+
+    /**
+     * 增量遍历交易记录，参数见HistoryStore.forEachFrom
+     *
+     * @return 遍历结束的位置
+     */
+    public long forEachRecordFrom(String userId, long fromPosition, Consumer<TransactionRecord> consumer) {
+        return historyStore.forEachFrom(userId, fromPosition, consumer);
+    }
+
+    /**
+     * @return 有交易记录的userId，弱一致的只读视图
+     */
+    public Set<String> recordUserIds() {
+        return historyStore.userIds();
+    }
+
+    /**
+     * 按时间倒序分页查询交易记录，参数见HistoryStore.page
+     */
+    public TransactionPage queryRecordPage(String userId, long fromMillis, long toMillis, String operatorType, long before, int limit) {
+        return historyStore.page(userId, fromMillis, toMillis, operatorType, before, limit);
     }
 }
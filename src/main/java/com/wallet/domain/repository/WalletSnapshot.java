@@ -0,0 +1,165 @@
+package com.wallet.domain.repository;
+
+import com.wallet.domain.model.Account;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 账户表快照，紧凑二进制格式
+ * 文件名里的位置是快照开始时预写日志已写入的位置，恢复时加载快照后只需重放这个位置之后的日志
+ * <p>
+ * 格式：[int MAGIC][long 日志位置]{[byte 1][账户]...}[byte 0][int crc32]，账户编码见AccountCodec
+ * <p>
+ * 遍历账户表不阻塞写入，每个账户是不可变的快照（map）或一致读出的视图（slab），相当于逐账户的写时复制；
+ * 遍历结束后推进变更纪元，等遍历期间所有进行中的变更都写完日志才提交快照，
+ * 保证快照里的每个账户状态都已经落在日志里（例如不会只包含转账的一条腿）
+ */
+final class WalletSnapshot {
+
+    private static final int MAGIC = 0x57534E50;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * 保留的快照个数，最新的快照损坏时还能退回上一个
+     */
+    private static final int RETAINED = 2;
+
+    private WalletSnapshot() {
+    }
+
+    /**
+     * 写快照，先写临时文件刷盘后再改名，写一半崩溃不会留下半个快照
+     *
+     * @param dir      快照目录
+     * @param position 快照对应的日志位置，必须在遍历开始前取得
+     * @param table    账户表
+     * @param epoch    变更纪元
+     * @return 快照文件
+     */
+    static File write(File dir, long position, AccountTable table, MutationEpoch epoch) throws IOException, InterruptedException {
+        File temp = new File(dir, PREFIX + position + TEMP_SUFFIX);
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(position);
+            table.forEach(account -> {
+                try {
+                    out.writeByte(1);
+                    AccountCodec.write(out, account);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.writeByte(0);
+            out.flush();
+            //crc本身不参与校验
+            new DataOutputStream(file).writeInt((int) crc.getValue());
+            file.getFD().sync();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        epoch.advance();
+        File target = snapshotFile(dir, position);
+        if (!temp.renameTo(target)) {
+            throw new IOException("can not rename snapshot: " + temp);
+        }
+        purge(dir);
+        return target;
+    }
+
+    /**
+     * 加载最新的有效快照，内存映射读取
+     *
+     * @param dir      快照目录
+     * @param consumer 逐个接收账户
+     * @return 快照对应的日志位置，没有快照返回0
+     */
+    static long loadLatest(File dir, Consumer<Account> consumer) throws IOException {
+        List<Long> positions = positions(dir);
+        for (int i = positions.size() - 1; i >= 0; i--) {
+            if (read(snapshotFile(dir, positions.get(i)), consumer)) {
+                return positions.get(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return 最早保留的快照对应的日志位置，早于它的日志段可以删除；没有快照返回0
+     */
+    static long oldestRetained(File dir) {
+        List<Long> positions = positions(dir);
+        return positions.isEmpty() ? 0 : positions.get(0);
+    }
+
+    /**
+     * 先校验整个文件再逐个交给consumer，损坏的快照一个账户也不会交出去
+     *
+     * @return 快照是否有效
+     */
+    private static boolean read(File file, Consumer<Account> consumer) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length < 17 || length > Integer.MAX_VALUE) {
+                return false;
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[1 << 16];
+            int body = (int) length - 4;
+            for (int read = 0; read < body; ) {
+                int n = Math.min(chunk.length, body - read);
+                buffer.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+                read += n;
+            }
+            if ((int) crc.getValue() != buffer.getInt()) {
+                return false;
+            }
+            buffer.position(0);
+            if (buffer.getInt() != MAGIC) {
+                return false;
+            }
+            buffer.getLong();
+            while (0 != buffer.get()) {
+                consumer.accept(AccountCodec.read(buffer));
+            }
+            return true;
+        }
+    }
+
+    private static void purge(File dir) {
+        List<Long> positions = positions(dir);
+        for (int i = 0; i + RETAINED < positions.size(); i++) {
+            //删不掉下次再删，不影响正确性
+            snapshotFile(dir, positions.get(i)).delete();
+        }
+    }
+
+    private static List<Long> positions(File dir) {
+        List<Long> positions = new ArrayList<>();
+        String[] names = dir.list();
+        if (null != names) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    positions.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                }
+            }
+        }
+        positions.sort(null);
+        return positions;
+    }
+
+    private static File snapshotFile(File dir, long position) {
+        return new File(dir, PREFIX + position + SUFFIX);
+    }
+}
@@ -0,0 +1,112 @@
+package com.wallet.domain.service;
+
+import com.wallet.domain.metrics.WalletMetrics;
+import com.wallet.domain.model.Account;
+import com.wallet.domain.repository.WalletRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+/**
+ * 余额引擎，单账户余额变更的唯一入口
+ * 每次变更都基于账户当前快照计算出新的Account，再通过仓储的CAS发布，已发布的Account不再被修改
+ * 乐观自旋有上限，超过后退化为账户所在分段的互斥，因此不会仅因为并发竞争而失败
+ * 账户通过TransferFence读取，不会基于进行中的转账只写了一半的状态计算
+ */
+@Component
+public class BalanceEngine {
+
+    /**
+     * 乐观自旋次数上限
+     */
+    private static final int MAX_SPIN = 16;
+
+    /**
+     * 退化时使用的分段锁数量
+     */
+    private static final int LOCK_STRIPES = 1024;
+
+    private final StripedLock locks = new StripedLock(LOCK_STRIPES);
+
+    @Autowired
+    private WalletRepository repository;
+    @Autowired
+    private WalletMetrics metrics;
+    @Autowired
+    private TransferFence fence;
+
+    /**
+     * 给账户的currency币种加上cent（负数即扣减），余额不足时抛异常，其他币种的余额不变
+     *
+     * @param userId   userId
+     * @param cent     变更金额（分）
+     * @param currency 币种
+     * @return 变更后的Account
+     */
+    public Account apply(String userId, long cent, String currency) {
+        return apply(userId, cent, currency, new Date());
+    }
+
+    /**
+     * @param now 变更时间，调用方和交易记录共用一个
+     */
+    public Account apply(String userId, long cent, String currency, Date now) {
+        for (int i = 0; i < MAX_SPIN; i++) {
+            Account updated = tryApply(userId, fence.read(userId), cent, currency, now);
+            if (null != updated) {
+                return updated;
+            }
+            metrics.casConflict();
+        }
+        metrics.lockFallback(userId);
+        //热点账户上的竞争者在分段锁上排队，只和仍在自旋的线程竞争，CAS失败意味着别人已经成功，整体一定有进展
+        synchronized (locks.get(userId)) {
+            for (; ; ) {
+                Account updated = tryApply(userId, fence.read(userId), cent, currency, now);
+                if (null != updated) {
+                    return updated;
+                }
+                metrics.casConflict();
+            }
+        }
+    }
+
+    /**
+     * 转账在栅栏里调用，直接读账户；栅栏挡住了新来的变更，只需要自旋
+     */
+    Account applyInFence(String userId, long cent, String currency, Date now) {
+        for (; ; ) {
+            Account updated = tryApply(userId, repository.query(userId), cent, currency, now);
+            if (null != updated) {
+                return updated;
+            }
+            metrics.casConflict();
+        }
+    }
+
+    /**
+     * @param origin 变更前的账户
+     * @return CAS成功后的Account，CAS失败返回null
+     */
+    private Account tryApply(String userId, Account origin, long cent, String currency, Date now) {
+        Account updated = Account.next(origin, currency, balanceAfter(origin, cent, currency), now);
+        return repository.compareAndSet(userId, origin, updated) ? updated : null;
+    }
+
+    /**
+     * @return currency币种变更后的余额，余额不足或溢出时抛异常
+     */
+    static long balanceAfter(Account origin, long cent, String currency) {
+        long balance;
+        try {
+            balance = Math.addExact(origin.balanceOf(currency), cent);
+        } catch (ArithmeticException e) {
+            throw new RuntimeException("account balance overflow");
+        }
+        if (balance < 0) {
+            throw new RuntimeException("account balance not enough");
+        }
+        return balance;
+    }
+}
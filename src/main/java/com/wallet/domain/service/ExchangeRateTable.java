@@ -0,0 +1,169 @@
+package com.wallet.domain.service;
+
+import com.wallet.domain.model.Currencies;
+import com.wallet.domain.model.Money;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 汇率表，跨币种转账按它换算
+ * <p>
+ * 汇率整体放在一个不可变快照里，按币种序号展开成n*n的定点数组（已经折算了各币种的小数位，直接是分对分的比例），
+ * 换算只是一次数组下标和一次乘法，不查远程报价；更新时构造新快照整体替换，读者看到的永远是同一批报价
+ * <p>
+ * 初始报价取wallet.fx.rates，格式"USD=0.1389,EUR=0.1275"，表示1个wallet.fx.base可以换多少该币种；
+ * 报价源定时拉取后调用update替换
+ */
+@Component
+public class ExchangeRateTable {
+
+    /**
+     * 定点汇率的小数位
+     */
+    private static final int SCALE_DIGITS = 9;
+    private static final long SCALE = 1_000_000_000L;
+
+    @Value("${wallet.fx.base:" + Money.DEFAULT_CURRENCY_CODE + "}")
+    private String base;
+    @Value("${wallet.fx.rates:}")
+    private String rates;
+
+    private volatile Snapshot snapshot = new Snapshot(new long[0], 0);
+
+    @PostConstruct
+    private void init() {
+        Map<String, BigDecimal> quotes = new HashMap<>();
+        for (String quote : rates.split(",")) {
+            if (!quote.trim().isEmpty()) {
+                String[] pair = quote.split("=");
+                quotes.put(pair[0].trim(), new BigDecimal(pair[1].trim()));
+            }
+        }
+        if (!quotes.isEmpty()) {
+            update(base, quotes);
+        }
+    }
+
+    /**
+     * 替换全部汇率
+     *
+     * @param baseCurrency 基准币种
+     * @param quotes       1个基准币种可以换多少该币种，不必包含基准币种自己
+     */
+    public void update(String baseCurrency, Map<String, BigDecimal> quotes) {
+        Map<Integer, BigDecimal> perBase = new HashMap<>();
+        for (Map.Entry<String, BigDecimal> quote : quotes.entrySet()) {
+            if (quote.getValue().signum() <= 0) {
+                throw new IllegalArgumentException("exchange rate must be positive: " + quote.getKey());
+            }
+            //校验币种代码，同时把小数位折算进去：1基准单位 = quote * 10^digits 分
+            Currency currency = Currency.getInstance(quote.getKey());
+            perBase.put(Currencies.ordinalOf(quote.getKey()), quote.getValue().movePointRight(fractionDigits(currency)));
+        }
+        perBase.put(Currencies.ordinalOf(baseCurrency), BigDecimal.ONE.movePointRight(fractionDigits(Currency.getInstance(baseCurrency))));
+
+        int size = 0;
+        for (int ordinal : perBase.keySet()) {
+            size = Math.max(size, ordinal + 1);
+        }
+        long[] table = new long[size * size];
+        for (Map.Entry<Integer, BigDecimal> from : perBase.entrySet()) {
+            for (Map.Entry<Integer, BigDecimal> to : perBase.entrySet()) {
+                //from的1分 = to每基准单位分数 / from每基准单位分数 个to的分
+                BigDecimal rate = to.getValue().divide(from.getValue(), SCALE_DIGITS, RoundingMode.HALF_EVEN);
+                table[from.getKey() * size + to.getKey()] = rate.movePointRight(SCALE_DIGITS).longValueExact();
+            }
+        }
+        snapshot = new Snapshot(table, size);
+    }
+
+    /**
+     * 换算金额，银行家舍入到分
+     *
+     * @param cent 金额（分）
+     * @param from 原币种
+     * @param to   目标币种
+     * @return 目标币种的金额（分），同币种原样返回
+     */
+    public long convert(long cent, String from, String to) {
+        if (from.equals(to)) {
+            return cent;
+        }
+        long rate = snapshot.rate(Currencies.ordinalOf(from), Currencies.ordinalOf(to));
+        if (0 == rate) {
+            throw new RuntimeException("exchange rate not available: " + from + "->" + to);
+        }
+        long product;
+        try {
+            product = Math.multiplyExact(cent, rate);
+        } catch (ArithmeticException e) {
+            //大额才会溢出，走慢路径
+            return BigDecimal.valueOf(cent).multiply(BigDecimal.valueOf(rate, SCALE_DIGITS))
+                    .setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+        }
+        long quotient = Math.floorDiv(product, SCALE);
+        long remainder = Math.floorMod(product, SCALE);
+        if (remainder * 2 > SCALE || (remainder * 2 == SCALE && 0 != (quotient & 1))) {
+            quotient++;
+        }
+        return quotient;
+    }
+
+    /**
+     * @param to 目标币种，为空或与money相同时原样返回
+     */
+    public Money convert(Money money, String to) {
+        if (null == to || to.equals(money.getCurrencyCode())) {
+            return money;
+        }
+        return new Money(convert(money.getCent(), money.getCurrencyCode(), to), Currency.getInstance(to));
+    }
+
+    /**
+     * 换算转账的入账金额：扣款不为0而换算后不足1分时拒绝，不能扣了钱入账为0
+     *
+     * @param to 目标币种，为空或与money相同时原样返回
+     */
+    public Money convertCredit(Money money, String to) {
+        Money credit = convert(money, to);
+        if (0 == credit.getCent() && 0 != money.getCent()) {
+            throw new IllegalArgumentException("transfer amount too small to convert: " + money.getCent() + " "
+                    + money.getCurrencyCode() + "->" + to);
+        }
+        return credit;
+    }
+
+    /**
+     * @return 1分原币种换多少分目标币种，没有报价返回null
+     */
+    public BigDecimal rate(String from, String to) {
+        long rate = snapshot.rate(Currencies.ordinalOf(from), Currencies.ordinalOf(to));
+        return 0 == rate ? null : BigDecimal.valueOf(rate, SCALE_DIGITS);
+    }
+
+    private static int fractionDigits(Currency currency) {
+        return Math.max(0, currency.getDefaultFractionDigits());
+    }
+
+    private static final class Snapshot {
+
+        final long[] rates;
+        final int size;
+
+        Snapshot(long[] rates, int size) {
+            this.rates = rates;
+            this.size = size;
+        }
+
+        long rate(int from, int to) {
+            return from < size && to < size ? rates[from * size + to] : 0;
+        }
+    }
+}
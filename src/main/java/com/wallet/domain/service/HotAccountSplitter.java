@@ -0,0 +1,477 @@
+package com.wallet.domain.service;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.BalanceChangeEvent;
+import com.wallet.domain.model.Currencies;
+import com.wallet.domain.repository.JournalOperation;
+import com.wallet.domain.repository.WalletRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 热点账户拆分，wallet.hot.enabled=true时生效（单写者分片账本模式下不拆分）
+ * <p>
+ * 入账写入频率超过阈值的账户拆成N个子账户（userId + SUB_SEPARATOR + 0..N-1），入账随机落到一个子账户上并行CAS，
+ * 读余额时主账户加上各子账户求和；子账户是普通账户，日志和快照照常记录。分隔符是控制字符，真实userId里不允许出现（见AccountValidator），
+ * 子账户id不会和真实userId冲突；对外发布的余额变更事件换成主账户（见toMainAccounts）
+ * <p>
+ * 扣款只扣主账户：主账户不够时先把子账户余额归集到主账户（一条日志记下归集涉及的全部账户），
+ * 再按主账户扣，所以扣款校验的是真实总余额；归集之后又有入账落到子账户、扣款仍不够时再归集重试。
+ * 写入频率回落后停止拆分并归集，子账户清零两个周期后移除
+ * <p>
+ * 单写者分片账本模式下不拆分：账户只能由所属分片写，启动时（分片线程开始之前）把上次留下的子账户一次归集完，之后不再检查
+ */
+@Component
+public class HotAccountSplitter {
+
+    private static final Log LOG = LogFactory.getLog(HotAccountSplitter.class);
+
+    /**
+     * 子账户id的分隔符，保留的控制字符
+     */
+    public static final String SUB_SEPARATOR = "\u001F";
+    /**
+     * 归集在日志里的操作类型
+     */
+    static final String SWEEP = "SWEEP";
+    /**
+     * 入账频率按1/16采样统计
+     */
+    private static final int SAMPLE_SHIFT = 4;
+    /**
+     * 扣款不够时最多归集重试的次数
+     */
+    private static final int MAX_SWEEP_RETRIES = 3;
+
+    @Value("${wallet.hot.enabled:false}")
+    private boolean enabled;
+    /**
+     * 每秒入账次数达到该值时拆分
+     */
+    @Value("${wallet.hot.splitWritesPerSecond:5000}")
+    private long splitWritesPerSecond;
+    /**
+     * 每秒入账次数低于该值时合并
+     */
+    @Value("${wallet.hot.mergeWritesPerSecond:500}")
+    private long mergeWritesPerSecond;
+    @Value("${wallet.hot.subAccounts:8}")
+    private int subAccounts;
+    @Value("${wallet.hot.checkIntervalMillis:1000}")
+    private long checkIntervalMillis;
+    @Value("${wallet.ledger.enabled:false}")
+    private boolean ledgerEnabled;
+
+    @Autowired
+    private WalletRepository repository;
+    @Autowired
+    private BalanceEngine balanceEngine;
+    @Autowired
+    private TransferFence fence;
+
+    /**
+     * 拆分过的账户，包括已停止拆分但子账户还没清零的
+     */
+    private final Map<String, Split> splits = new ConcurrentHashMap<>();
+    /**
+     * 拆分过的账户（包括已经合并、移除了Split的）-> 子账户个数，只增不减；子账户的行不会删除，
+     * 发布事件时按它合计，合计的version不会回退
+     */
+    private final Map<String, Integer> subCounts = new ConcurrentHashMap<>();
+    /**
+     * 本周期采样到的入账次数，每个周期整体替换，只包含最近有入账的账户
+     */
+    private volatile Map<String, LongAdder> writes = new ConcurrentHashMap<>();
+    private ScheduledExecutorService checkExecutor;
+
+    @PostConstruct
+    private void init() {
+        //重启后从账户表里找回还有余额的子账户，否则读余额会漏掉它们；清零了的也要记下个数，事件的合计version才不会回退
+        Map<String, Integer> recovered = new HashMap<>();
+        repository.forEachAccount(account -> {
+            String userId = account.getUserId();
+            int index = subIndexOf(userId);
+            if (index < 0) {
+                return;
+            }
+            subCounts.merge(mainOf(userId), index + 1, Math::max);
+            if (!account.balanceMap().isEmpty()) {
+                recovered.merge(mainOf(userId), index + 1, Math::max);
+            }
+        });
+        recovered.forEach((userId, count) -> track(new Split(userId, Math.max(count, subAccounts), false)));
+        if (ledgerEnabled) {
+            //ShardedLedger依赖本组件，这里分片线程还没开始写账户表，CAS归集不会和分片的直接覆盖交错
+            Date now = new Date();
+            splits.values().forEach(split -> sweep(split, now));
+            splits.clear();
+            enabled = false;
+            return;
+        }
+        if (!enabled && recovered.isEmpty()) {
+            return;
+        }
+        checkExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wallet-hot-account");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkExecutor.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void close() {
+        if (null != checkExecutor) {
+            checkExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return 子账户的序号；不是子账户，或者分隔符后面不是规范的序号时返回-1
+     */
+    public static int subIndexOf(String accountId) {
+        int separator = accountId.lastIndexOf(SUB_SEPARATOR);
+        int start = separator + SUB_SEPARATOR.length();
+        int digits = accountId.length() - start;
+        //子账户的序号没有前导0，也不会超过int
+        if (separator <= 0 || digits < 1 || digits > 9 || (digits > 1 && '0' == accountId.charAt(start))) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = start; i < accountId.length(); i++) {
+            char c = accountId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
+    /**
+     * @return 子账户所属的主账户userId，不是子账户时原样返回
+     */
+    public static String mainOf(String accountId) {
+        return subIndexOf(accountId) < 0 ? accountId : accountId.substring(0, accountId.lastIndexOf(SUB_SEPARATOR));
+    }
+
+    /**
+     * @return 入账实际写入的账户：没拆分时就是userId，拆分时随机一个子账户
+     */
+    public String creditTarget(String userId) {
+        if (!enabled) {
+            return userId;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (0 == (random.nextInt() & ((1 << SAMPLE_SHIFT) - 1))) {
+            Map<String, LongAdder> current = writes;
+            LongAdder counter = current.get(userId);
+            if (null == counter) {
+                counter = current.computeIfAbsent(userId, key -> new LongAdder());
+            }
+            counter.increment();
+        }
+        Split split = splits.get(userId);
+        return null != split && split.active ? split.subs[random.nextInt(split.subs.length)] : userId;
+    }
+
+    /**
+     * 从主账户扣款：拆分过的账户主账户该币种不够扣时先归集子账户；
+     * 归集和扣款不是原子的，扣款失败而合计余额够扣时说明归集之后又有入账落到了子账户上，再归集重试
+     *
+     * @param debit 扣款动作，余额不足时抛异常
+     * @return debit的结果
+     */
+    public <T> T debit(String userId, long cent, String currency, Date now, Supplier<T> debit) {
+        Split split = splits.get(userId);
+        if (null == split) {
+            return debit.get();
+        }
+        if (fence.read(userId).balanceOf(currency) < cent) {
+            sweep(split, now);
+        }
+        for (int retries = 0; ; retries++) {
+            try {
+                return debit.get();
+            } catch (RuntimeException e) {
+                if (retries >= MAX_SWEEP_RETRIES || balanceOf(userId).balanceOf(currency) < cent) {
+                    throw e;
+                }
+                sweep(split, now);
+            }
+        }
+    }
+
+    /**
+     * @return 账户余额，拆分过的账户是主账户加子账户按币种的合计（不是同一时刻的原子快照），不要拿去写日志
+     */
+    public Account balanceOf(String userId) {
+        Account main = fence.read(userId);
+        Split split = splits.get(userId);
+        if (null == split) {
+            return main;
+        }
+        long[] totals = add(new long[0], main);
+        String currency = main.getCurrency();
+        for (String sub : split.subs) {
+            Account account = fence.read(sub);
+            totals = add(totals, account);
+            if (null == currency) {
+                currency = account.getCurrency();
+            }
+        }
+        int nonZero = 0;
+        for (int ordinal = 1; ordinal < totals.length; ordinal++) {
+            if (0 != totals[ordinal]) {
+                nonZero++;
+            }
+        }
+        int viewOrdinal = Currencies.ordinalOf(currency);
+        long amount = viewOrdinal < totals.length ? totals[viewOrdinal] : 0;
+        return Account.builder()
+                .userId(userId)
+                .amount(new AtomicLong(amount))
+                .currency(currency)
+                //只有视图币种有余额时不带balances，和单币种账户一致
+                .balances(0 == nonZero || (1 == nonZero && 0 != amount) ? null : totals)
+                .version(main.getVersion())
+                .gmt_create(main.getGmt_create())
+                .gmt_modify(main.getGmt_modify())
+                .build();
+    }
+
+    /**
+     * 余额变更事件换成主账户的，发布前调用：拆分过的账户（子账户或主账户本身）的事件改成主账户userId，
+     * 余额和version是发布时主账户加全部子账户的合计（version是各账户version之和，只增不减），不是那次变更时刻的合计；
+     * 同一次变更里同一主账户同一币种只留第一条（归集一次变更涉及全部子账户）
+     *
+     * @param events 按sequence顺序，同一次变更的事件相邻
+     */
+    public void toMainAccounts(List<BalanceChangeEvent> events) {
+        if (subCounts.isEmpty()) {
+            return;
+        }
+        int kept = 0;
+        for (BalanceChangeEvent event : events) {
+            String main = mainOf(event.getUserId());
+            Integer subs = subCounts.get(main);
+            if (null != subs) {
+                if (duplicated(events, kept, event.getSequence(), main, event.getCurrency())) {
+                    continue;
+                }
+                aggregate(event, main, subs);
+            }
+            events.set(kept++, event);
+        }
+        events.subList(kept, events.size()).clear();
+    }
+
+    /**
+     * @return 账户当前的子账户个数，包括已停止拆分但还没清零的，没拆分过返回0
+     */
+    public int subAccountsOf(String userId) {
+        Split split = splits.get(userId);
+        return null == split ? 0 : split.subs.length;
+    }
+
+    public boolean isSplit(String userId) {
+        Split split = splits.get(userId);
+        return null != split && split.active;
+    }
+
+    /**
+     * 子账户余额全部转回主账户，同一账户的归集串行
+     */
+    private void sweep(Split split, Date now) {
+        synchronized (split) {
+            int ticket = repository.beginMutation();
+            try {
+                List<Account> changed = new ArrayList<>(split.subs.length + 1);
+                //各币种分别归集
+                Map<String, Long> moved = new TreeMap<>();
+                for (String sub : split.subs) {
+                    for (Map.Entry<String, Long> balance : repository.query(sub).balanceMap().entrySet()) {
+                        //子账户只会被入账和归集修改，归集串行，扣balance不会不够
+                        changed.add(balanceEngine.apply(sub, -balance.getValue(), balance.getKey(), now));
+                        moved.merge(balance.getKey(), balance.getValue(), Math::addExact);
+                    }
+                }
+                if (moved.isEmpty()) {
+                    return;
+                }
+                for (Map.Entry<String, Long> balance : moved.entrySet()) {
+                    changed.add(balanceEngine.apply(split.userId, balance.getValue(), balance.getKey(), now));
+                }
+                repository.journal(JournalOperation.of(SWEEP), changed.toArray(new Account[0]));
+            } finally {
+                repository.endMutation(ticket);
+            }
+        }
+    }
+
+    /**
+     * 按上个周期的入账频率拆分和合并
+     */
+    private void check() {
+        try {
+            Map<String, LongAdder> sampled = writes;
+            writes = new ConcurrentHashMap<>();
+            if (enabled) {
+                for (Map.Entry<String, LongAdder> entry : sampled.entrySet()) {
+                    if (rate(entry.getValue()) >= splitWritesPerSecond) {
+                        split(entry.getKey());
+                    }
+                }
+            }
+            Date now = new Date();
+            for (Iterator<Split> iterator = splits.values().iterator(); iterator.hasNext(); ) {
+                Split split = iterator.next();
+                if (split.active && rate(sampled.get(split.userId)) < mergeWritesPerSecond) {
+                    split.active = false;
+                    split.idleChecks = 0;
+                    LOG.info("merge hot account: " + split.userId);
+                }
+                if (split.active) {
+                    continue;
+                }
+                //停止拆分之后还在路上的入账可能落到子账户上，每个周期都再归集一次
+                sweep(split, now);
+                if (!cleared(split)) {
+                    split.idleChecks = 0;
+                } else if (++split.idleChecks > 2) {
+                    iterator.remove();
+                }
+            }
+        } catch (RuntimeException e) {
+            LOG.error("check hot accounts failed", e);
+        }
+    }
+
+    private void split(String userId) {
+        Split split = splits.get(userId);
+        if (null == split) {
+            split = new Split(userId, subAccounts, true);
+            track(split);
+        } else if (!split.active) {
+            split.active = true;
+            split.idleChecks = 0;
+        } else {
+            return;
+        }
+        LOG.info("split hot account: " + userId + " into " + split.subs.length);
+    }
+
+    /**
+     * 先记下子账户个数再开始往子账户入账，事件发布时不会漏掉子账户
+     */
+    private void track(Split split) {
+        subCounts.merge(split.userId, split.subs.length, Math::max);
+        splits.put(split.userId, split);
+    }
+
+    /**
+     * @return kept之前（已保留的事件）同一次变更里是否已经有这个主账户这个币种的事件
+     */
+    private static boolean duplicated(List<BalanceChangeEvent> events, int kept, Long sequence, String main, String currency) {
+        for (int i = kept - 1; i >= 0 && sequence.equals(events.get(i).getSequence()); i--) {
+            BalanceChangeEvent previous = events.get(i);
+            if (main.equals(previous.getUserId()) && Objects.equals(currency, previous.getCurrency())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 事件改成主账户加全部子账户的合计
+     */
+    private void aggregate(BalanceChangeEvent event, String main, int subs) {
+        Account account = fence.read(main);
+        long balance = account.balanceOf(event.getCurrency());
+        long version = account.getVersion();
+        for (int i = 0; i < subs; i++) {
+            Account sub = fence.read(main + SUB_SEPARATOR + i);
+            balance = Math.addExact(balance, sub.balanceOf(event.getCurrency()));
+            version += sub.getVersion();
+        }
+        event.setUserId(main);
+        event.setBalance(balance);
+        event.setVersion(version);
+    }
+
+    private boolean cleared(Split split) {
+        for (String sub : split.subs) {
+            if (!repository.query(sub).balanceMap().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把账户各币种余额加到totals上，按币种序号存放
+     */
+    private static long[] add(long[] totals, Account account) {
+        for (Map.Entry<String, Long> balance : account.balanceMap().entrySet()) {
+            int ordinal = Currencies.ordinalOf(balance.getKey());
+            if (ordinal >= totals.length) {
+                totals = Arrays.copyOf(totals, ordinal + 1);
+            }
+            totals[ordinal] = Math.addExact(totals[ordinal], balance.getValue());
+        }
+        return totals;
+    }
+
+    /**
+     * @return 采样计数还原成每秒次数
+     */
+    private long rate(LongAdder counter) {
+        return null == counter ? 0 : (counter.sum() << SAMPLE_SHIFT) * 1000 / checkIntervalMillis;
+    }
+
+    private static final class Split {
+
+        final String userId;
+        final String[] subs;
+        /**
+         * 为false时入账回到主账户，子账户只等归集
+         */
+        volatile boolean active;
+        /**
+         * 停止拆分后经过的检查周期，只有检查线程访问
+         */
+        int idleChecks;
+
+        Split(String userId, int count, boolean active) {
+            this.userId = userId;
+            this.subs = new String[count];
+            for (int i = 0; i < count; i++) {
+                subs[i] = userId + SUB_SEPARATOR + i;
+            }
+            this.active = active;
+        }
+    }
+}
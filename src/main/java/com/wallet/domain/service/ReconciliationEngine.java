@@ -0,0 +1,461 @@
+package com.wallet.domain.service;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.Currencies;
+import com.wallet.domain.model.ReconciliationReport;
+import com.wallet.domain.model.TransactionRecord;
+import com.wallet.domain.repository.WalletRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对账：核对每个账户各币种的余额是否等于它的交易记录之和（存入-取出+转入-转出），并汇总各币种合计
+ * <p>
+ * 先扫一遍账户表和有交易记录的userId，按主账户userId散列分区（子账户归到主账户），
+ * 在独立的fork-join池里按分区并行核对；只读账户表和交易记录快照，不加锁，不阻塞钱包变更
+ * <p>
+ * 每个账户记下已经累加到的交易记录位置和各类合计（检查点），下次只读新追加的记录。
+ * 变更先改账户再写交易记录，扫描时碰上进行中的变更会误报，所以对不上的账户再确认一次：
+ * 读账户和version，等此刻进行中的变更全部结束，补读交易记录，再读一次version，
+ * version没变时的结论才算数，一直在变的账户记为未确认
+ */
+@Component
+public class ReconciliationEngine {
+
+    private static final Log LOG = LogFactory.getLog(ReconciliationEngine.class);
+
+    /**
+     * 检查点里每个币种的合计：存入、取出、转入、转出
+     */
+    private static final int DEPOSITS = 0;
+    private static final int WITHDRAWALS = 1;
+    private static final int TRANSFERS_IN = 2;
+    private static final int TRANSFERS_OUT = 3;
+    private static final int CATEGORIES = 4;
+    /**
+     * 汇总在每个币种上多两项：账户余额、推算余额
+     */
+    private static final int BALANCE = 4;
+    private static final int EXPECTED = 5;
+    private static final int FIELDS = 6;
+
+    private static final int CONFIRM_ATTEMPTS = 3;
+
+    /**
+     * 并行度，0为CPU核数的一半，给在线请求留出CPU
+     */
+    @Value("${wallet.reconcile.parallelism:0}")
+    private int parallelism;
+    @Value("${wallet.reconcile.partitions:64}")
+    private int partitions;
+    /**
+     * 定时对账的间隔，0为不定时，只在调用reconcile时执行
+     */
+    @Value("${wallet.reconcile.intervalMinutes:0}")
+    private long intervalMinutes;
+
+    @Autowired
+    private WalletRepository repository;
+    @Autowired
+    private HotAccountSplitter splitter;
+
+    private final ConcurrentMap<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+    private volatile ReconciliationReport lastReport;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void init() {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive: " + partitions);
+        }
+        if (intervalMinutes <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wallet-reconcile");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOG.error("reconcile failed", e);
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void close() {
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 对一次账，同一时刻只有一次在执行
+     */
+    public synchronized ReconciliationReport reconcile() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Map<String, Integer>> parts = partition();
+        int threads = parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        ForkJoinPool pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("wallet-reconcile-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        Result result;
+        try {
+            result = pool.invoke(new CheckTask(parts, 0, parts.size()));
+        } finally {
+            pool.shutdown();
+        }
+        List<ReconciliationReport.Discrepancy> discrepancies = new ArrayList<>();
+        List<String> unconfirmed = confirm(result, discrepancies);
+        ReconciliationReport report = new ReconciliationReport(new Date(start), System.currentTimeMillis() - start,
+                result.accounts, result.records, discrepancies, unconfirmed, result.totals.toMap());
+        LOG.info("reconciled " + report.getAccounts() + " accounts, " + report.getRecords() + " new records, "
+                + discrepancies.size() + " discrepancies, " + unconfirmed.size() + " unconfirmed in " + report.getElapsedMillis() + "ms");
+        lastReport = report;
+        return report;
+    }
+
+    /**
+     * @return 最近一次对账的报告，还没对过返回null
+     */
+    public ReconciliationReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * 按主账户userId散列分区
+     *
+     * @return 每个分区：主账户userId -> 子账户个数
+     */
+    private List<Map<String, Integer>> partition() {
+        List<Map<String, Integer>> parts = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            parts.add(new HashMap<>());
+        }
+        repository.forEachAccount(account -> {
+            String userId = account.getUserId();
+            int index = HotAccountSplitter.subIndexOf(userId);
+            if (index >= 0) {
+                String main = HotAccountSplitter.mainOf(userId);
+                parts.get(partitionOf(main)).merge(main, index + 1, Math::max);
+            } else {
+                parts.get(partitionOf(userId)).putIfAbsent(userId, 0);
+            }
+        });
+        //有记录没账户的也要对
+        for (String userId : repository.recordUserIds()) {
+            parts.get(partitionOf(userId)).putIfAbsent(userId, 0);
+        }
+        return parts;
+    }
+
+    private int partitionOf(String userId) {
+        return Math.floorMod(userId.hashCode() * 0x9E3779B9, partitions);
+    }
+
+    /**
+     * 核对一个账户，对不上的放进候选
+     */
+    private void check(String userId, int scannedSubs, Result result) {
+        //扫描之后才拆分的账户，子账户要从拆分器里拿
+        int subs = Math.max(scannedSubs, splitter.subAccountsOf(userId));
+        long[] balances = balances(userId, subs, null);
+        Checkpoint checkpoint = checkpoints.computeIfAbsent(userId, key -> new Checkpoint());
+        result.records += checkpoint.advance(repository, userId);
+        long[] contribution = contribution(balances, checkpoint);
+        result.totals.add(contribution);
+        result.accounts++;
+        if (!mismatches(userId, balances, checkpoint).isEmpty()) {
+            result.candidates.put(userId, new Candidate(subs, contribution));
+        }
+    }
+
+    /**
+     * 二次确认候选账户，每一轮先读全部候选的账户，等一次进行中的变更结束，再补读记录和确认version
+     *
+     * @return 一直在变、没能确认的账户
+     */
+    private List<String> confirm(Result result, List<ReconciliationReport.Discrepancy> discrepancies) throws InterruptedException {
+        Map<String, Candidate> pending = result.candidates;
+        for (int attempt = 0; attempt < CONFIRM_ATTEMPTS && !pending.isEmpty(); attempt++) {
+            Map<String, long[]> versions = new HashMap<>();
+            Map<String, long[]> balances = new HashMap<>();
+            for (Map.Entry<String, Candidate> entry : pending.entrySet()) {
+                Candidate candidate = entry.getValue();
+                candidate.subs = Math.max(candidate.subs, splitter.subAccountsOf(entry.getKey()));
+                long[] version = new long[candidate.subs + 1];
+                balances.put(entry.getKey(), balances(entry.getKey(), candidate.subs, version));
+                versions.put(entry.getKey(), version);
+            }
+            repository.awaitMutations();
+            Map<String, Candidate> changed = new LinkedHashMap<>();
+            for (Map.Entry<String, Candidate> entry : pending.entrySet()) {
+                String userId = entry.getKey();
+                Candidate candidate = entry.getValue();
+                Checkpoint checkpoint = checkpoints.get(userId);
+                result.records += checkpoint.advance(repository, userId);
+                long[] version = new long[candidate.subs + 1];
+                balances(userId, candidate.subs, version);
+                //期间刚拆分的账户也算在变
+                if (!Arrays.equals(version, versions.get(userId)) || splitter.subAccountsOf(userId) > candidate.subs) {
+                    changed.put(userId, candidate);
+                    continue;
+                }
+                //用确认后的数替换第一遍计入汇总的数
+                long[] contribution = contribution(balances.get(userId), checkpoint);
+                result.totals.subtract(candidate.contribution);
+                result.totals.add(contribution);
+                discrepancies.addAll(mismatches(userId, balances.get(userId), checkpoint));
+            }
+            pending = changed;
+        }
+        return new ArrayList<>(pending.keySet());
+    }
+
+    /**
+     * 读主账户和子账户，按币种合计余额
+     *
+     * @param versions 不为空时依次填入主账户和各子账户的version
+     * @return 币种序号下标的余额
+     */
+    private long[] balances(String userId, int subs, long[] versions) {
+        long[] balances = new long[0];
+        for (int i = 0; i <= subs; i++) {
+            Account account = repository.query(0 == i ? userId : userId + HotAccountSplitter.SUB_SEPARATOR + (i - 1));
+            if (null != versions) {
+                versions[i] = account.getVersion();
+            }
+            for (Map.Entry<String, Long> balance : account.balanceMap().entrySet()) {
+                int ordinal = Currencies.ordinalOf(balance.getKey());
+                if (ordinal >= balances.length) {
+                    balances = Arrays.copyOf(balances, ordinal + 1);
+                }
+                balances[ordinal] = Math.addExact(balances[ordinal], balance.getValue());
+            }
+        }
+        return balances;
+    }
+
+    private static List<ReconciliationReport.Discrepancy> mismatches(String userId, long[] balances, Checkpoint checkpoint) {
+        List<ReconciliationReport.Discrepancy> mismatches = new ArrayList<>(0);
+        int currencies = Math.max(balances.length, checkpoint.sums.length / CATEGORIES);
+        for (int ordinal = 1; ordinal < currencies; ordinal++) {
+            long balance = ordinal < balances.length ? balances[ordinal] : 0;
+            long expected = checkpoint.expected(ordinal);
+            if (balance != expected) {
+                mismatches.add(new ReconciliationReport.Discrepancy(userId, Currencies.codeOf(ordinal), balance, expected));
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * @return 一个账户计入汇总的数，下标是币种序号*FIELDS+项
+     */
+    private static long[] contribution(long[] balances, Checkpoint checkpoint) {
+        int currencies = Math.max(balances.length, checkpoint.sums.length / CATEGORIES);
+        long[] contribution = new long[currencies * FIELDS];
+        for (int ordinal = 1; ordinal < currencies; ordinal++) {
+            int base = ordinal * FIELDS;
+            if (ordinal * CATEGORIES < checkpoint.sums.length) {
+                System.arraycopy(checkpoint.sums, ordinal * CATEGORIES, contribution, base, CATEGORIES);
+            }
+            contribution[base + BALANCE] = ordinal < balances.length ? balances[ordinal] : 0;
+            contribution[base + EXPECTED] = checkpoint.expected(ordinal);
+        }
+        return contribution;
+    }
+
+    /**
+     * 一个账户已经累加过的交易记录，只在对账线程里访问，同一账户一次对账里只归一个任务
+     */
+    private static final class Checkpoint {
+
+        long position;
+        /**
+         * 下标是币种序号*CATEGORIES+类别
+         */
+        long[] sums = new long[0];
+
+        /**
+         * 累加新追加的记录
+         *
+         * @return 新读的记录数
+         */
+        long advance(WalletRepository repository, String userId) {
+            long from = position;
+            position = repository.forEachRecordFrom(userId, from, record -> add(userId, record));
+            return position - from;
+        }
+
+        long expected(int ordinal) {
+            int base = ordinal * CATEGORIES;
+            if (base >= sums.length) {
+                return 0;
+            }
+            return sums[base + DEPOSITS] - sums[base + WITHDRAWALS] + sums[base + TRANSFERS_IN] - sums[base + TRANSFERS_OUT];
+        }
+
+        private void add(String userId, TransactionRecord record) {
+            if (null == record.getOperatorType() || null == record.getOperatorAmount()) {
+                return;
+            }
+            int category;
+            switch (record.getOperatorType()) {
+                case WalletService.DEPOSIT:
+                    category = DEPOSITS;
+                    break;
+                case WalletService.WITHDRAW:
+                    category = WITHDRAWALS;
+                    break;
+                case WalletService.TRANSFER:
+                    //同一笔转账在来源和去向下各有一条，按自己是哪一边计
+                    category = userId.equals(record.getFrom()) ? TRANSFERS_OUT : TRANSFERS_IN;
+                    break;
+                default:
+                    return;
+            }
+            int index = Currencies.ordinalOf(record.getOperatorCurrency()) * CATEGORIES + category;
+            if (index >= sums.length) {
+                sums = Arrays.copyOf(sums, index - category + CATEGORIES);
+            }
+            sums[index] = Math.addExact(sums[index], record.getOperatorAmount());
+        }
+    }
+
+    private static final class Candidate {
+
+        int subs;
+        /**
+         * 第一遍计入汇总的数，确认后替换
+         */
+        final long[] contribution;
+
+        Candidate(int subs, long[] contribution) {
+            this.subs = subs;
+            this.contribution = contribution;
+        }
+    }
+
+    /**
+     * 各币种汇总，下标是币种序号*FIELDS+项
+     */
+    private static final class Totals {
+
+        long[] values = new long[0];
+
+        void add(long[] contribution) {
+            if (contribution.length > values.length) {
+                values = Arrays.copyOf(values, contribution.length);
+            }
+            for (int i = 0; i < contribution.length; i++) {
+                values[i] = Math.addExact(values[i], contribution[i]);
+            }
+        }
+
+        void subtract(long[] contribution) {
+            for (int i = 0; i < contribution.length; i++) {
+                values[i] = Math.subtractExact(values[i], contribution[i]);
+            }
+        }
+
+        Map<String, ReconciliationReport.CurrencyTotals> toMap() {
+            Map<String, ReconciliationReport.CurrencyTotals> map = new TreeMap<>();
+            for (int base = FIELDS; base < values.length; base += FIELDS) {
+                ReconciliationReport.CurrencyTotals totals = new ReconciliationReport.CurrencyTotals();
+                totals.setDeposits(values[base + DEPOSITS]);
+                totals.setWithdrawals(values[base + WITHDRAWALS]);
+                totals.setTransfersIn(values[base + TRANSFERS_IN]);
+                totals.setTransfersOut(values[base + TRANSFERS_OUT]);
+                totals.setBalance(values[base + BALANCE]);
+                totals.setExpected(values[base + EXPECTED]);
+                if (!totals.equals(new ReconciliationReport.CurrencyTotals())) {
+                    map.put(Currencies.codeOf(base / FIELDS), totals);
+                }
+            }
+            return map;
+        }
+    }
+
+    /**
+     * 一组分区的核对结果，合并时累加
+     */
+    private static final class Result {
+
+        long accounts;
+        long records;
+        final Totals totals = new Totals();
+        final Map<String, Candidate> candidates = new LinkedHashMap<>();
+
+        Result merge(Result other) {
+            accounts += other.accounts;
+            records += other.records;
+            totals.add(other.totals.values);
+            candidates.putAll(other.candidates);
+            return this;
+        }
+    }
+
+    /**
+     * 核对[low, high)分区，多于一个分区时对半拆分
+     */
+    private final class CheckTask extends RecursiveTask<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Map<String, Integer>> parts;
+        private final int low;
+        private final int high;
+
+        CheckTask(List<Map<String, Integer>> parts, int low, int high) {
+            this.parts = parts;
+            this.low = low;
+            this.high = high;
+        }
+
+        @Override
+        protected Result compute() {
+            if (high - low > 1) {
+                int mid = (low + high) >>> 1;
+                CheckTask right = new CheckTask(parts, mid, high);
+                right.fork();
+                Result left = new CheckTask(parts, low, mid).compute();
+                return left.merge(right.join());
+            }
+            Result result = new Result();
+            for (Map.Entry<String, Integer> entry : parts.get(low).entrySet()) {
+                check(entry.getKey(), entry.getValue(), result);
+            }
+            return result;
+        }
+    }
+}
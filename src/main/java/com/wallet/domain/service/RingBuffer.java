@@ -0,0 +1,76 @@
+package com.wallet.domain.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 有界环形队列，多生产者单消费者
+ * 生产者用getAndIncrement领取序号，写入槽位后再发布该槽位的序号；消费者按序号顺序读取，读过的槽位才会被复用
+ * 队列满时生产者让出CPU等待，即背压
+ */
+class RingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    /**
+     * 每个槽位当前发布的序号，消费者据此判断槽位是否可读
+     */
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * 消费者已读到的序号，只有消费者写
+     */
+    private volatile long consumed;
+
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * 放入元素，队列满时阻塞等待
+     */
+    void publish(T element) {
+        long sequence = claimed.getAndIncrement();
+        while (sequence - consumed > mask) {
+            Thread.yield();
+        }
+        int index = (int) sequence & mask;
+        slots.lazySet(index, element);
+        published.set(index, sequence);
+    }
+
+    /**
+     * 按顺序取出已发布的元素，只能由消费者线程调用
+     *
+     * @param consumer 接收元素
+     * @param limit    最多取出的个数
+     * @return 取出的个数
+     */
+    int drain(Consumer<T> consumer, int limit) {
+        long next = consumed;
+        int count = 0;
+        while (count < limit) {
+            int index = (int) next & mask;
+            if (published.get(index) != next) {
+                break;
+            }
+            T element = slots.get(index);
+            slots.lazySet(index, null);
+            consumer.accept(element);
+            next++;
+            count++;
+        }
+        if (count > 0) {
+            consumed = next;
+        }
+        return count;
+    }
+}
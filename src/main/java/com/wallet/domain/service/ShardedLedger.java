@@ -0,0 +1,362 @@
+package com.wallet.domain.service;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.model.Money;
+import com.wallet.domain.model.WalletCommand;
+import com.wallet.domain.repository.JournalOperation;
+import com.wallet.domain.repository.PendingCredit;
+import com.wallet.domain.repository.WalletRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单写者分片账本（LMAX风格），wallet.ledger.enabled=true时WalletService的变更都走这里
+ * 账户按userId散列归属到分片，每个分片一个环形队列和一个线程，账户只被所属分片的线程修改，
+ * 因此余额变更不需要锁也不需要CAS；分片线程每次取出一批指令，整批只等待一次日志刷盘，再统一回调结果
+ * <p>
+ * 跨分片转账分两阶段：
+ * 1. 转出分片扣款，写带待入账意图的日志并刷盘，然后把入账投递到转入分片；
+ * 2. 转入分片入账，写关闭意图的日志并刷盘，完成调用方的future；两边的交易记录写在这条日志里。
+ * 两阶段之间崩溃时，恢复流程会补上未关闭意图的入账；整个转账包在一个变更纪元里，快照不会只包含一边。
+ * 入账失败（如余额溢出）时把指令退回转出分片，退款写关闭意图的日志，调用方收到入账的异常
+ * <p>
+ * 同一分片内的转账先算出两边的新账户再一起写入，任何一边失败都不改动账户表
+ * <p>
+ * 分片线程在HotAccountSplitter初始化之后才启动，它要先归集上次留下的子账户
+ */
+@Component
+@DependsOn("hotAccountSplitter")
+public class ShardedLedger {
+
+    /**
+     * 分片线程每次最多处理的指令数
+     */
+    private static final int DRAIN_LIMIT = 256;
+    /**
+     * 连续空转多少次之后开始park
+     */
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 50_000;
+    /**
+     * 跨分片转账入账失败后退款在日志里的操作类型
+     */
+    static final String REFUND = "REFUND";
+
+    @Value("${wallet.ledger.enabled:false}")
+    private boolean enabled;
+    /**
+     * 分片数，默认等于CPU核数
+     */
+    @Value("${wallet.ledger.shards:0}")
+    private int shardCount;
+    @Value("${wallet.ledger.ringSize:65536}")
+    private int ringSize;
+
+    @Autowired
+    private WalletRepository repository;
+    @Autowired
+    private ExchangeRateTable exchangeRates;
+
+    private Shard[] shards;
+    /**
+     * 转账标识，以启动时间打底，重启后不会和日志里残留的意图重复
+     */
+    private final AtomicLong transferIds = new AtomicLong(System.currentTimeMillis() << 20);
+    private volatile boolean running;
+
+    @PostConstruct
+    private void start() {
+        if (!enabled) {
+            return;
+        }
+        int count = shardCount > 0 ? shardCount : Runtime.getRuntime().availableProcessors();
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i);
+        }
+        running = true;
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    @PreDestroy
+    private void stop() throws InterruptedException {
+        running = false;
+        if (null != shards) {
+            for (Shard shard : shards) {
+                LockSupport.unpark(shard.thread);
+                shard.thread.join();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 投递一条指令，队列满时阻塞等待
+     *
+     * @return 操作人变更后的账户，日志刷盘后才完成；失败时异常完成。回调在分片线程上执行，耗时的后续处理请用*Async
+     */
+    public CompletableFuture<Account> submit(WalletCommand command) {
+        if (!running) {
+            throw new IllegalStateException("ledger is not running");
+        }
+        CompletableFuture<Account> future = new CompletableFuture<>();
+        shardOf(command.getUserId()).ring.publish(new Event(command, future));
+        return future;
+    }
+
+    private Shard shardOf(String userId) {
+        int h = userId.hashCode();
+        return shards[((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * 队列里的一条指令，跨分片转账的入账阶段复用同一个对象
+     */
+    private static final class Event {
+        final WalletCommand command;
+        final CompletableFuture<Account> future;
+        /**
+         * 以下字段只在跨分片转账扣款成功后才有值
+         */
+        PendingCredit credit;
+        Account debited;
+        int ticket;
+        /**
+         * 入账阶段的失败，有值时事件退回转出分片退款
+         */
+        RuntimeException failure;
+
+        Event(WalletCommand command, CompletableFuture<Account> future) {
+            this.command = command;
+            this.future = future;
+        }
+    }
+
+    private final class Shard implements Runnable {
+
+        final RingBuffer<Event> ring = new RingBuffer<>(ringSize);
+        /**
+         * 其他分片投递过来的入账，不限长度：分片之间互相投递时不能因为对方队列满而互相等待
+         */
+        final ConcurrentLinkedQueue<Event> credits = new ConcurrentLinkedQueue<>();
+        final Thread thread;
+
+        /**
+         * 本批的结果，刷盘后统一回调；以下字段只有分片线程访问
+         */
+        private final List<Event> done = new ArrayList<>(DRAIN_LIMIT);
+        private final List<Account> results = new ArrayList<>(DRAIN_LIMIT);
+        private final List<Event> forwards = new ArrayList<>();
+        private long position;
+        private Date now;
+
+        Shard(int index) {
+            thread = new Thread(this, "wallet-ledger-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (running) {
+                int drained = 0;
+                int ticket = repository.beginMutation();
+                try {
+                    position = -1;
+                    now = new Date();
+                    for (Event event; drained < DRAIN_LIMIT && null != (event = credits.poll()); drained++) {
+                        handle(event);
+                    }
+                    drained += ring.drain(this::handle, DRAIN_LIMIT - drained);
+                    repository.syncJournal(position);
+                } finally {
+                    repository.endMutation(ticket);
+                }
+                if (drained > 0) {
+                    idle = 0;
+                    complete();
+                } else if (++idle > SPIN_TRIES) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+
+        private void handle(Event event) {
+            WalletCommand command = event.command;
+            String userId = command.getUserId();
+            Money money = command.getMoney();
+            boolean crediting = null != event.credit && null == event.failure;
+            try {
+                if (crediting) {
+                    credit(event);
+                    return;
+                }
+                if (null != event.credit) {
+                    refund(event);
+                    return;
+                }
+                switch (command.getOperatorType()) {
+                    case WalletService.DEPOSIT:
+                        single(event, apply(userId, money.getCent(), money.getCurrencyCode()));
+                        break;
+                    case WalletService.WITHDRAW:
+                        single(event, apply(userId, money.negateCent(), money.getCurrencyCode()));
+                        break;
+                    case WalletService.TRANSFER:
+                        transfer(event);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown operator type: " + command.getOperatorType());
+                }
+            } catch (RuntimeException e) {
+                if (crediting) {
+                    //入账失败，本批刷盘后退回转出分片，纪元凭证继续持有到退款结束
+                    event.failure = e;
+                    forwards.add(event);
+                    return;
+                }
+                //扣款之后其他阶段的失败（退款也失败）意图保持未关闭，留给恢复流程处理
+                if (null != event.credit) {
+                    repository.endMutation(event.ticket);
+                }
+                event.future.completeExceptionally(e);
+            }
+        }
+
+        private void single(Event event, Account account) {
+            WalletCommand command = event.command;
+            JournalOperation operation = JournalOperation.single(command.getOperatorType(), command.getUserId(), command.getMoney(), now)
+                    .request(command.getRequest(), account.getAmount().get());
+            position = Math.max(position, repository.appendJournal(operation, account));
+            finish(event, account);
+        }
+
+        private void transfer(Event event) {
+            WalletCommand command = event.command;
+            String from = command.getUserId();
+            String to = command.getTargetUserId();
+            if (from.equals(to)) {
+                throw new RuntimeException("can not transfer to self");
+            }
+            Money money = command.getMoney();
+            //跨币种按扣款时的汇率换算，入账阶段不再重新取汇率
+            Money creditMoney = exchangeRates.convertCredit(money, command.getTargetCurrency());
+            if (shardOf(to) == this) {
+                //两个账户都归本分片，直接完成，两条腿写同一条日志；两边都算成功了才写入账户表
+                Account debited = next(from, money.negateCent(), money.getCurrencyCode());
+                Account credited = next(to, creditMoney.getCent(), creditMoney.getCurrencyCode());
+                repository.store(from, debited);
+                repository.store(to, credited);
+                JournalOperation operation = JournalOperation.transfer(WalletService.TRANSFER, from, to, money, creditMoney, now)
+                        .request(command.getRequest(), null);
+                position = Math.max(position, repository.appendJournal(operation, debited, credited));
+                finish(event, debited);
+                return;
+            }
+            //第一阶段：扣款并写下待入账意图，本批刷盘后再投递给转入分片
+            Account debited = apply(from, money.negateCent(), money.getCurrencyCode());
+            event.debited = debited;
+            event.credit = new PendingCredit(transferIds.incrementAndGet(), to, creditMoney.getCent(), creditMoney.getCurrencyCode(),
+                    from, money.getCent(), money.getCurrencyCode(), now.getTime(), command.getRequest());
+            //单独的纪元凭证，入账阶段结束才释放
+            event.ticket = repository.beginMutation();
+            //交易记录和幂等请求在入账时写，退款的转账不留记录，重试时重新执行
+            position = Math.max(position, repository.appendTransferOut(JournalOperation.of(WalletService.TRANSFER), event.credit, debited));
+            forwards.add(event);
+        }
+
+        /**
+         * 入账失败后在转出分片上把钱退回来源，并关闭意图
+         */
+        private void refund(Event event) {
+            Money money = event.command.getMoney();
+            Account refunded = apply(event.command.getUserId(), money.getCent(), money.getCurrencyCode());
+            position = Math.max(position, repository.appendTransferIn(JournalOperation.of(REFUND), event.credit.getTransferId(), refunded));
+            finish(event, refunded);
+        }
+
+        /**
+         * 第二阶段：入账并关闭意图，入账不会因余额不足失败
+         */
+        private void credit(Event event) {
+            PendingCredit credit = event.credit;
+            Account credited = apply(credit.getUserId(), credit.getCent(), credit.getCurrency());
+            Money money = event.command.getMoney();
+            Money creditMoney = credit.getCurrency().equals(money.getCurrencyCode())
+                    ? money : new Money(credit.getCent(), Currency.getInstance(credit.getCurrency()));
+            //记录时间取扣款时间，和恢复时补入账一致
+            JournalOperation operation = JournalOperation.transfer(WalletService.TRANSFER, event.command.getUserId(), credit.getUserId(),
+                    money, creditMoney, new Date(credit.getTime())).request(credit.getRequest(), null);
+            position = Math.max(position, repository.appendTransferIn(operation, credit.getTransferId(), credited));
+            finish(event, event.debited);
+        }
+
+        /**
+         * 单写者直接计算并覆盖账户，不需要锁和CAS
+         */
+        private Account apply(String userId, long cent, String currency) {
+            Account updated = next(userId, cent, currency);
+            repository.store(userId, updated);
+            return updated;
+        }
+
+        /**
+         * @return 变更后的账户，还没有写入账户表；余额不足或溢出时抛异常
+         */
+        private Account next(String userId, long cent, String currency) {
+            Account origin = repository.query(userId);
+            return Account.next(origin, currency, BalanceEngine.balanceAfter(origin, cent, currency), now);
+        }
+
+        private void finish(Event event, Account account) {
+            done.add(event);
+            results.add(account);
+        }
+
+        /**
+         * 本批日志已刷盘：回调调用方，把跨分片转账的入账投递出去
+         */
+        private void complete() {
+            for (int i = 0; i < done.size(); i++) {
+                Event event = done.get(i);
+                if (null != event.credit) {
+                    repository.endMutation(event.ticket);
+                }
+                if (null != event.failure) {
+                    event.future.completeExceptionally(event.failure);
+                } else {
+                    event.future.complete(results.get(i));
+                }
+            }
+            done.clear();
+            results.clear();
+            for (Event event : forwards) {
+                //入账失败的退回转出分片
+                Shard target = shardOf(null != event.failure ? event.command.getUserId() : event.credit.getUserId());
+                target.credits.offer(event);
+                LockSupport.unpark(target.thread);
+            }
+            forwards.clear();
+        }
+    }
+}
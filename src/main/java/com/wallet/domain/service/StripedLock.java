@@ -0,0 +1,38 @@
+package com.wallet.domain.service;
+
+/**
+ * 分段锁，按userId散列到固定数量的锁对象上，内存占用与账户数量无关
+ */
+class StripedLock {
+
+    private final Object[] locks;
+    private final int mask;
+
+    StripedLock(int stripes) {
+        //向上取整到2的幂，方便用位运算取模
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new Object[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param userId userId
+     * @return userId对应的分段下标
+     */
+    int indexOf(String userId) {
+        int h = userId.hashCode();
+        //高位扰动，避免相近的userId落到同一个分段
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    Object get(String userId) {
+        return locks[indexOf(userId)];
+    }
+
+    Object getAt(int index) {
+        return locks[index];
+    }
+}
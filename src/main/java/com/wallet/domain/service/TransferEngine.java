@@ -0,0 +1,84 @@
+package com.wallet.domain.service;
+
+import com.wallet.domain.model.Account;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+
+/**
+ * 转账引擎，保证扣款和入账两条腿要么都生效，要么都不生效，并且对其他线程同时生效
+ * 两个账户按userId散列到TransferFence的分段锁上，总是先锁下标小的分段，涉及同一账户的转账互斥且不会死锁，
+ * 不相交的账户对落在不同分段上可以完全并行；持锁期间两个分段的序号是奇数，读余额和单账户存取钱（BalanceEngine的无锁路径）
+ * 会等两条腿都写完，看不到只扣了款的中间状态，也看不到入账失败时的退款
+ */
+@Component
+public class TransferEngine {
+
+    @Autowired
+    private BalanceEngine balanceEngine;
+    @Autowired
+    private TransferFence fence;
+
+    /**
+     * 转账，余额不足时两边都不变更
+     *
+     * @param from     来源
+     * @param to       去向
+     * @param cent     转账金额（分）
+     * @param currency 币种
+     * @return 转账后的两个账户，[0]是来源，[1]是去向
+     */
+    public Account[] transfer(String from, String to, long cent, String currency) {
+        return transfer(from, to, cent, currency, new Date());
+    }
+
+    /**
+     * @param now 变更时间，调用方和交易记录共用一个
+     */
+    public Account[] transfer(String from, String to, long cent, String currency, Date now) {
+        return transfer(from, to, cent, currency, cent, currency, now);
+    }
+
+    /**
+     * 跨币种转账，来源扣cent个currency，去向入creditCent个creditCurrency
+     */
+    public Account[] transfer(String from, String to, long cent, String currency, long creditCent, String creditCurrency, Date now) {
+        if (from.equals(to)) {
+            throw new RuntimeException("can not transfer to self");
+        }
+        int i = fence.indexOf(from);
+        int j = fence.indexOf(to);
+        Object first = fence.lockAt(Math.min(i, j));
+        Object second = fence.lockAt(Math.max(i, j));
+        synchronized (first) {
+            synchronized (second) {
+                fence.open(i);
+                if (i != j) {
+                    fence.open(j);
+                }
+                try {
+                    return doTransfer(from, to, cent, currency, creditCent, creditCurrency, now);
+                } finally {
+                    if (i != j) {
+                        fence.close(j);
+                    }
+                    fence.close(i);
+                }
+            }
+        }
+    }
+
+    private Account[] doTransfer(String from, String to, long cent, String currency, long creditCent, String creditCurrency, Date now) {
+        //先扣款，余额不足在这里失败，此时什么都没发生
+        Account debited = balanceEngine.applyInFence(from, Math.negateExact(cent), currency, now);
+        try {
+            Account credited = balanceEngine.applyInFence(to, creditCent, creditCurrency, now);
+            return new Account[]{debited, credited};
+        } catch (RuntimeException e) {
+            //入账失败把扣掉的钱退回去，钱不会丢；分段序号还是奇数，别人看不到这次扣款
+            balanceEngine.applyInFence(from, cent, currency, now);
+            throw e;
+        }
+    }
+}
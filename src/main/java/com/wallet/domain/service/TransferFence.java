@@ -0,0 +1,72 @@
+package com.wallet.domain.service;
+
+import com.wallet.domain.model.Account;
+import com.wallet.domain.repository.WalletRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 转账栅栏，让转账的两条腿对其他线程一起生效
+ * <p>
+ * 账户按userId散列到分段上，每个分段一把锁和一个序号（seqlock）：转账拿着两个账户的分段锁，先把序号加成奇数，
+ * 扣款、入账（入账失败时连同退款）都写完再加回偶数；账户的读取和单账户的无锁变更在序号为奇数时等转账结束，
+ * 读到账户后序号没变才算数。所以没有线程能看到或者基于只扣了款还没入账的中间状态做判断
+ * <p>
+ * 序号为奇数期间新来的单账户变更都在等，转账自己的CAS最多被之前已经读完的几个变更抢先，不需要退化加锁
+ */
+@Component
+public class TransferFence {
+
+    private static final int STRIPES = 4096;
+
+    private final StripedLock locks = new StripedLock(STRIPES);
+    private final AtomicLongArray sequences = new AtomicLongArray(STRIPES);
+
+    @Autowired
+    private WalletRepository repository;
+
+    int indexOf(String userId) {
+        return locks.indexOf(userId);
+    }
+
+    Object lockAt(int index) {
+        return locks.getAt(index);
+    }
+
+    /**
+     * 持有index分段的锁时调用，开始写分段内的账户
+     */
+    void open(int index) {
+        sequences.incrementAndGet(index);
+    }
+
+    /**
+     * 持有index分段的锁时调用，分段内的账户写完了
+     */
+    void close(int index) {
+        sequences.incrementAndGet(index);
+    }
+
+    /**
+     * @return 账户当前快照，不会是进行中的转账只写了一半的状态
+     */
+    public Account read(String userId) {
+        int index = locks.indexOf(userId);
+        for (; ; ) {
+            long sequence = sequences.get(index);
+            if (0 == (sequence & 1)) {
+                Account account = repository.query(userId);
+                if (sequences.get(index) == sequence) {
+                    return account;
+                }
+            } else {
+                //转账拿着这个分段的锁，排在它后面等它写完，不空转
+                synchronized (locks.getAt(index)) {
+                    //拿到锁时转账已经结束，重读
+                }
+            }
+        }
+    }
+}
@@ -1,27 +1,49 @@
 package com.wallet.domain.service;
 
 import com.wallet.domain.model.Account;
+import com.wallet.domain.model.IdempotencyKey;
 import com.wallet.domain.model.Money;
+import com.wallet.domain.model.TransactionPage;
 import com.wallet.domain.model.TransactionRecord;
+import com.wallet.domain.model.WalletCommand;
+import com.wallet.domain.repository.JournalOperation;
 import com.wallet.domain.repository.WalletRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 @Service
 public class WalletService {
 
-    private static final String DEPOSIT = "DEPOSIT";
-    private static final String WITHDRAW = "WITHDRAW";
-    private static final String TRANSFER = "TRANSFER";
+    public static final String DEPOSIT = "DEPOSIT";
+    public static final String WITHDRAW = "WITHDRAW";
+    public static final String TRANSFER = "TRANSFER";
 
     @Autowired
     private WalletRepository repository;
 
+    @Autowired
+    private BalanceEngine balanceEngine;
+
+    @Autowired
+    private TransferEngine transferEngine;
+
+    @Autowired
+    private ShardedLedger ledger;
+
+    @Autowired
+    private HotAccountSplitter splitter;
+
+    @Autowired
+    private ExchangeRateTable exchangeRates;
+
     /**
      * 存钱，自动加余额，插入交易记录
      * @param userId 存钱人userId
@@ -29,11 +51,30 @@ public class WalletService {
      * @return Account 存钱之后的账户
      */
     public Account deposit(String userId, Money money) {
+        return deposit(userId, money, null);
+    }
+
+    /**
+     * 幂等存钱：请求标识和返回的余额写进变更的同一条日志，一起刷盘，重启后据此去重
+     * @param request 幂等请求的标识，为空时不去重
+     */
+    public Account deposit(String userId, Money money, IdempotencyKey request) {
+        if (ledger.isEnabled()) {
+            return await(submit(command(DEPOSIT, userId, null, money, request)));
+        }
         //不涉及db存储事务控制省略了
-        Account account = recharge(userId, money);
-        repository.update(userId, account);
-        repository.updateRecord(userId, buildRecord(userId, money, DEPOSIT, userId, userId));
-        return account;
+        int ticket = repository.beginMutation();
+        try {
+            //账户和交易记录共用一个时间
+            Date now = new Date();
+            Account account = recharge(userId, money, now);
+            Account view = accountView(userId, account);
+            //余额、交易记录和幂等请求的结果写在同一条日志里
+            repository.journal(JournalOperation.single(DEPOSIT, userId, money, now).request(request, view.getAmount().get()), account);
+            return view;
+        } finally {
+            repository.endMutation(ticket);
+        }
     }
 
 
@@ -44,10 +85,26 @@ public class WalletService {
      * @return Account 取钱之后的账户
      */
     public Account withdraw(String userId, Money money) {
-        Account account = deduct(userId, money);
-        repository.update(userId, account);
-        repository.updateRecord(userId, buildRecord(userId, money, WITHDRAW, userId, userId));
-        return account;
+        return withdraw(userId, money, null);
+    }
+
+    /**
+     * 幂等取钱，见deposit(String, Money, IdempotencyKey)
+     */
+    public Account withdraw(String userId, Money money, IdempotencyKey request) {
+        if (ledger.isEnabled()) {
+            return await(submit(command(WITHDRAW, userId, null, money, request)));
+        }
+        int ticket = repository.beginMutation();
+        try {
+            Date now = new Date();
+            Account account = deduct(userId, money, now);
+            Account view = accountView(userId, account);
+            repository.journal(JournalOperation.single(WITHDRAW, userId, money, now).request(request, view.getAmount().get()), account);
+            return view;
+        } finally {
+            repository.endMutation(ticket);
+        }
     }
 
 
@@ -58,16 +115,175 @@ public class WalletService {
      * @param money money
      */
     public void transfer(String from, String to, Money money) {
-        //form扣钱
-        repository.update(from, deduct(from, money));
-        //to加钱
-        repository.update(to, recharge(to, money));
-        repository.updateRecord(from, buildRecord(from, money, TRANSFER, from, to));
+        transfer(from, to, money, null);
+    }
+
+    /**
+     * 跨币种转账，来源扣money，去向按当前汇率换算后入账到targetCurrency的余额
+     * @param targetCurrency 入账币种，为空时和money相同
+     */
+    public void transfer(String from, String to, Money money, String targetCurrency) {
+        transfer(from, to, money, targetCurrency, null);
+    }
+
+    /**
+     * 幂等转账，请求标识写进转账的日志；跨分片转账写在入账的那条日志里，退款的不写，重试时重新执行
+     * @param request 幂等请求的标识，为空时不去重
+     */
+    public void transfer(String from, String to, Money money, String targetCurrency, IdempotencyKey request) {
+        if (ledger.isEnabled()) {
+            WalletCommand command = command(TRANSFER, from, to, money, request);
+            command.setTargetCurrency(targetCurrency);
+            await(submit(command));
+            return;
+        }
+        int ticket = repository.beginMutation();
+        try {
+            //form扣钱和to加钱在转账引擎里一起生效
+            Date now = new Date();
+            Money credit = exchangeRates.convertCredit(money, targetCurrency);
+            Account[] accounts = transfer(from, to, money, credit, now);
+            //两个账户和两边的交易记录写在同一条日志里，恢复时不会只恢复一边
+            repository.journal(JournalOperation.transfer(TRANSFER, from, to, money, credit, now).request(request, null), accounts);
+        } finally {
+            repository.endMutation(ticket);
+        }
+    }
+
+    /**
+     * 批量执行指令，按indexes的顺序逐条执行，单条失败不影响其他指令
+     * 整批只等待一次日志刷盘，交易记录共用一个时间
+     *
+     * @param commands 指令
+     * @param indexes  本次要执行的指令下标
+     * @param codes    每条指令的结果码，见WalletCommand.SUCCESS/FAILED
+     * @param balances 每条指令执行后操作人的余额
+     */
+    public void batch(List<WalletCommand> commands, int[] indexes, byte[] codes, long[] balances) {
+        if (ledger.isEnabled()) {
+            //先全部投递再等待，同一批指令在各分片里一起刷盘
+            List<CompletableFuture<Account>> futures = new ArrayList<>(indexes.length);
+            for (int index : indexes) {
+                futures.add(ledger.submit(commands.get(index)));
+            }
+            for (int i = 0; i < indexes.length; i++) {
+                try {
+                    balances[indexes[i]] = futures.get(i).join().getAmount().get();
+                    codes[indexes[i]] = WalletCommand.SUCCESS;
+                } catch (CompletionException e) {
+                    codes[indexes[i]] = WalletCommand.FAILED;
+                }
+            }
+            return;
+        }
+        int ticket = repository.beginMutation();
+        try {
+            Date now = new Date();
+            long position = -1;
+            for (int index : indexes) {
+                WalletCommand command = commands.get(index);
+                try {
+                    position = Math.max(position, execute(command, now, balances, index));
+                    codes[index] = WalletCommand.SUCCESS;
+                } catch (RuntimeException e) {
+                    codes[index] = WalletCommand.FAILED;
+                }
+            }
+            repository.syncJournal(position);
+        } finally {
+            repository.endMutation(ticket);
+        }
+    }
+
+    /**
+     * 异步执行一条指令，需开启wallet.ledger.enabled
+     *
+     * @return 操作人变更后的账户，日志刷盘后完成
+     */
+    public CompletableFuture<Account> submit(WalletCommand command) {
+        if (!ledger.isEnabled()) {
+            throw new IllegalStateException("ledger is not enabled");
+        }
+        return ledger.submit(command);
+    }
+
+    private static WalletCommand command(String operatorType, String userId, String targetUserId, Money money, IdempotencyKey request) {
+        return WalletCommand.builder()
+                .operatorType(operatorType)
+                .userId(userId)
+                .targetUserId(targetUserId)
+                .money(money)
+                .request(request)
+                .build();
+    }
+
+    /**
+     * 等待结果，失败时抛出原始异常
+     */
+    private static Account await(CompletableFuture<Account> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 执行一条指令并写日志（不等待刷盘）
+     *
+     * @param balances 写入操作人变更后的余额，下标index
+     * @return 日志结束的位置
+     */
+    private long execute(WalletCommand command, Date now, long[] balances, int index) {
+        String userId = command.getUserId();
+        Money money = command.getMoney();
+        Account account;
+        JournalOperation operation;
+        Account[] accounts;
+        switch (command.getOperatorType()) {
+            case DEPOSIT:
+                account = recharge(userId, money, now);
+                accounts = new Account[]{account};
+                operation = JournalOperation.single(DEPOSIT, userId, money, now);
+                break;
+            case WITHDRAW:
+                account = deduct(userId, money, now);
+                accounts = new Account[]{account};
+                operation = JournalOperation.single(WITHDRAW, userId, money, now);
+                break;
+            case TRANSFER:
+                String to = command.getTargetUserId();
+                Money credit = exchangeRates.convertCredit(money, command.getTargetCurrency());
+                accounts = transfer(userId, to, money, credit, now);
+                account = accounts[0];
+                operation = JournalOperation.transfer(TRANSFER, userId, to, money, credit, now);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown operator type: " + command.getOperatorType());
+        }
+        balances[index] = accountView(userId, account).getAmount().get();
+        //转账的幂等结果为空
+        operation.request(command.getRequest(), TRANSFER.equals(command.getOperatorType()) ? null : balances[index]);
+        return repository.appendJournal(operation, accounts);
     }
 
     public Account queryBalance(String userId) {
-        //本身就是从缓存种读取，暂不设计缓存
-        return repository.query(userId);
+        //开启wallet.account.cacheSize后由账户表前的读缓存命中，写者之后的读不会读到旧版本
+        return splitter.balanceOf(userId);
+    }
+
+    /**
+     * @return 账户在某个币种下的余额（分），没有这个币种返回0
+     */
+    public long queryBalance(String userId, String currency) {
+        return splitter.balanceOf(userId).balanceOf(currency);
+    }
+
+    public ExchangeRateTable getExchangeRates() {
+        return exchangeRates;
     }
 
 
@@ -76,15 +292,58 @@ public class WalletService {
     }
 
 
+    /**
+     * 按追加顺序遍历交易记录，不物化列表，记录再多也只占一个块
+     * @param from 创建时间下限（含），可为空
+     * @param to 创建时间上限（不含），可为空
+     * @return 遍历的记录数
+     */
+    public long forEachTransactionRecord(String userId, Date from, Date to, Consumer<TransactionRecord> consumer) {
+        return repository.forEachRecord(userId,
+                null == from ? Long.MIN_VALUE : from.getTime(),
+                null == to ? Long.MAX_VALUE : to.getTime(),
+                consumer);
+    }
+
+    /**
+     * @return 有交易记录的userId，弱一致的只读视图
+     */
+    public Set<String> transactionUserIds() {
+        return repository.recordUserIds();
+    }
+
+
+    /**
+     * 按时间倒序分页查询交易记录
+     * @param userId userId
+     * @param from 创建时间下限（含），可为空
+     * @param to 创建时间上限（不含），可为空
+     * @param operatorType 操作类型，可为空
+     * @param cursor 上一页返回的游标，第一页为空
+     * @param limit 页大小
+     * @return 本页记录和下一页游标
+     */
+    public TransactionPage queryTransactionPage(String userId, Date from, Date to, String operatorType, Long cursor, int limit) {
+        return repository.queryRecordPage(userId,
+                null == from ? Long.MIN_VALUE : from.getTime(),
+                null == to ? Long.MAX_VALUE : to.getTime(),
+                operatorType,
+                null == cursor ? Long.MAX_VALUE : cursor,
+                limit);
+    }
+
+
 
     /**
      * 返回给账户充值money后的Account
      * @param userId userId
      * @param money 充值的money
+     * @param now 变更时间
      * @return 充值后的Account
      */
-    private Account recharge(String userId, Money money) {
-        return buildAccount(userId, money.getCent(), money.getCurrencyCode());
+    private Account recharge(String userId, Money money, Date now) {
+        //热点账户落到某个子账户上
+        return balanceEngine.apply(splitter.creditTarget(userId), money.getCent(), money.getCurrencyCode(), now);
     }
 
 
@@ -92,38 +351,37 @@ public class WalletService {
      * 返回给账户扣减money后的Account
      * @param userId userId
      * @param money 扣减的money
+     * @param now 变更时间
      * @return 扣减后的Account
      */
-    private Account deduct(String userId, Money money) {
-        //negate变成负数之后再加
-        return buildAccount(userId, new BigDecimal(money.getCent()).negate().longValue(), money.getCurrencyCode());
+    private Account deduct(String userId, Money money, Date now) {
+        //变成负数之后再加
+        return splitter.debit(userId, money.getCent(), money.getCurrencyCode(), now,
+                () -> balanceEngine.apply(userId, money.negateCent(), money.getCurrencyCode(), now));
     }
 
 
-    private Account buildAccount(String userId, Long cent, String currency) {
-        Account origin = repository.query(userId);
-        return Account.builder()
-                .amount(new AtomicLong(origin.getAmount().addAndGet(cent)))
-                .currency(currency)
-                .userId(userId)
-                .version(origin.getVersion() + 1)
-                .gmt_create(new Date())
-                .gmt_modify(new Date())
-                .build();
+    /**
+     * 转账，去向是热点账户时入账落到子账户上
+     *
+     * @param credit 去向入账的金额，同币种时就是money
+     * @return 变更后的两个账户，[0]是来源
+     */
+    private Account[] transfer(String from, String to, Money money, Money credit, Date now) {
+        if (from.equals(to)) {
+            throw new RuntimeException("can not transfer to self");
+        }
+        String target = splitter.creditTarget(to);
+        return splitter.debit(from, money.getCent(), money.getCurrencyCode(), now,
+                () -> transferEngine.transfer(from, target, money.getCent(), money.getCurrencyCode(),
+                        credit.getCent(), credit.getCurrencyCode(), now));
     }
 
-
-    private TransactionRecord buildRecord(String userId, Money money, String operatorType, String from, String to) {
-        return TransactionRecord.builder()
-                .from(from)
-                .to(to)
-                .operatorAmount(money.getCent())
-                .operatorCurrency(money.getCurrencyCode())
-                .operatorUserId(userId)
-                .operatorType(operatorType)
-                .gmt_create(new Date())
-                .gmt_modify(new Date())
-                .remark(userId + operatorType + money.getAmountString())
-                .build();
+    /**
+     * @param changed 操作人变更后实际写入的账户（热点账户可能是子账户）
+     * @return 返回给调用方的账户，拆分过的账户是合计余额
+     */
+    private Account accountView(String userId, Account changed) {
+        return userId.equals(changed.getUserId()) && !splitter.isSplit(userId) ? changed : splitter.balanceOf(userId);
     }
 }